@@ -1,5 +1,7 @@
 package org.schwa.dr;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * Abstract base class for the {@link Ann} interface.
@@ -9,8 +11,12 @@ package org.schwa.dr;
 public abstract class AbstractAnn implements Ann {
   /** The index of this annotation instance within a {@link Store}. **/
   protected Integer drIndex;
-  /** The lazy serialised data for this annotation instance. **/
-  protected byte[] drLazy;
+  /** The buffer containing the lazy serialised data for this annotation instance. **/
+  protected ByteBuffer drLazy;
+  /** The absolute index within drLazy at which the lazy serialised data begins. **/
+  protected int drLazyOffset;
+  /** The number of bytes of lazy serialised data. **/
+  protected int drLazyNBytes;
   /** The number of fields that are lazily stored for this annotation instance. **/
   protected int drLazyNElem;
 
@@ -38,9 +44,42 @@ public abstract class AbstractAnn implements Ann {
 
   @Override
   public final byte[] getDRLazy() {
+    if (drLazy == null)
+      return null;
+    if (drLazy.hasArray() && drLazy.arrayOffset() + drLazyOffset == 0 && drLazy.array().length == drLazyNBytes)
+      return drLazy.array();
+    final byte[] lazy = new byte[drLazyNBytes];
+    final ByteBuffer view = drLazy.duplicate();
+    view.position(drLazyOffset);
+    view.get(lazy);
+    return lazy;
+  }
+
+  /**
+   * If this annotation has lazily stored attribute data, returns the buffer which contains the
+   * lazy data without copying it. The lazy data occupies {@link AbstractAnn#getDRLazyNBytes} bytes
+   * of this buffer starting at the absolute index {@link AbstractAnn#getDRLazyOffset}. If not,
+   * this method returns null.
+   **/
+  public final ByteBuffer getDRLazyBuffer() {
     return drLazy;
   }
 
+  /**
+   * Returns the absolute index within {@link AbstractAnn#getDRLazyBuffer} at which the lazy data
+   * for this annotation instance begins.
+   **/
+  public final int getDRLazyOffset() {
+    return drLazyOffset;
+  }
+
+  /**
+   * Returns the number of bytes of lazily stored attribute data for this annotation instance.
+   **/
+  public final int getDRLazyNBytes() {
+    return drLazyNBytes;
+  }
+
   @Override
   public final int getDRLazyNElem() {
     return drLazyNElem;
@@ -53,7 +92,21 @@ public abstract class AbstractAnn implements Ann {
 
   @Override
   public final void setDRLazy(byte[] drLazy) {
+    if (drLazy == null)
+      setDRLazy(null, 0, 0);
+    else
+      setDRLazy(ByteBuffer.wrap(drLazy), 0, drLazy.length);
+  }
+
+  /**
+   * Sets the lazily stored attribute data for this annotation instance to be the drLazyNBytes
+   * bytes starting at the absolute index drLazyOffset of the provided buffer. The buffer is not
+   * copied.
+   **/
+  public final void setDRLazy(ByteBuffer drLazy, int drLazyOffset, int drLazyNBytes) {
     this.drLazy = drLazy;
+    this.drLazyOffset = drLazyOffset;
+    this.drLazyNBytes = drLazyNBytes;
   }
 
   @Override
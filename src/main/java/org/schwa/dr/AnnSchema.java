@@ -1,7 +1,10 @@
 package org.schwa.dr;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -14,12 +17,16 @@ public class AnnSchema {
   protected final String name;
   protected String serial;
   protected List<FieldSchema> fieldSchemas;
+  private final List<FieldSchema> fieldSchemasView;
+  private final Map<String, FieldSchema> fieldsByName;
 
   protected AnnSchema(Class<? extends Ann> klass, String name, String serial) {
     this.klass = klass;
     this.name = name;
     this.serial = serial;
     this.fieldSchemas = new ArrayList<FieldSchema>();
+    this.fieldSchemasView = Collections.unmodifiableList(fieldSchemas);
+    this.fieldsByName = new HashMap<String, FieldSchema>();
   }
 
   /**
@@ -27,6 +34,8 @@ public class AnnSchema {
    **/
   public void addField(FieldSchema fieldSchema) {
     fieldSchemas.add(fieldSchema);
+    if (!fieldsByName.containsKey(fieldSchema.getName()))
+      fieldsByName.put(fieldSchema.getName(), fieldSchema);
   }
 
   /**
@@ -48,17 +57,14 @@ public class AnnSchema {
    * name. This method returns null if no field matches.
    **/
   public FieldSchema getField(String name) {
-    for (FieldSchema field : fieldSchemas)
-      if (field.getName().equals(name))
-        return field;
-    return null;
+    return fieldsByName.get(name);
   }
 
   /**
-   * Returns a list of schema objects for all of the fields on this annotation class.
+   * Returns an unmodifiable list of schema objects for all of the fields on this annotation class.
    **/
   public List<FieldSchema> getFields() {
-    return fieldSchemas;
+    return fieldSchemasView;
   }
 
   /**
@@ -89,6 +95,41 @@ public class AnnSchema {
     this.serial = serial;
   }
 
+  /**
+   * Copies the fields of this schema onto the provided schema, which has no fields yet.
+   **/
+  void copyFields(final AnnSchema to) {
+    for (FieldSchema field : fieldSchemas)
+      to.addField(field.copy());
+  }
+
+  /**
+   * Resets the provided annotation instance so that it can be reused, clearing its registered
+   * fields to the default values for their types and discarding its lazy data. Fields which are
+   * not registered on this schema are left untouched.
+   **/
+  void reset(final Ann ann) {
+    try {
+      for (FieldSchema field : fieldSchemas)
+        field.clear(ann);
+    }
+    catch (IllegalAccessException e) {
+      throw new DocrepException(e);
+    }
+    ann.setDRLazy(null);
+    ann.setDRLazyNElem(0);
+  }
+
+  /**
+   * Returns an independent copy of this schema, whose serial names can be changed without
+   * affecting this schema.
+   **/
+  AnnSchema copy() {
+    final AnnSchema copy = new AnnSchema(klass, name, serial);
+    copyFields(copy);
+    return copy;
+  }
+
   public static AnnSchema create(Class<? extends Ann> klass, String name) {
     return new AnnSchema(klass, name, name);
   }
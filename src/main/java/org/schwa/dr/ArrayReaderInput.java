@@ -0,0 +1,113 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.msgpack.core.buffer.MessageBuffer;
+
+
+/**
+ * Internal {@link ReaderInput} over a region of a byte array which is already wholly in memory.
+ * The region is handed to the unpacker in one chunk, and previously decoded regions are provided
+ * as views onto the array, so lazy data refers directly to the array rather than being copied.
+ * An input can be repositioned over a new region via {@link ArrayReaderInput#reset}, so that a
+ * single input and its unpacker can be reused to decode many regions.
+ *
+ * @author Tim Dawborn
+ * @see ReaderInput
+ **/
+final class ArrayReaderInput extends ReaderInput {
+  private static final byte[] EMPTY = new byte[0];
+
+  private byte[] bytes;
+  private int offset;
+  private int length;
+  private Segment segment;
+  private boolean consumed;
+  private byte[] copy;  // Heap copy of the contents of a direct buffer, reused across resets.
+
+  public ArrayReaderInput() {
+    this(EMPTY, 0, 0);
+  }
+
+  public ArrayReaderInput(final byte[] bytes, final int offset, final int length) {
+    reset(ByteBuffer.wrap(bytes, offset, length));
+  }
+
+  /**
+   * Repositions the input over the remaining bytes of the provided buffer, which previously
+   * decoded regions are provided as views onto. Heap buffers are decoded in place. The unpacker
+   * cannot decode out of direct buffers on all JVMs (see {@link MappedReaderInput}), so the
+   * contents of a direct buffer are copied into an array owned by this input, which is reused by
+   * subsequent resets. The unpacker must be reset after the input is.
+   **/
+  public void reset(final ByteBuffer buffer) {
+    final ByteBuffer view = buffer.slice();
+    length = view.capacity();
+    if (view.hasArray()) {
+      bytes = view.array();
+      offset = view.arrayOffset();
+    }
+    else {
+      if (copy == null || copy.length < length)
+        copy = new byte[length];
+      view.duplicate().get(copy, 0, length);
+      bytes = copy;
+      offset = 0;
+    }
+    segment = new Segment(0, view);
+    consumed = false;
+  }
+
+  /**
+   * Repositions the input over the first length bytes of a scratch array which the caller reuses
+   * once decoding has finished. No views onto the array are provided, so lazy data is copied out
+   * of it. The unpacker must be reset after the input is.
+   **/
+  public void resetScratch(final byte[] bytes, final int length) {
+    this.bytes = bytes;
+    this.offset = 0;
+    this.length = length;
+    this.segment = null;
+    this.consumed = false;
+  }
+
+  @Override
+  public Segment getSegment(final long start, final long end) {
+    return (segment != null && segment.contains(start, end)) ? segment : null;
+  }
+
+  @Override
+  public boolean hasSegments() {
+    return segment != null;
+  }
+
+  @Override
+  public void mark(final long offset) {
+    // The whole array is always available.
+  }
+
+  @Override
+  public void unmark() {
+    // The whole array is always available.
+  }
+
+  @Override
+  public void writeTo(final long start, final long end, final OutputStream out) throws IOException {
+    if (start < 0 || end > length || start > end)
+      throw new ReaderException("Requested bytes [" + start + ", " + end + ") are outside of the input");
+    out.write(bytes, offset + (int) start, (int) (end - start));
+  }
+
+  @Override  // MessageBufferInput
+  public MessageBuffer next() throws IOException {
+    if (consumed || length == 0)
+      return null;
+    consumed = true;
+    return MessageBuffer.wrap(bytes).slice(offset, length);
+  }
+
+  @Override  // Closeable
+  public void close() throws IOException { }
+}
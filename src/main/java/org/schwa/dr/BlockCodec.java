@@ -0,0 +1,27 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+
+
+/**
+ * Compression codec used for the blocks of a block-compressed docrep container. Implementations
+ * must be safe to use from multiple threads at once, as blocks are compressed and decompressed
+ * concurrently.
+ *
+ * @author Tim Dawborn
+ * @see BlockWriter
+ * @see BlockReader
+ * @see DeflateCodec
+ **/
+public interface BlockCodec {
+  /**
+   * Returns the compressed form of the length bytes of data starting at offset.
+   **/
+  public byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+  /**
+   * Decompresses the length bytes of data starting at offset into out, which is exactly the size
+   * of the uncompressed block.
+   **/
+  public void decompress(byte[] data, int offset, int length, byte[] out) throws IOException;
+}
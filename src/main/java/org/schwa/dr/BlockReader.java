@@ -0,0 +1,222 @@
+package org.schwa.dr;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Reads in docrep documents of type T from a block-compressed container written by a
+ * {@link BlockWriter}, decompressing and decoding blocks on multiple threads. The calling thread
+ * only reads the block headers and the compressed bytes of each block. Each block is then
+ * decompressed and its documents decoded on an {@link ExecutorService}. Documents are still
+ * returned by the iterator in stream order, and at most maxInFlight blocks are read or decoded
+ * ahead of the caller at any one time, bounding memory use.
+ * <p>
+ * If the reader creates its own thread pool, the pool is shut down once the input is exhausted or
+ * {@link BlockReader#close} is called. A pool provided by the caller is never shut down.
+ *
+ * @author Tim Dawborn
+ * @see BlockWriter
+ **/
+public final class BlockReader <T extends Doc> implements Iterable<T>, Iterator<T> {
+  private final DataInputStream in;
+  private final DocSchema docSchema;
+  private final BlockCodec codec;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final int maxInFlight;
+  private final Queue<Future<List<T>>> inFlight;
+  private Iterator<T> block;
+  private boolean eof;
+
+  /**
+   * Constructs a new block-compressed docrep reader over the input stream, decompressing blocks
+   * with a {@link DeflateCodec} on nThreads threads owned by the reader.
+   *
+   * @param in The input stream to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param nThreads The number of decoding threads to use.
+   **/
+  public BlockReader(InputStream in, DocSchema docSchema, int nThreads) {
+    this(in, docSchema, new DeflateCodec(), BlockWriter.createExecutor(nThreads), true, nThreads*BlockWriter.DEFAULT_IN_FLIGHT_PER_THREAD);
+  }
+
+  /**
+   * Constructs a new block-compressed docrep reader over the input stream, decompressing blocks on
+   * the provided executor.
+   *
+   * @param in The input stream to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param codec The codec which the blocks were compressed with.
+   * @param executor The executor to decode blocks on. This is not shut down by the reader.
+   * @param maxInFlight The maximum number of blocks to read or decode ahead of the caller.
+   **/
+  public BlockReader(InputStream in, DocSchema docSchema, BlockCodec codec, ExecutorService executor, int maxInFlight) {
+    this(in, docSchema, codec, executor, false, maxInFlight);
+  }
+
+  private BlockReader(InputStream in, DocSchema docSchema, BlockCodec codec, ExecutorService executor, boolean ownsExecutor, int maxInFlight) {
+    if (maxInFlight <= 0)
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    this.in = new DataInputStream(in);
+    this.docSchema = docSchema;
+    this.codec = codec;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new ArrayDeque<Future<List<T>>>(maxInFlight);
+    this.block = Collections.<T>emptyList().iterator();
+    fill();
+  }
+
+  /**
+   * Returns this same object as an {@link Iterator} to comply with the {@link Iterable} interface.
+   **/
+  @Override  // Iterable<T>
+  public Iterator<T> iterator() {
+    return this;
+  }
+
+  /**
+   * Returns whether or not the reader iterator has any more documents to read in from the input
+   * stream, waiting for the next block to be decoded if required. If decoding the block failed,
+   * the exception is rethrown here.
+   **/
+  @Override  // Iterator<T>
+  public boolean hasNext() {
+    while (!block.hasNext()) {
+      final Future<List<T>> future = inFlight.poll();
+      if (future == null)
+        return false;
+      try {
+        block = future.get().iterator();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new ReaderException(e);
+      }
+      catch (ExecutionException e) {
+        close();
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        else if (cause instanceof Error)
+          throw (Error) cause;
+        throw new ReaderException(cause);
+      }
+      fill();
+    }
+    return true;
+  }
+
+  /**
+   * Returns the next document in stream order.
+   **/
+  @Override  // Iterator<T>
+  public T next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    return block.next();
+  }
+
+  /**
+   * This optional method from {@link Iterator} is unsupported.
+   *
+   * @throws UnsupportedOperationException
+   **/
+  @Override  // Iterator<T>
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops reading the input, cancels any blocks which are still in flight, and shuts down the
+   * thread pool if it is owned by this reader.
+   **/
+  public void close() {
+    eof = true;
+    for (Future<List<T>> future : inFlight)
+      future.cancel(true);
+    inFlight.clear();
+    block = Collections.<T>emptyList().iterator();
+    if (ownsExecutor)
+      executor.shutdownNow();
+  }
+
+  private void fill() {
+    while (!eof && inFlight.size() < maxInFlight) {
+      final Callable<List<T>> task;
+      try {
+        task = readBlock();
+      }
+      catch (IOException e) {
+        close();
+        throw new ReaderException(e);
+      }
+      if (task == null) {
+        eof = true;
+        if (ownsExecutor)
+          executor.shutdown();
+        break;
+      }
+      inFlight.add(executor.submit(task));
+    }
+  }
+
+  /**
+   * Reads the header and compressed bytes of the next block on the input, returning the task to
+   * decompress and decode it, or null if the end of the input has been reached.
+   **/
+  private Callable<List<T>> readBlock() throws IOException {
+    // <block> ::= <ndocs> <nbytes> <compressed_nbytes> <compressed_bytes>
+    // Only running out of input exactly between two blocks is the end of the container.
+    final int first = in.read();
+    if (first == -1)
+      return null;
+    final int ndocs;
+    final int nbytes;
+    final int compressedNBytes;
+    try {
+      ndocs = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+      nbytes = in.readInt();
+      compressedNBytes = in.readInt();
+    }
+    catch (EOFException e) {
+      throw new ReaderException("Unexpected end of input reading a block header");
+    }
+    if (ndocs <= 0 || nbytes <= 0 || compressedNBytes < 0)
+      throw new ReaderException("Invalid block header: ndocs=" + ndocs + " nbytes=" + nbytes + " compressed_nbytes=" + compressedNBytes);
+    final byte[] compressed = new byte[compressedNBytes];
+    in.readFully(compressed);
+
+    return new Callable<List<T>>() {
+      @Override
+      public List<T> call() throws IOException {
+        final byte[] bytes = new byte[nbytes];
+        codec.decompress(compressed, 0, compressed.length, bytes);
+
+        final Reader<T> reader = new Reader<T>(new ArrayReaderInput(bytes, 0, bytes.length), docSchema, 0);
+        final List<T> docs = new ArrayList<T>(ndocs);
+        while (reader.hasNext())
+          docs.add(reader.next());
+        if (docs.size() != ndocs)
+          throw new ReaderException("Block contains " + docs.size() + " documents but its header says " + ndocs);
+        return docs;
+      }
+    };
+  }
+}
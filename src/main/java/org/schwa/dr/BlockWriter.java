@@ -0,0 +1,275 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * <p>
+ * Writes out docrep documents into a block-compressed container, compressing blocks on multiple
+ * threads. Documents are serialised on the calling thread and grouped into blocks of roughly
+ * blockNBytes uncompressed bytes. Each block is compressed independently using a
+ * {@link BlockCodec} on an {@link ExecutorService}, and blocks are written out in document order.
+ * At most maxInFlight blocks are compressed ahead of the output at any one time.
+ * </p>
+ * <p>
+ * The container is a sequence of blocks, each of which is a 12 byte header of three big-endian
+ * 32-bit integers followed by the compressed block:
+ * </p>
+ * <pre>
+ * &lt;block&gt; ::= &lt;ndocs&gt; &lt;nbytes&gt; &lt;compressed_nbytes&gt; &lt;compressed_bytes&gt;
+ * </pre>
+ * <p>
+ * where nbytes is the length of the uncompressed block, which is the concatenation of ndocs
+ * docrep documents in the normal wire format. The container is read back using a
+ * {@link BlockReader} with the same codec.
+ * </p>
+ * <p>
+ * If serialising a document, compressing a block, or writing to the output stream fails, the
+ * blocks before the failed one have been written out, and neither it nor any later block is. The
+ * failure is rethrown from the call which encounters it, any blocks still in flight are cancelled,
+ * and every subsequent call throws a {@link WriterException}, so the container is never silently
+ * missing a block.
+ * </p>
+ * <p>
+ * {@link BlockWriter#close} must be called to write out the final block. If the writer creates its
+ * own thread pool, the pool is shut down on close. A pool provided by the caller is never shut
+ * down. The output stream is never closed.
+ * </p>
+ *
+ * @author Tim Dawborn
+ * @see BlockReader
+ **/
+public final class BlockWriter {
+  /** The default number of uncompressed bytes per block. **/
+  public static final int DEFAULT_BLOCK_NBYTES = 1 << 20;
+  /** The default maximum number of blocks in flight per compression thread. **/
+  public static final int DEFAULT_IN_FLIGHT_PER_THREAD = 2;
+
+  private final DataOutputStream out;
+  private final BlockCodec codec;
+  private final int blockNBytes;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final int maxInFlight;
+  private final Queue<Block> inFlight;
+  private final ByteArrayOutputStream buffer;
+  private final Writer writer;
+  private int ndocs;
+  private Throwable failure;
+  private boolean closed;
+
+  /** A block which is being compressed. **/
+  private static final class Block {
+    final int ndocs;
+    final int nbytes;
+    final Future<byte[]> compressed;
+
+    Block(final int ndocs, final int nbytes, final Future<byte[]> compressed) {
+      this.ndocs = ndocs;
+      this.nbytes = nbytes;
+      this.compressed = compressed;
+    }
+  }
+
+  /**
+   * Constructs a new block-compressed docrep writer over the output stream, compressing blocks
+   * with a {@link DeflateCodec} on nThreads threads owned by the writer.
+   *
+   * @param out The output stream to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   * @param nThreads The number of compression threads to use.
+   **/
+  public BlockWriter(OutputStream out, DocSchema docSchema, int nThreads) {
+    this(out, docSchema, new DeflateCodec(), DEFAULT_BLOCK_NBYTES, createExecutor(nThreads), true, nThreads*DEFAULT_IN_FLIGHT_PER_THREAD);
+  }
+
+  /**
+   * Constructs a new block-compressed docrep writer over the output stream, compressing blocks on
+   * the provided executor.
+   *
+   * @param out The output stream to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   * @param codec The codec to compress blocks with.
+   * @param blockNBytes The number of uncompressed bytes after which a block is ended.
+   * @param executor The executor to compress blocks on. This is not shut down by the writer.
+   * @param maxInFlight The maximum number of blocks to compress ahead of the output.
+   **/
+  public BlockWriter(OutputStream out, DocSchema docSchema, BlockCodec codec, int blockNBytes, ExecutorService executor, int maxInFlight) {
+    this(out, docSchema, codec, blockNBytes, executor, false, maxInFlight);
+  }
+
+  private BlockWriter(OutputStream out, DocSchema docSchema, BlockCodec codec, int blockNBytes, ExecutorService executor, boolean ownsExecutor, int maxInFlight) {
+    if (blockNBytes <= 0)
+      throw new IllegalArgumentException("blockNBytes must be positive");
+    if (maxInFlight <= 0)
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    this.out = new DataOutputStream(out);
+    this.codec = codec;
+    this.blockNBytes = blockNBytes;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new ArrayDeque<Block>(maxInFlight);
+    this.buffer = new ByteArrayOutputStream(blockNBytes + blockNBytes/8);
+    this.writer = new Writer(buffer, docSchema);
+  }
+
+  static ExecutorService createExecutor(final int nThreads) {
+    if (nThreads <= 0)
+      throw new IllegalArgumentException("nThreads must be positive");
+    return Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "docrep-block");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Serialises a docrep document into the current block, handing the block off for compression
+   * once it is full.
+   **/
+  public void write(final Doc doc) throws IOException {
+    checkUsable();
+    // A document which fails part way through leaves a partial document in the current block.
+    try {
+      writer.write(doc);
+    }
+    catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+    catch (RuntimeException e) {
+      fail(e);
+      throw e;
+    }
+    ndocs++;
+    if (buffer.size() >= blockNBytes)
+      endBlock();
+  }
+
+  /**
+   * Ends the current block, and waits for all of the blocks in flight to be compressed and written
+   * out to the output stream.
+   **/
+  public void flush() throws IOException {
+    checkUsable();
+    endBlock();
+    while (!inFlight.isEmpty())
+      writeBlock();
+    try {
+      out.flush();
+    }
+    catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Flushes the writer, and shuts down the thread pool if it is owned by this writer. Closing a
+   * writer which has failed does not throw again.
+   **/
+  public void close() throws IOException {
+    if (closed)
+      return;
+    try {
+      if (failure == null)
+        flush();
+    }
+    finally {
+      closed = true;
+      for (Block block : inFlight)
+        block.compressed.cancel(true);
+      inFlight.clear();
+      if (ownsExecutor)
+        executor.shutdownNow();
+    }
+  }
+
+  private void checkUsable() {
+    if (closed)
+      throw new WriterException("Cannot write to a closed BlockWriter");
+    if (failure != null)
+      throw new WriterException(failure);
+  }
+
+  /**
+   * Records the first failure, and cancels all of the blocks still in flight.
+   **/
+  private void fail(final Throwable e) {
+    failure = e;
+    for (Block block : inFlight)
+      block.compressed.cancel(true);
+    inFlight.clear();
+  }
+
+  private void endBlock() throws IOException {
+    if (ndocs == 0)
+      return;
+    final byte[] bytes = buffer.toByteArray();
+    final Block block = new Block(ndocs, bytes.length, executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return codec.compress(bytes, 0, bytes.length);
+      }
+    }));
+    buffer.reset();
+    ndocs = 0;
+
+    // Write out the finished blocks at the head of the queue, waiting if too many are in flight.
+    while (!inFlight.isEmpty() && (inFlight.size() >= maxInFlight || inFlight.peek().compressed.isDone()))
+      writeBlock();
+    inFlight.add(block);
+  }
+
+  /**
+   * Waits for the block at the head of the queue to be compressed, and writes it out.
+   **/
+  private void writeBlock() throws IOException {
+    final Block block = inFlight.poll();
+    final byte[] compressed;
+    try {
+      compressed = block.compressed.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(e);
+      throw new WriterException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      fail(cause);
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      else if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      else if (cause instanceof Error)
+        throw (Error) cause;
+      throw new WriterException(cause);
+    }
+    try {
+      out.writeInt(block.ndocs);
+      out.writeInt(block.nbytes);
+      out.writeInt(compressed.length);
+      out.write(compressed);
+    }
+    catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,483 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+
+/**
+ * Internal primitive array holding the values of one {@link dr.Field} annotated field for every
+ * row of a {@link ColumnStore}. Values are read from and written to the wire in exactly the same
+ * way as the corresponding {@link FieldCodec} reads and writes the field on an annotation
+ * instance, so columnar and object stores are interchangeable on the wire.
+ *
+ * @author Tim Dawborn
+ * @see ColumnStore
+ **/
+abstract class Column {
+  protected final Field field;
+
+  protected Column(final Field field) {
+    this.field = field;
+  }
+
+  public Field getField() {
+    return field;
+  }
+
+  /**
+   * Ensures that the column can hold at least capacity rows.
+   **/
+  public abstract void ensureCapacity(int capacity);
+
+  /**
+   * Resets the rows [from, to) to the default value for the type of the field.
+   **/
+  public abstract void clear(int from, int to);
+
+  /**
+   * Reads the next value from the unpacker into the provided row.
+   **/
+  public abstract void read(int row, MessageUnpacker unpacker) throws IOException;
+
+  /**
+   * Writes the fieldId and the value of the provided row to the packer, returning whether or not
+   * anything was written. Nothing is written for empty values.
+   **/
+  public abstract boolean write(MessagePacker packer, int fieldId, int row) throws IOException;
+
+  /**
+   * Returns the number of bytes which {@link Column#write} would write for the provided row, which
+   * is 0 if nothing would be written.
+   **/
+  public abstract int size(int fieldId, int row);
+
+  /**
+   * Copies the value of the provided row onto the field of the provided annotation instance.
+   **/
+  public abstract void copyTo(Ann ann, int row) throws IllegalAccessException;
+
+  /**
+   * Copies the value of the field on the provided annotation instance into the provided row.
+   **/
+  public abstract void copyFrom(Ann ann, int row) throws IllegalAccessException;
+
+  protected static int grow(final int length, final int capacity) {
+    return Math.max(capacity, Math.max(16, 2*length));
+  }
+
+
+  /**
+   * Returns the column for the provided field, which must be of one of the types in
+   * {@link DocSchema#ALLOWED_FIELD_KLASSES}.
+   **/
+  public static Column create(final Field field) {
+    final Class<?> klass = field.getType();
+    if (klass == String.class)
+      return new StringColumn(field);
+    else if (klass == ByteSlice.class)
+      return new ByteSliceColumn(field);
+    else if (klass == byte.class || klass == char.class || klass == short.class || klass == int.class)
+      return new IntColumn(field);
+    else if (klass == long.class)
+      return new LongColumn(field);
+    else if (klass == float.class)
+      return new FloatColumn(field);
+    else if (klass == double.class)
+      return new DoubleColumn(field);
+    else if (klass == boolean.class)
+      return new BooleanColumn(field);
+    throw new IllegalAnnotationException("Unknown type (" + klass + ") of field '" + field + "'");
+  }
+
+
+  /** Column for String fields. Absent values are null. **/
+  static final class StringColumn extends Column {
+    String[] values = new String[0];
+
+    StringColumn(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (values.length < capacity)
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(values, from, to, null);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      values[row] = unpacker.unpackString();
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      final String s = values[row];
+      if (s == null || s.isEmpty())
+        return false;
+      packer.packInt(fieldId);
+      packer.packString(s);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      final String s = values[row];
+      if (s == null || s.isEmpty())
+        return 0;
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfString(s);
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      field.set(ann, values[row]);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      values[row] = (String) field.get(ann);
+    }
+  }
+
+
+  /** Column for ByteSlice fields, held as parallel start and stop arrays. **/
+  static final class ByteSliceColumn extends Column {
+    long[] starts = new long[0];
+    long[] stops = new long[0];
+    boolean[] present = new boolean[0];
+
+    ByteSliceColumn(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (starts.length < capacity) {
+        final int length = grow(starts.length, capacity);
+        starts = Arrays.copyOf(starts, length);
+        stops = Arrays.copyOf(stops, length);
+        present = Arrays.copyOf(present, length);
+      }
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(starts, from, to, 0);
+      Arrays.fill(stops, from, to, 0);
+      Arrays.fill(present, from, to, false);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      final int npair = unpacker.unpackArrayHeader();
+      if (npair != 2)
+        throw new ReaderException("Invalid sized list read in for SLICE: expected 2 elements but found " + npair);
+      final long a = unpacker.unpackLong();
+      final long b = unpacker.unpackLong();
+      starts[row] = a;
+      stops[row] = a + b;
+      present[row] = true;
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      if (!present[row])
+        return false;
+      packer.packInt(fieldId);
+      packer.packArrayHeader(2);
+      packer.packLong(starts[row]);
+      packer.packLong(stops[row] - starts[row]);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      if (!present[row])
+        return 0;
+      return WriterHelper.sizeOfInt(fieldId) + 1 + WriterHelper.sizeOfInt(starts[row]) + WriterHelper.sizeOfInt(stops[row] - starts[row]);
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      field.set(ann, present[row] ? new ByteSlice(starts[row], stops[row]) : null);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      final ByteSlice slice = (ByteSlice) field.get(ann);
+      present[row] = slice != null;
+      starts[row] = (slice == null) ? 0 : slice.start;
+      stops[row] = (slice == null) ? 0 : slice.stop;
+    }
+  }
+
+
+  /**
+   * Column for byte, char, short, and int fields. The packer uses the smallest encoding for every
+   * integer, so packing the widened value is identical to packing the field's own type.
+   **/
+  static final class IntColumn extends Column {
+    private final Class<?> type;
+    int[] values = new int[0];
+
+    IntColumn(final Field field) {
+      super(field);
+      this.type = field.getType();
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (values.length < capacity)
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(values, from, to, 0);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      if (type == byte.class)
+        values[row] = unpacker.unpackByte();
+      else if (type == short.class)
+        values[row] = unpacker.unpackShort();
+      else if (type == char.class)
+        values[row] = (char) unpacker.unpackInt();
+      else
+        values[row] = unpacker.unpackInt();
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      packer.packInt(fieldId);
+      packer.packInt(values[row]);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(values[row]);
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      if (type == byte.class)
+        field.setByte(ann, (byte) values[row]);
+      else if (type == short.class)
+        field.setShort(ann, (short) values[row]);
+      else if (type == char.class)
+        field.setChar(ann, (char) values[row]);
+      else
+        field.setInt(ann, values[row]);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      if (type == char.class)
+        values[row] = field.getChar(ann);
+      else
+        values[row] = field.getInt(ann);
+    }
+  }
+
+
+  /** Column for long fields. **/
+  static final class LongColumn extends Column {
+    long[] values = new long[0];
+
+    LongColumn(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (values.length < capacity)
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(values, from, to, 0);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      values[row] = unpacker.unpackLong();
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      packer.packInt(fieldId);
+      packer.packLong(values[row]);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(values[row]);
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      field.setLong(ann, values[row]);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      values[row] = field.getLong(ann);
+    }
+  }
+
+
+  /** Column for float fields. **/
+  static final class FloatColumn extends Column {
+    float[] values = new float[0];
+
+    FloatColumn(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (values.length < capacity)
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(values, from, to, 0);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      values[row] = unpacker.unpackFloat();
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      packer.packInt(fieldId);
+      packer.packFloat(values[row]);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      return WriterHelper.sizeOfInt(fieldId) + 5;
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      field.setFloat(ann, values[row]);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      values[row] = field.getFloat(ann);
+    }
+  }
+
+
+  /** Column for double fields. **/
+  static final class DoubleColumn extends Column {
+    double[] values = new double[0];
+
+    DoubleColumn(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (values.length < capacity)
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(values, from, to, 0);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      values[row] = unpacker.unpackDouble();
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      packer.packInt(fieldId);
+      packer.packDouble(values[row]);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      return WriterHelper.sizeOfInt(fieldId) + 9;
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      field.setDouble(ann, values[row]);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      values[row] = field.getDouble(ann);
+    }
+  }
+
+
+  /** Column for boolean fields. **/
+  static final class BooleanColumn extends Column {
+    boolean[] values = new boolean[0];
+
+    BooleanColumn(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void ensureCapacity(final int capacity) {
+      if (values.length < capacity)
+        values = Arrays.copyOf(values, grow(values.length, capacity));
+    }
+
+    @Override
+    public void clear(final int from, final int to) {
+      Arrays.fill(values, from, to, false);
+    }
+
+    @Override
+    public void read(final int row, final MessageUnpacker unpacker) throws IOException {
+      values[row] = unpacker.unpackBoolean();
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final int row) throws IOException {
+      packer.packInt(fieldId);
+      packer.packBoolean(values[row]);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final int row) {
+      return WriterHelper.sizeOfInt(fieldId) + 1;
+    }
+
+    @Override
+    public void copyTo(final Ann ann, final int row) throws IllegalAccessException {
+      field.setBoolean(ann, values[row]);
+    }
+
+    @Override
+    public void copyFrom(final Ann ann, final int row) throws IllegalAccessException {
+      values[row] = field.getBoolean(ann);
+    }
+  }
+}
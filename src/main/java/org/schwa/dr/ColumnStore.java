@@ -0,0 +1,545 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.msgpack.core.MessagePacker;
+
+import org.schwa.dr.runtime.RTAnnSchema;
+import org.schwa.dr.runtime.RTFieldSchema;
+
+
+/**
+ * <p>
+ * A columnar implementation of docrep stores. Rather than keeping an annotation instance per row,
+ * the value of each {@link dr.Field} annotated field of the stored class is kept in its own
+ * primitive array, so a store of millions of tokens costs a handful of arrays rather than millions
+ * of objects. The stored class may only have {@link dr.Field} annotated fields, but other stores
+ * can point into a columnar store as normal. A columnar store is declared on a document class in
+ * the same way as a regular store, and has the same serialised form:
+ * </p>
+ * <pre>
+ *   &#64;dr.Store public ColumnStore&lt;Token&gt; tokens = new ColumnStore&lt;Token&gt;(Token.class);
+ * </pre>
+ * <p>
+ * Rows are accessed without allocating via a flyweight {@link ColumnStore.Cursor}, using column
+ * indices from {@link ColumnStore#getColumnIndex}. The {@link java.util.List} methods which return
+ * annotation instances, such as {@link ColumnStore#get} and {@link ColumnStore#iterator},
+ * materialise an instance for each row they return. A materialised instance is kept for the
+ * lifetime of the store, is returned again by subsequent calls, and from then on is the
+ * authoritative copy of its row: changes made to it are seen by cursors and are written out.
+ * </p>
+ *
+ * @author Tim Dawborn
+ **/
+public class ColumnStore<T extends Ann> extends Store<T> {
+  /** A byte array output stream which exposes its underlying array. **/
+  private static final class LazyBuffer extends ByteArrayOutputStream {
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  private final Class<T> klass;
+  private final Column[] columns;
+  private int capacity;
+  private LazyBuffer lazy;
+  private int[] lazyOffsets;
+  private int[] lazyNBytes;
+  private int[] lazyNElems;
+
+  /**
+   * Constructs a new empty columnar store for instances of the provided class.
+   **/
+  public ColumnStore(final Class<T> klass) {
+    this.klass = klass;
+    final List<Column> columns = new ArrayList<Column>();
+    for (Field field : klass.getFields())
+      if (field.getAnnotation(dr.Field.class) != null)
+        columns.add(Column.create(field));
+    this.columns = columns.toArray(new Column[columns.size()]);
+  }
+
+  /**
+   * Adds a new {@link Ann} instance to the store, setting the drIndex attribute in the process.
+   * The instance becomes the authoritative copy of its row.
+   **/
+  @Override
+  public boolean add(final T obj) {
+    super.add(obj);
+    final int row = items.size() - 1;
+    ensureCapacity(row + 1);
+    clearRows(row, row + 1);
+    return true;
+  }
+
+  /**
+   * @see ColumnStore#add(Ann)
+   **/
+  @Override
+  public boolean addAll(final Collection<? extends T> c) {
+    touch();
+    for (T obj : c)
+      if (obj.getDRIndex() != null)
+        throw new IllegalArgumentException("Cannot insert an object into a Store which is already in a store (drIndex=" + obj.getDRIndex() + ")");
+    for (T obj : c)
+      add(obj);
+    return !c.isEmpty();
+  }
+
+  /**
+   * Removes all rows from the store, setting the drIndex values of any materialised instances to
+   * null in the process.
+   **/
+  @Override
+  public void clear() {
+    setRaw(null);
+    reset(0);
+  }
+
+  @Override
+  public boolean contains(final Object o) {
+    materialiseAll();
+    return super.contains(o);
+  }
+
+  @Override
+  public boolean containsAll(final Collection<?> c) {
+    materialiseAll();
+    return super.containsAll(c);
+  }
+
+  /**
+   * Returns a new flyweight cursor over the rows of this store, positioned before the first row.
+   **/
+  public Cursor cursor() {
+    load();
+    return new Cursor(this);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    materialiseAll();
+    return super.equals(o);
+  }
+
+  /**
+   * Returns the annotation instance for the provided row, materialising it if required.
+   **/
+  @Override
+  public T get(final int index) {
+    touch();
+    final T obj = items.get(index);
+    return (obj == null) ? materialise(index) : obj;
+  }
+
+  /**
+   * Returns the index of the column for the field with the provided name, or -1 if the stored
+   * class has no such {@link dr.Field} annotated field.
+   **/
+  public int getColumnIndex(final String name) {
+    for (int c = 0; c != columns.length; c++)
+      if (columns[c].getField().getName().equals(name))
+        return c;
+    return -1;
+  }
+
+  /**
+   * Returns the number of columns in this store.
+   **/
+  public int getNColumns() {
+    return columns.length;
+  }
+
+  @Override
+  public int hashCode() {
+    materialiseAll();
+    return super.hashCode();
+  }
+
+  @Override
+  public int indexOf(final Object o) {
+    materialiseAll();
+    return super.indexOf(o);
+  }
+
+  /**
+   * Returns whether or not an annotation instance has been materialised for the provided row.
+   **/
+  public boolean isMaterialised(final int row) {
+    load();
+    return items.get(row) != null;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    materialiseAll();
+    return super.iterator();
+  }
+
+  @Override
+  public int lastIndexOf(final Object o) {
+    materialiseAll();
+    return super.lastIndexOf(o);
+  }
+
+  @Override
+  public ListIterator<T> listIterator() {
+    materialiseAll();
+    return super.listIterator();
+  }
+
+  @Override
+  public ListIterator<T> listIterator(final int index) {
+    materialiseAll();
+    return super.listIterator(index);
+  }
+
+  @Override
+  public Object[] toArray() {
+    materialiseAll();
+    return super.toArray();
+  }
+
+  @Override
+  public <E> E[] toArray(final E[] a) {
+    materialiseAll();
+    return super.toArray(a);
+  }
+
+
+  Column getColumn(final int column) {
+    return columns[column];
+  }
+
+  /**
+   * Returns the column index of each of the fields of the provided runtime schema, indexed by
+   * field id. Lazy fields and fields without a column have a column index of -1.
+   **/
+  int[] getColumnIds(final RTAnnSchema schema) {
+    int max = -1;
+    for (RTFieldSchema field : schema.getFields())
+      max = Math.max(max, field.getFieldId());
+    final int[] ids = new int[max + 1];
+    for (RTFieldSchema field : schema.getFields())
+      ids[field.getFieldId()] = field.isLazy() ? -1 : getColumnIndex(field.getDef().getName());
+    return ids;
+  }
+
+  /**
+   * Returns the stream that the raw lazy data of rows is appended to while reading.
+   **/
+  OutputStream getLazyOutput() {
+    if (lazy == null) {
+      lazy = new LazyBuffer();
+      lazyOffsets = new int[capacity];
+      lazyNBytes = new int[capacity];
+      lazyNElems = new int[capacity];
+    }
+    return lazy;
+  }
+
+  /**
+   * Returns the number of bytes appended to the lazy data stream so far.
+   **/
+  int getLazySize() {
+    return (lazy == null) ? 0 : lazy.size();
+  }
+
+  int getLazyNElem(final int row) {
+    return (lazyNElems == null) ? 0 : lazyNElems[row];
+  }
+
+  int getLazyNBytes(final int row) {
+    return (getLazyNElem(row) == 0) ? 0 : lazyNBytes[row];
+  }
+
+  /**
+   * Returns the materialised instance for the provided row, or null if there is none.
+   **/
+  T getMaterialised(final int row) {
+    return items.get(row);
+  }
+
+  /**
+   * Empties the store and then adds size rows with default values and no materialised instances.
+   **/
+  void reset(final int size) {
+    setLoader(null);
+    for (T obj : items)
+      if (obj != null)
+        obj.setDRIndex(null);
+    items.clear();
+    for (int i = 0; i != size; i++)
+      items.add(null);
+    ensureCapacity(size);
+    clearRows(0, size);
+    if (lazy != null)
+      lazy.reset();
+  }
+
+  /**
+   * Records that the nbytes bytes at the provided offset in the lazy data stream are the raw lazy
+   * data of the provided row, containing nelem fields.
+   **/
+  void setLazy(final int row, final int offset, final int nbytes, final int nelem) {
+    lazyOffsets[row] = offset;
+    lazyNBytes[row] = nbytes;
+    lazyNElems[row] = nelem;
+  }
+
+  /**
+   * Writes the raw lazy data of the provided row to the output stream.
+   **/
+  void writeLazy(final int row, final OutputStream out) throws IOException {
+    if (getLazyNElem(row) != 0)
+      out.write(lazy.getBuffer(), lazyOffsets[row], lazyNBytes[row]);
+  }
+
+  /**
+   * Writes the raw lazy data of the provided row to the packer.
+   **/
+  void writeLazy(final int row, final MessagePacker packer) throws IOException {
+    if (getLazyNElem(row) != 0)
+      packer.writePayload(lazy.getBuffer(), lazyOffsets[row], lazyNBytes[row]);
+  }
+
+
+  private void clearRows(final int from, final int to) {
+    for (Column column : columns)
+      column.clear(from, to);
+    if (lazyNElems != null)
+      Arrays.fill(lazyNElems, from, to, 0);
+  }
+
+  private void ensureCapacity(final int size) {
+    if (size <= capacity)
+      return;
+    capacity = Math.max(size, 2*capacity);
+    for (Column column : columns)
+      column.ensureCapacity(capacity);
+    if (lazy != null) {
+      lazyOffsets = Arrays.copyOf(lazyOffsets, capacity);
+      lazyNBytes = Arrays.copyOf(lazyNBytes, capacity);
+      lazyNElems = Arrays.copyOf(lazyNElems, capacity);
+    }
+  }
+
+  private T materialise(final int row) {
+    final T obj;
+    try {
+      obj = klass.newInstance();
+      for (Column column : columns)
+        column.copyTo(obj, row);
+    }
+    catch (IllegalAccessException e) {
+      throw new DocrepException(e);
+    }
+    catch (InstantiationException e) {
+      throw new DocrepException(e);
+    }
+    if (getLazyNElem(row) != 0) {
+      obj.setDRLazy(Arrays.copyOfRange(lazy.getBuffer(), lazyOffsets[row], lazyOffsets[row] + lazyNBytes[row]));
+      obj.setDRLazyNElem(lazyNElems[row]);
+    }
+    obj.setDRIndex(row);
+    items.set(row, obj);
+    return obj;
+  }
+
+  private void materialiseAll() {
+    load();
+    for (int row = 0; row != items.size(); row++)
+      if (items.get(row) == null)
+        materialise(row);
+  }
+
+  /**
+   * Copies the values of the materialised instance of the provided row, if any, into the columns.
+   **/
+  private void pull(final int row) {
+    final T obj = items.get(row);
+    if (obj == null)
+      return;
+    try {
+      for (Column column : columns)
+        column.copyFrom(obj, row);
+    }
+    catch (IllegalAccessException e) {
+      throw new DocrepException(e);
+    }
+  }
+
+  /**
+   * Copies the value of the provided column onto the materialised instance of the provided row,
+   * if any, after a cursor has written to the column. The store no longer matches the raw bytes it
+   * was read in from, so they are discarded.
+   **/
+  private void push(final int row, final Column column) {
+    setRaw(null);
+    final T obj = items.get(row);
+    if (obj == null)
+      return;
+    try {
+      column.copyTo(obj, row);
+    }
+    catch (IllegalAccessException e) {
+      throw new DocrepException(e);
+    }
+  }
+
+
+  /**
+   * A flyweight cursor over the rows of a {@link ColumnStore}. Values are read and written by
+   * column index (see {@link ColumnStore#getColumnIndex}) for the row the cursor is positioned on.
+   * Reading a value using an accessor which does not match the type of the column's field throws a
+   * {@link ClassCastException}. byte, char, short, and int fields are all accessed via
+   * {@link Cursor#getInt} and {@link Cursor#setInt}.
+   **/
+  public static final class Cursor {
+    private final ColumnStore<?> store;
+    private int row;
+
+    private Cursor(final ColumnStore<?> store) {
+      this.store = store;
+      this.row = -1;
+    }
+
+    /**
+     * Returns the row that the cursor is positioned on.
+     **/
+    public int getRow() {
+      return row;
+    }
+
+    /**
+     * Positions the cursor on the provided row.
+     **/
+    public void moveTo(final int row) {
+      if (row < 0 || row >= store.size())
+        throw new IndexOutOfBoundsException("Index: " + row + ", Size: " + store.size());
+      this.row = row;
+    }
+
+    /**
+     * Advances the cursor to the next row, returning false if there are no more rows.
+     **/
+    public boolean next() {
+      if (row + 1 >= store.size())
+        return false;
+      row++;
+      return true;
+    }
+
+    public boolean getBoolean(final int column) {
+      store.pull(row);
+      return ((Column.BooleanColumn) store.columns[column]).values[row];
+    }
+
+    public double getDouble(final int column) {
+      store.pull(row);
+      return ((Column.DoubleColumn) store.columns[column]).values[row];
+    }
+
+    public float getFloat(final int column) {
+      store.pull(row);
+      return ((Column.FloatColumn) store.columns[column]).values[row];
+    }
+
+    public int getInt(final int column) {
+      store.pull(row);
+      return ((Column.IntColumn) store.columns[column]).values[row];
+    }
+
+    public long getLong(final int column) {
+      store.pull(row);
+      return ((Column.LongColumn) store.columns[column]).values[row];
+    }
+
+    /**
+     * Returns the start of the {@link ByteSlice} in the provided column, which is only meaningful
+     * if {@link Cursor#hasSlice} is true.
+     **/
+    public long getSliceStart(final int column) {
+      store.pull(row);
+      return ((Column.ByteSliceColumn) store.columns[column]).starts[row];
+    }
+
+    /**
+     * Returns the stop of the {@link ByteSlice} in the provided column, which is only meaningful
+     * if {@link Cursor#hasSlice} is true.
+     **/
+    public long getSliceStop(final int column) {
+      store.pull(row);
+      return ((Column.ByteSliceColumn) store.columns[column]).stops[row];
+    }
+
+    public String getString(final int column) {
+      store.pull(row);
+      return ((Column.StringColumn) store.columns[column]).values[row];
+    }
+
+    /**
+     * Returns whether or not the {@link ByteSlice} in the provided column is non-null.
+     **/
+    public boolean hasSlice(final int column) {
+      store.pull(row);
+      return ((Column.ByteSliceColumn) store.columns[column]).present[row];
+    }
+
+    public void setBoolean(final int column, final boolean value) {
+      final Column.BooleanColumn c = (Column.BooleanColumn) store.columns[column];
+      c.values[row] = value;
+      store.push(row, c);
+    }
+
+    public void setDouble(final int column, final double value) {
+      final Column.DoubleColumn c = (Column.DoubleColumn) store.columns[column];
+      c.values[row] = value;
+      store.push(row, c);
+    }
+
+    public void setFloat(final int column, final float value) {
+      final Column.FloatColumn c = (Column.FloatColumn) store.columns[column];
+      c.values[row] = value;
+      store.push(row, c);
+    }
+
+    public void setInt(final int column, final int value) {
+      final Column.IntColumn c = (Column.IntColumn) store.columns[column];
+      c.values[row] = value;
+      store.push(row, c);
+    }
+
+    public void setLong(final int column, final long value) {
+      final Column.LongColumn c = (Column.LongColumn) store.columns[column];
+      c.values[row] = value;
+      store.push(row, c);
+    }
+
+    /**
+     * Sets the {@link ByteSlice} in the provided column to [start, stop).
+     **/
+    public void setSlice(final int column, final long start, final long stop) {
+      final Column.ByteSliceColumn c = (Column.ByteSliceColumn) store.columns[column];
+      c.starts[row] = start;
+      c.stops[row] = stop;
+      c.present[row] = true;
+      store.push(row, c);
+    }
+
+    public void setString(final int column, final String value) {
+      final Column.StringColumn c = (Column.StringColumn) store.columns[column];
+      c.values[row] = value;
+      store.push(row, c);
+    }
+  }
+}
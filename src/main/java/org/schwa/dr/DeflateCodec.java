@@ -0,0 +1,76 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * {@link BlockCodec} which compresses blocks using zlib via {@link Deflater} and {@link Inflater}.
+ * This is the default codec for block-compressed docrep containers.
+ *
+ * @author Tim Dawborn
+ **/
+public final class DeflateCodec implements BlockCodec {
+  private final int level;
+
+  /**
+   * Constructs a new codec using the default compression level.
+   **/
+  public DeflateCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Constructs a new codec using the provided compression level (0-9, see {@link Deflater}).
+   **/
+  public DeflateCodec(int level) {
+    if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+      throw new IllegalArgumentException("Invalid compression level " + level);
+    this.level = level;
+  }
+
+  @Override
+  public byte[] compress(final byte[] data, final int offset, final int length) {
+    final Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(length/2 + 64);
+      final byte[] buffer = new byte[8 * 1024];
+      while (!deflater.finished()) {
+        final int n = deflater.deflate(buffer);
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  @Override
+  public void decompress(final byte[] data, final int offset, final int length, final byte[] out) throws IOException {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, offset, length);
+      int nbytes = 0;
+      while (nbytes != out.length) {
+        final int n = inflater.inflate(out, nbytes, out.length - nbytes);
+        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        nbytes += n;
+      }
+      if (nbytes != out.length)
+        throw new IOException("Compressed block does not inflate to " + out.length + " bytes");
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    finally {
+      inflater.end();
+    }
+  }
+}
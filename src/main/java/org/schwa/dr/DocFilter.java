@@ -0,0 +1,19 @@
+package org.schwa.dr;
+
+
+/**
+ * A predicate over documents which is evaluated by a {@link Reader} before a document is
+ * constructed, using only a selected set of the document's own fields. Documents which are rejected
+ * are skipped over without decoding or allocating any of their stores.
+ *
+ * @author Tim Dawborn
+ * @see Reader#setFilter
+ **/
+public interface DocFilter<T extends Doc> {
+  /**
+   * Returns whether or not the document should be read in. Only the fields selected when the
+   * filter was set on the {@link Reader} have been decoded on the provided document, which is a
+   * scratch instance that is reused between calls and must not be retained.
+   **/
+  public boolean accept(T doc);
+}
@@ -0,0 +1,172 @@
+package org.schwa.dr;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import org.msgpack.core.MessageUnpacker;
+
+
+/**
+ * An index of the byte offsets of each document in a docrep stream, allowing a {@link Reader} to
+ * seek directly to the Nth document via {@link Reader#seek(DocIndex, int)}. An index is built by
+ * scanning a stream with {@link DocIndex#build}, which only reads the stream headers and the
+ * <code>&lt;instances_nbytes&gt;</code> prefixes, skipping over all of the instance data without
+ * decoding it.
+ * <p>
+ * An index can be saved as a sidecar file via {@link DocIndex#write} and later reopened via
+ * {@link DocIndex#open}, which memory maps the sidecar so that looking up an offset is O(1)
+ * without needing to load the whole index. The sidecar file format is:
+ * <pre>
+ *   &lt;ndocs&gt; &lt;offset&gt;{ndocs + 1}
+ * </pre>
+ * where each value is a big-endian 8 byte integer. The final offset is the offset of the end of
+ * the stream, so the serialised bytes of document i lie in [offset(i), offset(i + 1)).
+ *
+ * @author Tim Dawborn
+ **/
+public final class DocIndex {
+  private final LongBuffer offsets;
+  private final int ndocs;
+
+  private DocIndex(final LongBuffer offsets, final int ndocs) {
+    this.offsets = offsets;
+    this.ndocs = ndocs;
+  }
+
+  /**
+   * Returns the byte offset at which the document with the provided index starts. Offsets are
+   * relative to the start of the stream that the index was built from, or are absolute positions
+   * within the file if the index was built from a {@link FileChannel}. If docIndex is the number
+   * of documents, the offset of the end of the stream is returned.
+   **/
+  public long getOffset(final int docIndex) {
+    if (docIndex < 0 || docIndex > ndocs)
+      throw new IndexOutOfBoundsException("Document index " + docIndex + " is out of range for an index of " + ndocs + " documents");
+    return offsets.get(docIndex);
+  }
+
+  /**
+   * Returns the number of serialised bytes of the document with the provided index.
+   **/
+  public long getNBytes(final int docIndex) {
+    return getOffset(docIndex + 1) - getOffset(docIndex);
+  }
+
+  /**
+   * Returns the number of documents in the index.
+   **/
+  public int size() {
+    return ndocs;
+  }
+
+  /**
+   * Writes this index out to the provided output stream in the sidecar file format.
+   **/
+  public void write(final OutputStream out) throws IOException {
+    final DataOutputStream dos = new DataOutputStream(out);
+    dos.writeLong(ndocs);
+    for (int i = 0; i <= ndocs; i++)
+      dos.writeLong(offsets.get(i));
+    dos.flush();
+  }
+
+
+  /**
+   * Builds an index for all of the documents remaining in the provided input stream. Offsets are
+   * relative to the current position of the input stream.
+   **/
+  public static DocIndex build(final InputStream in) throws IOException {
+    return build(new StreamReaderInput(in, ReaderInput.DEFAULT_BUFFER_SIZE), 0);
+  }
+
+  /**
+   * Builds an index for all of the documents in the provided channel, starting from the current
+   * position of the channel. Offsets are absolute positions within the file.
+   **/
+  public static DocIndex build(final FileChannel channel) throws IOException {
+    return build(new StreamReaderInput(channel, ReaderInput.DEFAULT_BUFFER_SIZE), channel.position());
+  }
+
+  private static DocIndex build(final ReaderInput in, final long origin) throws IOException {
+    final MessageUnpacker unpacker = new MessageUnpacker(in);
+    long[] offsets = new long[1024];
+    int ndocs = 0;
+    while (true) {
+      if (ndocs + 1 == offsets.length) {
+        final long[] tmp = new long[2*offsets.length];
+        System.arraycopy(offsets, 0, tmp, 0, offsets.length);
+        offsets = tmp;
+      }
+      offsets[ndocs] = origin + unpacker.getTotalReadBytes();
+      if (!skipDoc(unpacker))
+        break;
+      ndocs++;
+    }
+    return new DocIndex(LongBuffer.wrap(offsets, 0, ndocs + 1), ndocs);
+  }
+
+  /**
+   * Opens an index previously saved via {@link DocIndex#write}, starting from the current position
+   * of the provided channel. The index is memory mapped rather than being read in.
+   **/
+  public static DocIndex open(final FileChannel channel) throws IOException {
+    final long position = channel.position();
+    final long size = channel.size() - position;
+    if (size < 8)
+      throw new ReaderException("Document index is too short (" + size + " bytes)");
+    final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    final long ndocs = mapped.getLong(0);
+    if (ndocs < 0 || ndocs >= Integer.MAX_VALUE || size != 8*(ndocs + 2))
+      throw new ReaderException("Document index of " + size + " bytes is malformed (" + ndocs + " documents)");
+    mapped.position(8);
+    return new DocIndex(mapped.slice().asLongBuffer(), (int) ndocs);
+  }
+
+
+  /**
+   * Skips over the next document on the unpacker without decoding its instances. Returns false if
+   * the end of the stream was reached instead.
+   **/
+  static boolean skipDoc(final MessageUnpacker unpacker) throws IOException {
+    // <doc> ::= <wire_version> <klasses> <stores> <doc_instance> <instances_groups>
+    byte wireVersion;
+    try {
+      wireVersion = unpacker.unpackByte();
+    }
+    catch (EOFException e) {
+      return false;
+    }
+    if (wireVersion != Reader.WIRE_VERSION)
+      throw new ReaderException("Invalid wire format version. Stream has version " + wireVersion + " but I can only read version " + Reader.WIRE_VERSION + ". Ensure the input is not plain text.");
+
+    // <klasses> ::= [ <klass> ]
+    unpacker.skipValue();
+
+    // <stores> ::= [ <store> ]
+    final int nstores = unpacker.unpackArrayHeader();
+    for (int n = 0; n != nstores; n++)
+      unpacker.skipValue();
+
+    // <doc_instance> ::= <instances_nbytes> <instance>
+    // <instances_group>  ::= <instances_nbytes> <instances>
+    for (int n = 0; n != nstores + 1; n++)
+      unpacker.skipBytes(unpackNBytes(unpacker));
+    return true;
+  }
+
+  /**
+   * Reads an <code>&lt;instances_nbytes&gt;</code> value from the unpacker.
+   **/
+  static int unpackNBytes(final MessageUnpacker unpacker) throws IOException {
+    final long nbytes = unpacker.unpackLong();
+    if (nbytes > Integer.MAX_VALUE)
+      throw new ReaderException("<instances_nbytes> is too large for Java (" + nbytes + ")");
+    return (int) nbytes;
+  }
+}
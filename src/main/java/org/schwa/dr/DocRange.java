@@ -0,0 +1,150 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A contiguous range of documents within a docrep file, located via a {@link DocIndex}. A range
+ * knows exactly how many documents it contains, and can be split at a document boundary into two
+ * ranges of roughly equal size via {@link DocRange#trySplit}, so that the documents of a file can
+ * be divided up and decoded on multiple threads. Each iterator over a range reads the documents
+ * in the range using its own memory mapped {@link Reader}, so different ranges over the same
+ * channel can be iterated over concurrently.
+ * <p>
+ * Splitting follows the same contract as <code>java.util.Spliterator</code>: the first half of the
+ * range is returned as a new range, and this range is updated to cover the second half.
+ *
+ * @author Tim Dawborn
+ * @see DocIndex
+ * @see Reader#createMapped
+ **/
+public final class DocRange <T extends Doc> implements Iterable<T> {
+  private final FileChannel channel;
+  private final DocSchema docSchema;
+  private final DocIndex index;
+  private int from;
+  private final int to;
+
+  private DocRange(final FileChannel channel, final DocSchema docSchema, final DocIndex index, final int from, final int to) {
+    this.channel = channel;
+    this.docSchema = docSchema;
+    this.index = index;
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * Returns the index of the first document in this range.
+   **/
+  public int getFrom() {
+    return from;
+  }
+
+  /**
+   * Returns one past the index of the last document in this range.
+   **/
+  public int getTo() {
+    return to;
+  }
+
+  /**
+   * Returns the number of documents in this range.
+   **/
+  public int size() {
+    return to - from;
+  }
+
+  /**
+   * Splits this range in two at the document boundary closest to halfway through its bytes,
+   * returning a new range for the first part and updating this range to cover the remainder.
+   * Ranges of fewer than two documents cannot be split, and null is returned.
+   **/
+  public DocRange<T> trySplit() {
+    if (to - from < 2)
+      return null;
+
+    // Split on bytes rather than documents, so that both halves take roughly as long to decode.
+    final long middle = index.getOffset(from) + (index.getOffset(to) - index.getOffset(from)) / 2;
+    int lo = from + 1;
+    int hi = to - 1;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (index.getOffset(mid) < middle)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    final DocRange<T> prefix = new DocRange<T>(channel, docSchema, index, from, lo);
+    from = lo;
+    return prefix;
+  }
+
+  /**
+   * Returns a new iterator over the documents in this range.
+   **/
+  @Override  // Iterable<T>
+  public Iterator<T> iterator() {
+    final Reader<T> reader;
+    try {
+      reader = Reader.createMapped(channel, docSchema);
+    }
+    catch (IOException e) {
+      throw new ReaderException(e);
+    }
+    if (from != to)
+      reader.seek(index, from);
+
+    final int n = to - from;
+    return new Iterator<T>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i != n;
+      }
+
+      @Override
+      public T next() {
+        if (i == n)
+          throw new NoSuchElementException();
+        final T doc = reader.next();
+        if (doc == null)
+          throw new ReaderException("The input ended before document " + (from + i) + " in the index");
+        i++;
+        return doc;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Constructs a new range over all of the documents in the file underlying the provided channel.
+   *
+   * @param channel The file channel to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param index The offset index for the file.
+   **/
+  public static <T extends Doc> DocRange<T> create(final FileChannel channel, final DocSchema docSchema, final DocIndex index) {
+    return new DocRange<T>(channel, docSchema, index, 0, index.size());
+  }
+
+  /**
+   * Constructs a new range over all of the documents in the file underlying the provided channel,
+   * building the offset index for the file by reading through it from the channel's current
+   * position.
+   *
+   * @param channel The file channel to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   **/
+  public static <T extends Doc> DocRange<T> create(final FileChannel channel, final DocSchema docSchema) throws IOException {
+    return create(channel, docSchema, DocIndex.build(channel));
+  }
+}
@@ -6,13 +6,19 @@ import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
- * Schema class for docrep annotation {@link Doc} implementations.
+ * Schema class for docrep annotation {@link Doc} implementations. The reflective traversal of a
+ * document class is performed once per class and cached process-wide; {@link DocSchema#create}
+ * hands out independent copies of the cached schema, so that changing serial names on one schema
+ * does not affect any other.
  *
  * @author Tim Dawborn
  **/
@@ -20,14 +26,24 @@ public final class DocSchema extends AnnSchema {
   public static final Class<?>[] ALLOWED_FIELD_KLASSES = {byte.class, char.class, short.class, int.class, long.class, float.class, double.class, boolean.class, String.class, ByteSlice.class};
   public static final Class<? extends Annotation>[] ANNOTATION_KLASSES = (Class<? extends Annotation>[]) new Class<?>[]{dr.Field.class, dr.Pointer.class, dr.SelfPointer.class, dr.Store.class};
 
+  /** The traversed schema of each document class, which are only ever copied. **/
+  private static final ConcurrentMap<Class<?>, DocSchema> REGISTRY = new ConcurrentHashMap<Class<?>, DocSchema>();
+
   protected List<AnnSchema> annSchemas;
   protected List<StoreSchema> storeSchemas;
+  private final List<AnnSchema> annSchemasView;
+  private final List<StoreSchema> storeSchemasView;
+  private final Map<Class<? extends Ann>, AnnSchema> schemasByKlass;
+  private final Map<String, StoreSchema> storesByName;
 
-  private DocSchema(Class<? extends Ann> klass, String name) {
-    super(klass, name, "__meta__");
+  private DocSchema(Class<? extends Ann> klass, String name, String serial) {
+    super(klass, name, serial);
     annSchemas = new ArrayList<AnnSchema>();
     storeSchemas = new ArrayList<StoreSchema>();
-    traverseDocKlass();
+    annSchemasView = Collections.unmodifiableList(annSchemas);
+    storeSchemasView = Collections.unmodifiableList(storeSchemas);
+    schemasByKlass = new HashMap<Class<? extends Ann>, AnnSchema>();
+    storesByName = new HashMap<String, StoreSchema>();
   }
 
   /**
@@ -35,6 +51,8 @@ public final class DocSchema extends AnnSchema {
    **/
   public void addSchema(final AnnSchema annSchema) {
     annSchemas.add(annSchema);
+    if (!schemasByKlass.containsKey(annSchema.getKlass()))
+      schemasByKlass.put(annSchema.getKlass(), annSchema);
   }
 
   /**
@@ -42,6 +60,8 @@ public final class DocSchema extends AnnSchema {
    **/
   public void addStore(final StoreSchema storeSchema) {
     storeSchemas.add(storeSchema);
+    if (!storesByName.containsKey(storeSchema.getName()))
+      storesByName.put(storeSchema.getName(), storeSchema);
   }
 
   /**
@@ -49,17 +69,15 @@ public final class DocSchema extends AnnSchema {
    * provided class. This method returns null if no annotation class matches.
    **/
   public AnnSchema getSchema(final Class<? extends Ann> klass) {
-    for (AnnSchema ann : annSchemas)
-      if (ann.getKlass().equals(klass))
-        return ann;
-    return null;
+    return schemasByKlass.get(klass);
   }
 
   /**
-   * Returns a list of schema objects for all annotation types that this document contains.
+   * Returns an unmodifiable list of schema objects for all annotation types that this document
+   * contains.
    **/
   public List<AnnSchema> getSchemas() {
-    return annSchemas;
+    return annSchemasView;
   }
 
   /**
@@ -67,17 +85,14 @@ public final class DocSchema extends AnnSchema {
    * name. This method returns null if no field matches.
    **/
   public StoreSchema getStore(final String name) {
-    for (StoreSchema store : storeSchemas)
-      if (store.getName().equals(name))
-        return store;
-    return null;
+    return storesByName.get(name);
   }
 
   /**
-   * Returns a list of schema objects for all of the stores on this annotation class.
+   * Returns an unmodifiable list of schema objects for all of the stores on this annotation class.
    **/
   public List<StoreSchema> getStores() {
-    return storeSchemas;
+    return storeSchemasView;
   }
 
   /**
@@ -100,7 +115,7 @@ public final class DocSchema extends AnnSchema {
     for (Field field : klass.getFields()) {
       final Class<?> fieldKlass = field.getType();
       final dr.Store drStore = field.getAnnotation(dr.Store.class);
-      if (fieldKlass != Store.class || drStore == null)
+      if ((fieldKlass != Store.class && fieldKlass != ColumnStore.class) || drStore == null)
         continue;
 
       ensureNoOtherAnnotations(field, dr.Store.class);
@@ -119,8 +134,10 @@ public final class DocSchema extends AnnSchema {
       final StoreSchema storeSchema = StoreSchema.create(field, storedKlass, drStore);
       addStore(storeSchema);
 
-      // Create the AnnSchema object for tyhe stored class.
-      AnnSchema annSchema;  // FIXME this will create duplicates if the klass is already seen in another store.
+      // Create the AnnSchema object for the stored class, unless another store has already done so.
+      if (getSchema(storedKlass) != null)
+        continue;
+      AnnSchema annSchema;
       if (drAnn.serial().isEmpty())
         annSchema = AnnSchema.create(storedKlass, storedKlass.getSimpleName());
       else
@@ -132,6 +149,15 @@ public final class DocSchema extends AnnSchema {
     traverseAnnSchema(this);
     for (AnnSchema s : annSchemas)
       traverseAnnSchema(s);
+
+    // Columnar stores can only hold classes whose fields are all dr.Field fields.
+    for (StoreSchema storeSchema : storeSchemas) {
+      if (storeSchema.getField().getType() != ColumnStore.class)
+        continue;
+      for (FieldSchema field : getSchema(storeSchema.getStoredKlass()).getFields())
+        if (field.isPointer() || field.isSelfPointer())
+          throw new IllegalAnnotationException("Field '" + field.getField() + "' cannot be a pointer as its class is stored in the ColumnStore '" + storeSchema.getField() + "'");
+    }
   }
 
   private void traverseAnnSchema(final AnnSchema annSchema) {
@@ -192,6 +218,7 @@ public final class DocSchema extends AnnSchema {
     // * org.schwa.dr.Slice
     // * T, for T extends org.schwa.dr.Ann
     // * java.util.List<T>, for T extends org.schwa.dr.Ann
+    // * org.schwa.dr.Pointers<T>, for T extends org.schwa.dr.Ann
     FieldSchema fieldSchema;
     final Class<?> fieldKlass = field.getType();
     if (fieldKlass == Slice.class) {
@@ -212,6 +239,11 @@ public final class DocSchema extends AnnSchema {
       final Class<? extends Ann> pointedToKlass = (Class<? extends Ann>) listKlass;
       fieldSchema = FieldSchema.createPointers(field, drPointer, pointedToKlass);
     }
+    else if (fieldKlass == Pointers.class) {
+      final Type[] types = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
+      final Class<? extends Ann> pointedToKlass = (Class<? extends Ann>) types[0];
+      fieldSchema = FieldSchema.createPointers(field, drPointer, pointedToKlass);
+    }
     else
       throw new IllegalAnnotationException("Field '" + field + "' which is annotated with dr.Pointer is of an invalid type");
     annSchema.addField(fieldSchema);
@@ -222,6 +254,7 @@ public final class DocSchema extends AnnSchema {
     // * org.schwa.dr.Slice
     // * T, for T extends org.schwa.dr.Ann
     // * java.util.List<T>, for T extends org.schwa.dr.Ann
+    // * org.schwa.dr.Pointers<T>, for T extends org.schwa.dr.Ann
     FieldSchema fieldSchema;
     final Class<?> fieldKlass = field.getType();
     if (fieldKlass == Slice.class) {
@@ -242,14 +275,48 @@ public final class DocSchema extends AnnSchema {
       final Class<? extends Ann> pointedToKlass = (Class<? extends Ann>) listKlass;
       fieldSchema = FieldSchema.createSelfPointers(field, drSelfPointer, pointedToKlass);
     }
+    else if (fieldKlass == Pointers.class) {
+      final Type[] types = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
+      final Class<? extends Ann> pointedToKlass = (Class<? extends Ann>) types[0];
+      fieldSchema = FieldSchema.createSelfPointers(field, drSelfPointer, pointedToKlass);
+    }
     else
       throw new IllegalAnnotationException("Field '" + field + "' which is annotated with dr.Pointer is of an invalid type");
     annSchema.addField(fieldSchema);
   }
 
+  /**
+   * Returns an independent copy of this schema. The annotation schemas of the copy are shared
+   * between its stores in the same way as they are by this schema.
+   **/
+  @Override
+  DocSchema copy() {
+    final DocSchema copy = new DocSchema(klass, name, serial);
+    copyFields(copy);
+    for (AnnSchema annSchema : annSchemas)
+      copy.addSchema(annSchema.copy());
+    for (StoreSchema storeSchema : storeSchemas)
+      copy.addStore(storeSchema.copy());
+    return copy;
+  }
+
+  /**
+   * Returns the schema for the provided document class. The class is only traversed the first time
+   * its schema is requested, and the result is cached for the life of the process. Each call
+   * returns a new copy of the cached schema, so the caller is free to change serial names on it.
+   * This method is safe to call from multiple threads.
+   **/
   public static <T extends Doc> DocSchema create(final Class<T> klass) {
-    if (!klass.isAnnotationPresent(dr.Doc.class))
-      throw new IllegalArgumentException("The provided class is not annotated with dr.Doc");
-    return new DocSchema(klass, klass.getName());
+    DocSchema schema = REGISTRY.get(klass);
+    if (schema == null) {
+      if (!klass.isAnnotationPresent(dr.Doc.class))
+        throw new IllegalArgumentException("The provided class is not annotated with dr.Doc");
+      schema = new DocSchema(klass, klass.getName(), "__meta__");
+      schema.traverseDocKlass();
+      final DocSchema existing = REGISTRY.putIfAbsent(klass, schema);
+      if (existing != null)
+        schema = existing;
+    }
+    return schema.copy();
   }
 }
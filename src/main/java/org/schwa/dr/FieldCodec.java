@@ -0,0 +1,393 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+
+/**
+ * Internal type-specialised reader and writer for a {@link dr.Field} annotated field. A codec is
+ * chosen once per field when its {@link FieldSchema} is created, rather than dispatching on the
+ * type of the field for every value read or written. Codecs for the primitive types use the
+ * primitive accessors on {@link Field} (e.g. {@link Field#getInt} and {@link Field#setInt}) so that
+ * values are never boxed.
+ *
+ * @author Tim Dawborn
+ * @see FieldSchema
+ **/
+abstract class FieldCodec {
+  protected final Field field;
+
+  protected FieldCodec(final Field field) {
+    this.field = field;
+  }
+
+  /**
+   * Resets the field on the provided annotation to the default value for its type.
+   **/
+  public abstract void clear(Ann ann) throws IllegalAccessException;
+
+  /**
+   * Reads the next value from the unpacker into the field on the provided annotation.
+   **/
+  public abstract void read(Ann ann, MessageUnpacker unpacker) throws IOException, IllegalAccessException;
+
+  /**
+   * Writes the fieldId and the value of the field on the provided annotation to the packer,
+   * returning whether or not anything was written. Nothing is written for empty values.
+   **/
+  public abstract boolean write(MessagePacker packer, int fieldId, Ann ann) throws IOException, IllegalAccessException;
+
+  /**
+   * Returns the number of bytes which {@link FieldCodec#write} would write for the field on the
+   * provided annotation, which is 0 if nothing would be written.
+   **/
+  public abstract int size(int fieldId, Ann ann) throws IllegalAccessException;
+
+
+  /**
+   * Returns the codec for the provided field, which must be of one of the types in
+   * {@link DocSchema#ALLOWED_FIELD_KLASSES}.
+   **/
+  public static FieldCodec create(final Field field) {
+    final Class<?> klass = field.getType();
+    if (klass == String.class)
+      return new StringCodec(field);
+    else if (klass == ByteSlice.class)
+      return new ByteSliceCodec(field);
+    else if (klass == byte.class)
+      return new ByteCodec(field);
+    else if (klass == char.class)
+      return new CharCodec(field);
+    else if (klass == short.class)
+      return new ShortCodec(field);
+    else if (klass == int.class)
+      return new IntCodec(field);
+    else if (klass == long.class)
+      return new LongCodec(field);
+    else if (klass == float.class)
+      return new FloatCodec(field);
+    else if (klass == double.class)
+      return new DoubleCodec(field);
+    else if (klass == boolean.class)
+      return new BooleanCodec(field);
+    throw new IllegalAnnotationException("Unknown type (" + klass + ") of field '" + field + "'");
+  }
+
+
+  private static final class StringCodec extends FieldCodec {
+    StringCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.set(ann, null);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.set(ann, unpacker.unpackString());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      final String s = (String) field.get(ann);
+      if (s == null || s.isEmpty())
+        return false;
+      packer.packInt(fieldId);
+      packer.packString(s);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      final String s = (String) field.get(ann);
+      if (s == null || s.isEmpty())
+        return 0;
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfString(s);
+    }
+  }
+
+
+  private static final class ByteSliceCodec extends FieldCodec {
+    ByteSliceCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.set(ann, null);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      final int npair = unpacker.unpackArrayHeader();
+      if (npair != 2)
+        throw new ReaderException("Invalid sized list read in for SLICE: expected 2 elements but found " + npair);
+      final long a = unpacker.unpackLong();
+      final long b = unpacker.unpackLong();
+      ByteSlice slice = (ByteSlice) field.get(ann);
+      if (slice == null) {
+        slice = new ByteSlice();
+        field.set(ann, slice);
+      }
+      slice.start = a;
+      slice.stop = a + b;
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      final ByteSlice slice = (ByteSlice) field.get(ann);
+      if (slice == null)
+        return false;
+      packer.packInt(fieldId);
+      packer.packArrayHeader(2);
+      packer.packLong(slice.start);
+      packer.packLong(slice.stop - slice.start);
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      final ByteSlice slice = (ByteSlice) field.get(ann);
+      if (slice == null)
+        return 0;
+      return WriterHelper.sizeOfInt(fieldId) + 1 + WriterHelper.sizeOfInt(slice.start) + WriterHelper.sizeOfInt(slice.stop - slice.start);
+    }
+  }
+
+
+  private static final class ByteCodec extends FieldCodec {
+    ByteCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setByte(ann, (byte) 0);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setByte(ann, unpacker.unpackByte());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packByte(field.getByte(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(field.getByte(ann));
+    }
+  }
+
+
+  private static final class CharCodec extends FieldCodec {
+    CharCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setChar(ann, '\0');
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setChar(ann, (char) unpacker.unpackInt());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packInt(field.getChar(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(field.getChar(ann));
+    }
+  }
+
+
+  private static final class ShortCodec extends FieldCodec {
+    ShortCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setShort(ann, (short) 0);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setShort(ann, unpacker.unpackShort());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packShort(field.getShort(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(field.getShort(ann));
+    }
+  }
+
+
+  private static final class IntCodec extends FieldCodec {
+    IntCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setInt(ann, 0);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setInt(ann, unpacker.unpackInt());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packInt(field.getInt(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(field.getInt(ann));
+    }
+  }
+
+
+  private static final class LongCodec extends FieldCodec {
+    LongCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setLong(ann, 0);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setLong(ann, unpacker.unpackLong());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packLong(field.getLong(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + WriterHelper.sizeOfInt(field.getLong(ann));
+    }
+  }
+
+
+  private static final class FloatCodec extends FieldCodec {
+    FloatCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setFloat(ann, 0);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setFloat(ann, unpacker.unpackFloat());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packFloat(field.getFloat(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + 5;
+    }
+  }
+
+
+  private static final class DoubleCodec extends FieldCodec {
+    DoubleCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setDouble(ann, 0);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setDouble(ann, unpacker.unpackDouble());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packDouble(field.getDouble(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + 9;
+    }
+  }
+
+
+  private static final class BooleanCodec extends FieldCodec {
+    BooleanCodec(final Field field) {
+      super(field);
+    }
+
+    @Override
+    public void clear(final Ann ann) throws IllegalAccessException {
+      field.setBoolean(ann, false);
+    }
+
+    @Override
+    public void read(final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+      field.setBoolean(ann, unpacker.unpackBoolean());
+    }
+
+    @Override
+    public boolean write(final MessagePacker packer, final int fieldId, final Ann ann) throws IOException, IllegalAccessException {
+      packer.packInt(fieldId);
+      packer.packBoolean(field.getBoolean(ann));
+      return true;
+    }
+
+    @Override
+    public int size(final int fieldId, final Ann ann) throws IllegalAccessException {
+      return WriterHelper.sizeOfInt(fieldId) + 1;
+    }
+  }
+}
@@ -10,6 +10,7 @@ import java.lang.reflect.Field;
  **/
 public final class FieldSchema {
   private final Field field;
+  private final FieldCodec codec;
   private final String name;
   private final Class<? extends Ann> pointedToKlass;
   private final String storeName;
@@ -33,11 +34,58 @@ public final class FieldSchema {
     this.isSelfPointer = isSelfPointer;
     this.isSlice = isSlice;
     this.isCollection = isCollection;
+    this.codec = (isPointer || isSelfPointer) ? null : FieldCodec.create(field);
 
     serial = serial.trim();
     this.serial = serial.isEmpty() ? name : serial;
   }
 
+  private FieldSchema(FieldSchema other) {
+    this.field = other.field;
+    this.codec = other.codec;
+    this.name = other.name;
+    this.pointedToKlass = other.pointedToKlass;
+    this.storeName = other.storeName;
+    this.mode = other.mode;
+    this.isPointer = other.isPointer;
+    this.isSelfPointer = other.isSelfPointer;
+    this.isSlice = other.isSlice;
+    this.isCollection = other.isCollection;
+    this.serial = other.serial;
+  }
+
+  /**
+   * Returns an independent copy of this field schema which shares its reflective state, such as
+   * its codec, with this field schema.
+   **/
+  FieldSchema copy() {
+    return new FieldSchema(this);
+  }
+
+  /**
+   * Resets this field on the provided annotation to the default value for its type. A
+   * {@link Pointers} collection is emptied in place rather than discarded, so that it and its
+   * index array are reused when the annotation is next read into.
+   **/
+  void clear(final Ann ann) throws IllegalAccessException {
+    if (codec != null)
+      codec.clear(ann);
+    else if (field.getType() == Pointers.class) {
+      final Pointers<?> pointers = (Pointers<?>) field.get(ann);
+      if (pointers != null)
+        pointers.clear();
+    }
+    else
+      field.set(ann, null);
+  }
+
+  /**
+   * Returns the type-specialised codec for this field, or null if this field is a pointer field.
+   **/
+  FieldCodec getCodec() {
+    return codec;
+  }
+
   public Field getField() {
     return field;
   }
@@ -0,0 +1,253 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.msgpack.core.MessagePackFactory;
+import org.msgpack.core.MessagePacker;
+
+import org.schwa.dr.runtime.RTAnnSchema;
+import org.schwa.dr.runtime.RTFieldSchema;
+import org.schwa.dr.runtime.RTManager;
+import org.schwa.dr.runtime.RTStoreSchema;
+
+
+/**
+ * Internal cache of the encoded <code>&lt;klasses&gt;</code> and <code>&lt;stores&gt;</code>
+ * stream headers used by {@link Writer}. This is the writing counterpart of
+ * {@link HeaderTemplate}. Documents written with the same {@link DocSchema} almost always have
+ * identical headers apart from their store sizes, so each header is only encoded the first time it
+ * is seen. A header is identified by its shape: the names, flags, and pointed-to stores of every
+ * klass and field, and the names and klass ids of every store. The shape of each document's
+ * {@link RTManager} is compared against the cached headers without encoding or allocating
+ * anything, and the store sizes are written in between the cached bytes of each store.
+ *
+ * @author Tim Dawborn
+ * @see Writer
+ **/
+final class HeaderCache {
+  /** The maximum number of distinct headers kept. **/
+  private static final int MAX_ENTRIES = 8;
+
+  private static final int IS_POINTER = 1;
+  private static final int IS_SLICE = 2;
+  private static final int IS_SELF_POINTER = 4;
+  private static final int IS_COLLECTION = 8;
+
+  /** The encoded headers for one shape. **/
+  private static final class Entry {
+    final String[] names;
+    final int[] values;
+    final byte[] bytes;
+    final int[] storeEnds;  // The end of the bytes before each store's <store_nelem>.
+
+    Entry(final String[] names, final int[] values, final byte[] bytes, final int[] storeEnds) {
+      this.names = names;
+      this.values = values;
+      this.bytes = bytes;
+      this.storeEnds = storeEnds;
+    }
+  }
+
+  private final List<Entry> entries;  // Most recently used first.
+  private String[] names;  // The shape of the current document.
+  private int[] values;
+  private int nnames;
+  private int nvalues;
+
+  HeaderCache() {
+    entries = new LinkedList<Entry>();
+    names = new String[64];
+    values = new int[64];
+  }
+
+  /**
+   * Writes the <code>&lt;klasses&gt;</code> and <code>&lt;stores&gt;</code> headers for the
+   * provided document to out, encoding them only if a document of the same shape has not been
+   * written recently.
+   **/
+  public void write(final RTManager rt, final Doc doc, final WriteBuffer out) throws IOException {
+    computeShape(rt);
+    final Entry entry = lookup(rt);
+
+    final List<RTStoreSchema> stores = rt.getDocSchema().getStores();
+    int start = 0;
+    for (int i = 0; i != stores.size(); i++) {
+      final int end = entry.storeEnds[i];
+      out.write(entry.bytes, start, end - start);
+      final RTStoreSchema store = stores.get(i);
+      out.writeUInt(store.isLazy() ? store.getLazyNElem() : store.getDef().size(doc));
+      start = end;
+    }
+    out.write(entry.bytes, start, entry.bytes.length - start);
+  }
+
+  private Entry lookup(final RTManager rt) throws IOException {
+    for (int i = 0; i != entries.size(); i++) {
+      final Entry entry = entries.get(i);
+      if (matches(entry)) {
+        if (i != 0)
+          entries.add(0, entries.remove(i));
+        return entry;
+      }
+    }
+
+    final Entry entry = encode(rt);
+    entries.add(0, entry);
+    if (entries.size() > MAX_ENTRIES)
+      entries.remove(entries.size() - 1);
+    return entry;
+  }
+
+  private boolean matches(final Entry entry) {
+    if (entry.names.length != nnames || entry.values.length != nvalues)
+      return false;
+    for (int i = 0; i != nvalues; i++)
+      if (entry.values[i] != values[i])
+        return false;
+    for (int i = 0; i != nnames; i++)
+      if (!entry.names[i].equals(names[i]))
+        return false;
+    return true;
+  }
+
+  /**
+   * Records everything about the runtime schema of a document which is written out in its headers,
+   * other than the store sizes.
+   **/
+  private void computeShape(final RTManager rt) {
+    nnames = nvalues = 0;
+    final RTAnnSchema rtDocSchema = rt.getDocSchema();
+    addValue(rt.getSchemas().size());
+    for (RTAnnSchema schema : rt.getSchemas()) {
+      addName(getKlassName(schema, rtDocSchema));
+      addValue(schema.getFields().size());
+      for (RTFieldSchema field : schema.getFields()) {
+        addName(field.isLazy() ? field.getSerial() : field.getDef().getSerial());
+        addValue(getFlags(field) | (field.isPointer() ? field.getContainingStore().getStoreId() << 4 : 0));
+      }
+    }
+    addValue(rtDocSchema.getStores().size());
+    for (RTStoreSchema store : rtDocSchema.getStores()) {
+      addName(getStoreName(store));
+      addValue(store.getStoredKlass().getKlassId());
+    }
+  }
+
+  private void addName(final String name) {
+    if (nnames == names.length)
+      names = Arrays.copyOf(names, 2*names.length);
+    names[nnames++] = name;
+  }
+
+  private void addValue(final int value) {
+    if (nvalues == values.length)
+      values = Arrays.copyOf(values, 2*values.length);
+    values[nvalues++] = value;
+  }
+
+  /**
+   * Encodes the headers for the shape of the provided runtime schema.
+   **/
+  private Entry encode(final RTManager rt) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final MessagePacker packer = MessagePackFactory.newDefaultPacker(bos);
+    final RTAnnSchema rtDocSchema = rt.getDocSchema();
+
+    // <klasses> ::= [ <klass> ]
+    packer.packArrayHeader(rt.getSchemas().size());
+    int i = 0;
+    for (RTAnnSchema schema : rt.getSchemas()) {
+      // <klass> ::= ( <klass_name>, <fields> )
+      packer.packArrayHeader(2);
+      if (schema.getKlassId() != i)
+        throw new AssertionError();
+
+      // <klass_name>
+      packer.packString(getKlassName(schema, rtDocSchema));
+
+      // <fields> ::= [ <field> ]
+      packer.packArrayHeader(schema.getFields().size());
+      for (RTFieldSchema field : schema.getFields()) {
+        // <field> ::= { <field_type> : <field_val> }
+        final int nfields = 1 + Integer.bitCount(getFlags(field));
+        packer.packMapHeader(nfields);
+
+        // <field_type> ::= 0 # NAME => the name of the field
+        packer.packByte((byte) 0);
+        packer.packString(field.isLazy() ? field.getSerial() : field.getDef().getSerial());
+
+        // <field_type> ::= 1 # POINTER_TO => the <store_id> that this field points into
+        if (field.isPointer()) {
+          packer.packByte((byte) 1);
+          packer.packInt(field.getContainingStore().getStoreId());
+        }
+
+        // <field_type> ::= 2 # IS_SLICE => whether or not this field is a "Slice" field
+        if (field.isSlice()) {
+          packer.packByte((byte) 2);
+          packer.packNil();
+        }
+
+        // <field_type>  ::= 3 # IS_SELF_POINTER => whether or not this field is a self-pointer. POINTER_TO and IS_SELF_POINTER are mutually exclusive.
+        if (field.isSelfPointer()) {
+          packer.packByte((byte) 3);
+          packer.packNil();
+        }
+
+        // <field_type>  ::= 4 # IS_COLLECTION => whether or not this field is a collection. IS_COLLECTION and IS_SLICE are mutually exclusive.
+        if (field.isCollection()) {
+          packer.packByte((byte) 4);
+          packer.packNil();
+        }
+      }  // for each field.
+      i++;
+    }  // for each klass.
+
+    // <stores> ::= [ <store> ]
+    final List<RTStoreSchema> stores = rtDocSchema.getStores();
+    final int[] storeEnds = new int[stores.size()];
+    packer.packArrayHeader(stores.size());
+    i = 0;
+    for (RTStoreSchema store : stores) {
+      // <store> ::= ( <store_name>, <type_id>, <store_nelem> )
+      packer.packArrayHeader(3);
+      packer.packString(getStoreName(store));
+      packer.packInt(store.getStoredKlass().getKlassId());
+      packer.flush();
+      storeEnds[i++] = bos.size();
+    }  // for each store.
+    packer.flush();
+
+    return new Entry(Arrays.copyOf(names, nnames), Arrays.copyOf(values, nvalues), bos.toByteArray(), storeEnds);
+  }
+
+  private static String getKlassName(final RTAnnSchema schema, final RTAnnSchema rtDocSchema) {
+    if (schema == rtDocSchema)
+      return "__meta__";
+    else if (schema.isLazy())
+      return schema.getSerial();
+    else
+      return schema.getDef().getSerial();
+  }
+
+  private static String getStoreName(final RTStoreSchema store) {
+    return store.isLazy() ? store.getSerial() : store.getDef().getSerial();
+  }
+
+  private static int getFlags(final RTFieldSchema field) {
+    int flags = 0;
+    if (field.isPointer())
+      flags |= IS_POINTER;
+    if (field.isSlice())
+      flags |= IS_SLICE;
+    if (field.isSelfPointer())
+      flags |= IS_SELF_POINTER;
+    if (field.isCollection())
+      flags |= IS_COLLECTION;
+    return flags;
+  }
+}
@@ -0,0 +1,358 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.msgpack.core.MessageUnpacker;
+
+import org.schwa.dr.runtime.RTAnnSchema;
+import org.schwa.dr.runtime.RTFactory;
+import org.schwa.dr.runtime.RTFieldSchema;
+import org.schwa.dr.runtime.RTManager;
+import org.schwa.dr.runtime.RTStoreSchema;
+
+
+/**
+ * Internal immutable binding of a <code>&lt;klasses&gt;</code> stream header to a
+ * {@link DocSchema}. Every document on a docrep stream repeats its header, and consecutive
+ * documents almost always have identical headers. {@link Reader} keys templates by the raw bytes of
+ * the <code>&lt;klasses&gt;</code> header so that the header only needs to be decoded, looked up
+ * against the {@link DocSchema}, and sanity checked the first time it is seen. Each document then
+ * only needs to instantiate its own runtime schema objects from the template.
+ * <p>
+ * The <code>&lt;stores&gt;</code> header also contains the per-document store sizes, so it is
+ * decoded for each document, but its binding is cached on the template via
+ * {@link HeaderTemplate#bindStores}.
+ *
+ * @author Tim Dawborn
+ * @see Reader
+ **/
+final class HeaderTemplate {
+  /** The binding of a single <code>&lt;klass&gt;</code> to its {@link AnnSchema}, if any. **/
+  private static final class Klass {
+    final String serial;
+    final AnnSchema def;
+    final Field[] fields;
+
+    Klass(final String serial, final AnnSchema def, final Field[] fields) {
+      this.serial = serial;
+      this.def = def;
+      this.fields = fields;
+    }
+  }
+
+  /** The binding of a single <code>&lt;field&gt;</code> to its {@link FieldSchema}, if any. **/
+  private static final class Field {
+    final String serial;
+    final FieldSchema def;
+    final int storeId;  // -1 if this field is not a pointer.
+    final boolean isCollection;
+    final boolean isSelfPointer;
+    final boolean isSlice;
+
+    Field(final String serial, final FieldSchema def, final int storeId, final boolean isCollection, final boolean isSelfPointer, final boolean isSlice) {
+      this.serial = serial;
+      this.def = def;
+      this.storeId = storeId;
+      this.isCollection = isCollection;
+      this.isSelfPointer = isSelfPointer;
+      this.isSlice = isSlice;
+    }
+  }
+
+  /** The binding of a <code>&lt;stores&gt;</code> header, minus the store sizes. **/
+  static final class Stores {
+    private final String[] serials;
+    private final int[] klassIds;
+    private final StoreSchema[] defs;
+
+    private Stores(final String[] serials, final int[] klassIds, final StoreSchema[] defs) {
+      this.serials = serials;
+      this.klassIds = klassIds;
+      this.defs = defs;
+    }
+
+    /** Returns the {@link StoreSchema} for the store, or null if the store is lazy. **/
+    public StoreSchema getDef(final int storeId) {
+      return defs[storeId];
+    }
+
+    /** Returns the number of stores. **/
+    public int size() {
+      return serials.length;
+    }
+
+    private boolean matches(final int nstores, final String[] serials, final int[] klassIds) {
+      if (nstores != this.serials.length)
+        return false;
+      for (int n = 0; n != nstores; n++)
+        if (klassIds[n] != this.klassIds[n] || !serials[n].equals(this.serials[n]))
+          return false;
+      return true;
+    }
+  }
+
+  private final byte[] key;
+  private final int hash;
+  private final Klass[] klasses;
+  private final int klassIdMeta;
+  private Stores stores;
+
+  private HeaderTemplate(final byte[] key, final int hash, final Klass[] klasses, final int klassIdMeta) {
+    this.key = key;
+    this.hash = hash;
+    this.klasses = klasses;
+    this.klassIdMeta = klassIdMeta;
+  }
+
+  /**
+   * Returns whether or not this template was built from the provided raw header bytes.
+   **/
+  public boolean matches(final byte[] bytes, final int length, final int hash) {
+    if (hash != this.hash || length != key.length)
+      return false;
+    for (int i = 0; i != length; i++)
+      if (bytes[i] != key[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Returns the hash of the provided raw header bytes, as used by {@link HeaderTemplate#matches}.
+   **/
+  public static int hash(final byte[] bytes, final int length) {
+    int hash = 1;
+    for (int i = 0; i != length; i++)
+      hash = 31*hash + bytes[i];
+    return hash;
+  }
+
+  /**
+   * Returns the serial of the field with the provided field id on the <code>__meta__</code> klass.
+   **/
+  public String getDocFieldSerial(final int fieldId) {
+    final Field[] fields = klasses[klassIdMeta].fields;
+    if (fieldId < 0 || fieldId >= fields.length)
+      throw new ReaderException("fieldId value " + fieldId + " >= number of fields (" + fields.length + ")");
+    return fields[fieldId].serial;
+  }
+
+  /**
+   * Returns the binding of the provided <code>&lt;stores&gt;</code> header, reusing the binding of
+   * the previous call if the store names and klass ids are unchanged.
+   **/
+  public Stores bindStores(final int nstores, final String[] serials, final int[] klassIds, final DocSchema docSchema, final Projection projection) {
+    if (stores != null && stores.matches(nstores, serials, klassIds))
+      return stores;
+
+    final StoreSchema[] defs = new StoreSchema[nstores];
+    for (int n = 0; n != nstores; n++) {
+      final String storeName = serials[n];
+      final int klassId = klassIds[n];
+
+      // Sanity check on the value of the klassId.
+      if (klassId < 0 || klassId >= klasses.length)
+        throw new ReaderException("klassId value " + klassId + " >= number of klasses (" + klasses.length + ")");
+
+      // Lookup the store on the Doc class.
+      for (StoreSchema store : docSchema.getStores()) {
+        if (store.getSerial().equals(storeName)) {
+          defs[n] = store;
+          break;
+        }
+      }
+      if (defs[n] != null && projection != null && !projection.includesStore(defs[n]))
+        defs[n] = null;
+
+      // Ensure that the stream store and the static store agree on the klass they're storing.
+      if (defs[n] != null) {
+        final Class<? extends Ann> storeKlass = defs[n].getStoredKlass();
+        final AnnSchema klassDef = klasses[klassId].def;
+        final Class<? extends Ann> klassKlass = (klassDef == null) ? null : klassDef.getKlass();
+        if (!storeKlass.equals(klassKlass))
+          throw new ReaderException("Store '" + storeName + "' points to " + storeKlass + " but the stream says it points to " + klassKlass);
+      }
+    }
+
+    // Ensure each of the pointer fields point to a valid store of the right type.
+    for (Klass klass : klasses) {
+      for (Field field : klass.fields) {
+        if (field.storeId == -1)
+          continue;
+
+        // Sanity check on the value of store_id.
+        if (field.storeId < 0 || field.storeId >= nstores)
+          throw new ReaderException("storeId value " + field.storeId + " >= number of stores (" + nstores + ")");
+
+        // If the field isn't lazy, ensure the field and the store point to the same type.
+        if (field.def != null) {
+          final Class<?> pointedToKlass = field.def.getPointedToKlass();
+          final StoreSchema storeDef = defs[field.storeId];
+          final Class<?> storedKlass = (storeDef == null) ? null : storeDef.getStoredKlass();
+          if (pointedToKlass != storedKlass)
+            throw new ReaderException("Field points to " + pointedToKlass + " but the containing Store stores " + storedKlass);
+        }
+      }
+    }
+
+    final String[] serialsCopy = new String[nstores];
+    final int[] klassIdsCopy = new int[nstores];
+    System.arraycopy(serials, 0, serialsCopy, 0, nstores);
+    System.arraycopy(klassIds, 0, klassIdsCopy, 0, nstores);
+    stores = new Stores(serialsCopy, klassIdsCopy, defs);
+    return stores;
+  }
+
+  /**
+   * Constructs the runtime schema objects for a single document from this template and the
+   * provided store binding and store sizes.
+   **/
+  public RTManager instantiate(final Stores stores, final int[] nElems) {
+    final RTManager rt = RTFactory.create();
+    final RTAnnSchema[] rtKlasses = new RTAnnSchema[klasses.length];
+    for (int k = 0; k != klasses.length; k++) {
+      final Klass klass = klasses[k];
+      if (klass.def == null)
+        rtKlasses[k] = new RTAnnSchema(k, klass.serial);
+      else
+        rtKlasses[k] = new RTAnnSchema(k, klass.serial, klass.def);
+      rt.addAnn(rtKlasses[k]);
+    }
+    final RTAnnSchema rtDocSchema = rtKlasses[klassIdMeta];
+    rt.setDocSchema(rtDocSchema);
+
+    final int nstores = stores.size();
+    final RTStoreSchema[] rtStores = new RTStoreSchema[nstores];
+    for (int n = 0; n != nstores; n++) {
+      final RTAnnSchema klass = rtKlasses[stores.klassIds[n]];
+      if (stores.defs[n] == null)
+        rtStores[n] = new RTStoreSchema(n, stores.serials[n], klass, (byte[]) null, nElems[n]);
+      else
+        rtStores[n] = new RTStoreSchema(n, stores.serials[n], klass, stores.defs[n]);
+      rtDocSchema.addStore(rtStores[n]);
+    }
+
+    for (int k = 0; k != klasses.length; k++) {
+      final RTAnnSchema rtAnnSchema = rtKlasses[k];
+      final Field[] fields = klasses[k].fields;
+      for (int f = 0; f != fields.length; f++) {
+        final Field field = fields[f];
+        final RTStoreSchema rtStore = (field.storeId == -1) ? null : rtStores[field.storeId];
+        rtAnnSchema.addField(new RTFieldSchema(f, field.serial, rtStore, field.isCollection, field.isSelfPointer, field.isSlice, field.def));
+      }
+    }
+    return rt;
+  }
+
+
+  /**
+   * Decodes the provided raw <code>&lt;klasses&gt;</code> header and binds it to the document
+   * schema, performing all of the sanity checks between the stream and the registered classes.
+   * Fields which are not included in the projection, if provided, are bound as lazy fields.
+   **/
+  public static HeaderTemplate create(final byte[] bytes, final int hash, final DocSchema docSchema, final Projection projection) throws IOException {
+    final MessageUnpacker unpacker = new MessageUnpacker(new ArrayReaderInput(bytes, 0, bytes.length));
+
+    // Map of each of the registered types.
+    final Map<String, AnnSchema> klassNameMap = new HashMap<String, AnnSchema>();
+    klassNameMap.put("__meta__", docSchema);
+    for (AnnSchema ann : docSchema.getSchemas())
+      klassNameMap.put(ann.getSerial(), ann);
+
+    // Keep track of the klass_id of __meta__.
+    int klassIdMeta = -1;
+
+    // <klasses> ::= [ <klass> ]
+    final int nklasses = unpacker.unpackArrayHeader();
+    final Klass[] klasses = new Klass[nklasses];
+    for (int k = 0; k != nklasses; k++) {
+      // <klass> ::= ( <klass_name>, <fields> )
+      final int npair = unpacker.unpackArrayHeader();
+      if (npair != 2)
+        throw new ReaderException("Invalid sized tuple read in: expected 2 elements but found " + npair);
+
+      // Read in the class name and check that we have a registered class with this name.
+      final String klassName = unpacker.unpackString();
+      final AnnSchema schema = klassNameMap.get(klassName);
+
+      // Keep track of the klass_id of __meta__.
+      if (klassName.equals("__meta__"))
+        klassIdMeta = k;
+
+      // <fields> ::= [ <field> ]
+      final int nfields = unpacker.unpackArrayHeader();
+      final Field[] fields = new Field[nfields];
+      for (int f = 0; f != nfields; f++) {
+        String fieldName = null;
+        int storeId = -1;
+        boolean isPointer = false, isSelfPointer = false, isSlice = false, isCollection = false;
+
+        // <field> ::= { <field_type> : <field_val> }
+        final int nitems = unpacker.unpackMapHeader();
+        for (int i = 0; i != nitems; ++i) {
+          final byte key = unpacker.unpackByte();
+          switch (key) {
+          case 0:  // NAME
+            fieldName = unpacker.unpackString();
+            break;
+          case 1:  // POINTER_TO
+            storeId = unpacker.unpackInt();
+            isPointer = true;
+            break;
+          case 2:  // IS_SLICE
+            unpacker.unpackNil();
+            isSlice = true;
+            break;
+          case 3:  // IS_SELF_POINTER
+            unpacker.unpackNil();
+            isSelfPointer = true;
+            break;
+          case 4:  // IS_COLLECTION
+            unpacker.unpackNil();
+            isCollection = true;
+            break;
+          default:
+            throw new ReaderException("Unknown value " + ((int) key) +  " as key in <field> map");
+          }
+        }  // for each field.
+        if (fieldName == null)
+          throw new ReaderException("Field number " + (f + 1) + " did not contain a NAME key");
+        if (isPointer && storeId < 0)
+          throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has a negative POINTER_TO value");
+
+        // Try and find the field on the registered class.
+        FieldSchema fieldDef = null;
+        if (schema != null) {
+          for (FieldSchema field : schema.getFields()) {
+            if (field.getSerial().equals(fieldName)) {
+              fieldDef = field;
+              break;
+            }
+          }
+        }
+
+        // Perform some sanity checks that the type of data on the stream is what we're expecting.
+        if (fieldDef != null) {
+          if (isPointer != fieldDef.isPointer())
+            throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_POINTER as " + isPointer + " on the stream, but " + fieldDef.isPointer() + " on the class's field");
+          if (isSlice != fieldDef.isSlice())
+            throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_SLICE as " + isSlice + " on the stream, but " + fieldDef.isSlice() + " on the class's field");
+          if (isSelfPointer != fieldDef.isSelfPointer())
+            throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_SELF_POINTER as " + isSelfPointer + " on the stream, but " + fieldDef.isSelfPointer() + " on the class's field");
+          if (isCollection != fieldDef.isCollection())
+            throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_COLLECTION as " + isCollection + " on the stream, but " + fieldDef.isCollection() + " on the class's field");
+          if (projection != null && !projection.includesField(schema, fieldDef))
+            fieldDef = null;
+        }
+
+        fields[f] = new Field(fieldName, fieldDef, isPointer ? storeId : -1, isCollection, isSelfPointer, isSlice);
+      } // for each field
+      klasses[k] = new Klass(klassName, schema, fields);
+    } // for each klass
+
+    if (klassIdMeta == -1)
+      throw new ReaderException("Did not read in a __meta__ class");
+    return new HeaderTemplate(bytes, hash, klasses, klassIdMeta);
+  }
+}
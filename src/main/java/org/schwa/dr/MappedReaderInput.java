@@ -0,0 +1,141 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.msgpack.core.buffer.MessageBuffer;
+
+
+/**
+ * Internal memory mapped {@link ReaderInput} over a {@link FileChannel}. The file is mapped in
+ * segments of at most segmentSize bytes, so files larger than 2GB can be read. Previously decoded
+ * regions which lie within a single mapped segment are provided as views into the mapping rather
+ * than being copied, so lazy stores, lazy documents, and lazy annotation data refer directly to
+ * the mapped file.
+ * <p>
+ * The unpacker is handed small heap copies of the mapped bytes rather than the mapping itself, as
+ * the unpacker cannot decode strings out of direct buffers on all JVMs.
+ *
+ * @author Tim Dawborn
+ * @see ReaderInput
+ **/
+final class MappedReaderInput extends ReaderInput {
+  /** The default maximum number of bytes mapped at a time. **/
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+  private final FileChannel channel;
+  private final long size;
+  private final int segmentSize;
+  private final byte[][] chunks;
+  private final MessageBuffer[] chunkBuffers;
+  private int chunkIndex;
+  private Segment previous;
+  private Segment current;
+  private long position;  // Absolute offset of the next byte to hand to the unpacker.
+
+  public MappedReaderInput(final FileChannel channel, final int segmentSize, final int chunkSize) throws IOException {
+    if (segmentSize <= 0)
+      throw new IllegalArgumentException("segmentSize must be positive");
+    if (chunkSize <= 0)
+      throw new IllegalArgumentException("chunkSize must be positive");
+    this.channel = channel;
+    this.size = channel.size();
+    this.segmentSize = segmentSize;
+    this.chunks = new byte[][]{new byte[chunkSize], new byte[chunkSize]};
+    this.chunkBuffers = new MessageBuffer[]{MessageBuffer.wrap(chunks[0]), MessageBuffer.wrap(chunks[1])};
+    this.position = channel.position();
+  }
+
+  /**
+   * Returns the absolute offset of the next byte to be handed to the unpacker.
+   **/
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public Segment getSegment(final long start, final long end) {
+    if (current != null && current.contains(start, end))
+      return current;
+    else if (previous != null && previous.contains(start, end))
+      return previous;
+    return null;
+  }
+
+  @Override
+  public boolean hasSegments() {
+    return true;
+  }
+
+  @Override
+  public void mark(final long offset) {
+    // The whole file is always available.
+  }
+
+  @Override
+  public void unmark() {
+    // The whole file is always available.
+  }
+
+  @Override
+  public void writeTo(final long start, final long end, final OutputStream out) throws IOException {
+    final Segment segment = getSegment(start, end);
+    if (segment != null) {
+      final ByteBuffer view = segment.getBuffer().duplicate();
+      view.position(segment.getIndex(start));
+      for (long remaining = end - start; remaining != 0; ) {
+        final int n = (int) Math.min(remaining, chunks[chunkIndex ^ 1].length);
+        view.get(chunks[chunkIndex ^ 1], 0, n);
+        out.write(chunks[chunkIndex ^ 1], 0, n);
+        remaining -= n;
+      }
+    }
+    else {
+      // The region straddles segments, so read it directly from the file.
+      final byte[] bytes = new byte[(int) (end - start)];
+      final ByteBuffer bb = ByteBuffer.wrap(bytes);
+      while (bb.hasRemaining())
+        if (channel.read(bb, start + bb.position()) == -1)
+          throw new ReaderException("Unexpected end of file reading bytes [" + start + ", " + end + ")");
+      out.write(bytes);
+    }
+  }
+
+  @Override
+  public void seek(final long offset) throws IOException {
+    if (offset < 0 || offset > size)
+      throw new ReaderException("Cannot seek to offset " + offset + " in a file of " + size + " bytes");
+    position = offset;
+  }
+
+  @Override  // MessageBufferInput
+  public MessageBuffer next() throws IOException {
+    if (position >= size)
+      return null;
+
+    // Map the next segment of the file if required.
+    if (current == null || position < current.getStart() || position >= current.getEnd()) {
+      final long length = Math.min(segmentSize, size - position);
+      previous = current;
+      current = new Segment(position, channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+    }
+
+    // Copy the next chunk out of the segment. The unpacker only ever refers to the chunk it was
+    // most recently handed, so the two chunk arrays are used alternately.
+    chunkIndex ^= 1;
+    final byte[] chunk = chunks[chunkIndex];
+    final int n = (int) Math.min(chunk.length, current.getEnd() - position);
+    final ByteBuffer view = current.getBuffer().duplicate();
+    view.position(current.getIndex(position));
+    view.get(chunk, 0, n);
+    position += n;
+    return chunkBuffers[chunkIndex].slice(0, n);
+  }
+
+  @Override  // Closeable
+  public void close() throws IOException {
+    channel.close();
+  }
+}
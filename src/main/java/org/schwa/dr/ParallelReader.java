@@ -0,0 +1,276 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.msgpack.core.MessageUnpacker;
+
+
+/**
+ * Reads in docrep documents of type T from an input stream or channel, decoding documents on
+ * multiple threads. The calling thread splits the stream into the raw bytes of each document by
+ * only reading the stream headers and the <code>&lt;instances_nbytes&gt;</code> prefixes, and the
+ * documents are then decoded into instances of T on an {@link ExecutorService}. Documents are
+ * still returned by the iterator in stream order, and at most maxInFlight documents are split or
+ * decoded ahead of the caller at any one time, bounding memory use. Each document is decoded by
+ * one of a pool of {@link Reader} instances owned by this reader, at most one per decoding thread,
+ * so the bindings of the stream headers are reused from document to document.
+ * <p>
+ * If the reader creates its own thread pool, the pool is shut down once the input is exhausted or
+ * {@link ParallelReader#close} is called. A pool provided by the caller is never shut down.
+ *
+ * @author Tim Dawborn
+ * @see Reader
+ **/
+public final class ParallelReader <T extends Doc> implements Iterable<T>, Iterator<T> {
+  /** The default maximum number of documents in flight per decoding thread. **/
+  public static final int DEFAULT_IN_FLIGHT_PER_THREAD = 4;
+
+  private final ReaderInput in;
+  private final DocSchema docSchema;
+  private final MessageUnpacker unpacker;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final int maxInFlight;
+  private final Queue<Future<T>> inFlight;
+  private final Queue<Reader<T>> decoders;
+  private final ArrayOutput splitOutput;
+  private boolean eof;
+
+  /** An output stream which fills a preallocated array. **/
+  private static final class ArrayOutput extends OutputStream {
+    private byte[] bytes;
+    private int size;
+
+    void reset(final byte[] bytes) {
+      this.bytes = bytes;
+      this.size = 0;
+    }
+
+    @Override
+    public void write(final int b) {
+      bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+  }
+
+  /**
+   * Constructs a new parallel docrep reader over the input stream, decoding documents on nThreads
+   * threads owned by the reader.
+   *
+   * @param in The input stream to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param nThreads The number of decoding threads to use.
+   **/
+  public ParallelReader(InputStream in, DocSchema docSchema, int nThreads) {
+    this(new StreamReaderInput(in, ReaderInput.DEFAULT_BUFFER_SIZE), docSchema, createExecutor(nThreads), true, nThreads*DEFAULT_IN_FLIGHT_PER_THREAD);
+  }
+
+  /**
+   * Constructs a new parallel docrep reader over the input stream, decoding documents on the
+   * provided executor.
+   *
+   * @param in The input stream to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param executor The executor to decode documents on. This is not shut down by the reader.
+   * @param maxInFlight The maximum number of documents to split or decode ahead of the caller.
+   **/
+  public ParallelReader(InputStream in, DocSchema docSchema, ExecutorService executor, int maxInFlight) {
+    this(new StreamReaderInput(in, ReaderInput.DEFAULT_BUFFER_SIZE), docSchema, executor, false, maxInFlight);
+  }
+
+  /**
+   * Constructs a new parallel docrep reader over the channel, decoding documents on nThreads
+   * threads owned by the reader.
+   *
+   * @param channel The blocking channel to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param nThreads The number of decoding threads to use.
+   **/
+  public ParallelReader(ReadableByteChannel channel, DocSchema docSchema, int nThreads) {
+    this(new StreamReaderInput(channel, ReaderInput.DEFAULT_BUFFER_SIZE), docSchema, createExecutor(nThreads), true, nThreads*DEFAULT_IN_FLIGHT_PER_THREAD);
+  }
+
+  /**
+   * Constructs a new parallel docrep reader over the channel, decoding documents on the provided
+   * executor.
+   *
+   * @param channel The blocking channel to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param executor The executor to decode documents on. This is not shut down by the reader.
+   * @param maxInFlight The maximum number of documents to split or decode ahead of the caller.
+   **/
+  public ParallelReader(ReadableByteChannel channel, DocSchema docSchema, ExecutorService executor, int maxInFlight) {
+    this(new StreamReaderInput(channel, ReaderInput.DEFAULT_BUFFER_SIZE), docSchema, executor, false, maxInFlight);
+  }
+
+  private ParallelReader(ReaderInput in, DocSchema docSchema, ExecutorService executor, boolean ownsExecutor, int maxInFlight) {
+    if (maxInFlight <= 0)
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    this.in = in;
+    this.docSchema = docSchema;
+    this.unpacker = new MessageUnpacker(in);
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new ArrayDeque<Future<T>>(maxInFlight);
+    this.decoders = new ConcurrentLinkedQueue<Reader<T>>();
+    this.splitOutput = new ArrayOutput();
+    fill();
+  }
+
+  private static ExecutorService createExecutor(final int nThreads) {
+    if (nThreads <= 0)
+      throw new IllegalArgumentException("nThreads must be positive");
+    return Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "docrep-reader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Returns this same object as an {@link Iterator} to comply with the {@link Iterable} interface.
+   **/
+  @Override  // Iterable<T>
+  public Iterator<T> iterator() {
+    return this;
+  }
+
+  /**
+   * Returns whether or not the reader iterator has any more documents to read in from the input
+   * stream.
+   **/
+  @Override  // Iterator<T>
+  public boolean hasNext() {
+    return !inFlight.isEmpty();
+  }
+
+  /**
+   * Waits for the next document in stream order to be decoded and returns it. If decoding the
+   * document failed, the exception is rethrown here.
+   **/
+  @Override  // Iterator<T>
+  public T next() {
+    final Future<T> future = inFlight.poll();
+    if (future == null)
+      throw new NoSuchElementException();
+    final T doc;
+    try {
+      doc = future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new ReaderException(e);
+    }
+    catch (ExecutionException e) {
+      close();
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      else if (cause instanceof Error)
+        throw (Error) cause;
+      throw new ReaderException(cause);
+    }
+    fill();
+    return doc;
+  }
+
+  /**
+   * This optional method from {@link Iterator} is unsupported.
+   *
+   * @throws UnsupportedOperationException
+   **/
+  @Override  // Iterator<T>
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops splitting the input, cancels any documents which are still in flight, and shuts down the
+   * thread pool if it is owned by this reader.
+   **/
+  public void close() {
+    eof = true;
+    for (Future<T> future : inFlight)
+      future.cancel(true);
+    inFlight.clear();
+    if (ownsExecutor)
+      executor.shutdownNow();
+  }
+
+  private void fill() {
+    while (!eof && inFlight.size() < maxInFlight) {
+      final byte[] bytes;
+      try {
+        bytes = split();
+      }
+      catch (IOException e) {
+        close();
+        throw new ReaderException(e);
+      }
+      if (bytes == null) {
+        eof = true;
+        if (ownsExecutor)
+          executor.shutdown();
+        break;
+      }
+      inFlight.add(executor.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          Reader<T> decoder = decoders.poll();
+          if (decoder == null)
+            decoder = new Reader<T>(docSchema);
+          final T doc = decoder.decode(bytes);
+          // Only return the decoder to the pool once it has successfully decoded a document.
+          decoders.offer(decoder);
+          return doc;
+        }
+      }));
+    }
+  }
+
+  /**
+   * Returns the raw bytes of the next document on the input, or null if the end of the input has
+   * been reached.
+   **/
+  private byte[] split() throws IOException {
+    final long start = unpacker.getTotalReadBytes();
+    in.mark(start);
+    try {
+      if (!DocIndex.skipDoc(unpacker))
+        return null;
+      final long end = unpacker.getTotalReadBytes();
+      final byte[] bytes = new byte[(int) (end - start)];
+      splitOutput.reset(bytes);
+      in.writeTo(start, end, splitOutput);
+      splitOutput.reset(null);
+      return bytes;
+    }
+    finally {
+      in.unmark();
+    }
+  }
+}
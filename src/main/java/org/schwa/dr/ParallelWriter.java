@@ -0,0 +1,300 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * <p>
+ * Writes out docrep documents to an output stream, serialising documents on multiple threads.
+ * Documents may be submitted from any number of threads. Each document is serialised into a
+ * private buffer on an {@link ExecutorService}, and the buffers are written to the output stream
+ * in the order in which the documents were submitted. At most maxInFlight documents are
+ * serialised ahead of the output at any one time; submitting a document while the window is full
+ * blocks until the oldest document has been written out. Only one thread at a time waits for and
+ * writes out the oldest document, and it does so without holding the writer's monitor, so other
+ * threads can keep submitting documents while the window has room.
+ * </p>
+ * <p>
+ * Documents are serialised by a pool of {@link Writer} instances owned by this writer, at most one
+ * per serialising thread, rather than by per-thread state on the executor's threads, so nothing is
+ * left behind on the threads of a caller-provided executor once the writer is done with.
+ * </p>
+ * <p>
+ * A document is serialised some time after {@link ParallelWriter#write} returns, so it must not be
+ * modified until {@link ParallelWriter#flush} or {@link ParallelWriter#close} has returned.
+ * </p>
+ * <p>
+ * If serialising a document or writing to the output stream fails, the documents submitted before
+ * it have been written out, and neither it nor any later document is. The failure is rethrown
+ * from the call which encounters it, any documents still in flight are cancelled, and every
+ * subsequent call throws a {@link WriterException}.
+ * </p>
+ * <p>
+ * If the writer creates its own thread pool, the pool is shut down on close. A pool provided by
+ * the caller is never shut down. The output stream is never closed.
+ * </p>
+ *
+ * @author Tim Dawborn
+ * @see Writer
+ **/
+public final class ParallelWriter {
+  /** The default maximum number of documents in flight per serialising thread. **/
+  public static final int DEFAULT_IN_FLIGHT_PER_THREAD = 4;
+
+  /** A pooled {@link Writer} over a reusable buffer. **/
+  private static final class Encoder {
+    final ByteArrayOutputStream buffer;
+    final Writer writer;
+
+    Encoder(final DocSchema docSchema) {
+      buffer = new ByteArrayOutputStream();
+      writer = new Writer(buffer, docSchema);
+    }
+
+    byte[] encode(final Doc doc) throws IOException {
+      buffer.reset();
+      writer.write(doc);
+      return buffer.toByteArray();
+    }
+  }
+
+  private final OutputStream out;
+  private final DocSchema docSchema;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final int maxInFlight;
+  private final Queue<Future<byte[]>> inFlight;
+  private final Queue<Encoder> encoders;
+  private final ReentrantLock output;  // Held while waiting for and writing out the oldest document.
+  private Throwable failure;
+  private boolean closed;
+
+  /**
+   * Constructs a new parallel docrep writer over the output stream, serialising documents on
+   * nThreads threads owned by the writer.
+   *
+   * @param out The output stream to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   * @param nThreads The number of serialising threads to use.
+   **/
+  public ParallelWriter(OutputStream out, DocSchema docSchema, int nThreads) {
+    this(out, docSchema, createExecutor(nThreads), true, nThreads*DEFAULT_IN_FLIGHT_PER_THREAD);
+  }
+
+  /**
+   * Constructs a new parallel docrep writer over the output stream, serialising documents on the
+   * provided executor.
+   *
+   * @param out The output stream to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   * @param executor The executor to serialise documents on. This is not shut down by the writer.
+   * @param maxInFlight The maximum number of documents to serialise ahead of the output.
+   **/
+  public ParallelWriter(OutputStream out, DocSchema docSchema, ExecutorService executor, int maxInFlight) {
+    this(out, docSchema, executor, false, maxInFlight);
+  }
+
+  private ParallelWriter(OutputStream out, DocSchema docSchema, ExecutorService executor, boolean ownsExecutor, int maxInFlight) {
+    if (maxInFlight <= 0)
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    this.out = out;
+    this.docSchema = docSchema;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new ArrayDeque<Future<byte[]>>(maxInFlight);
+    this.encoders = new ConcurrentLinkedQueue<Encoder>();
+    this.output = new ReentrantLock();
+  }
+
+  private static ExecutorService createExecutor(final int nThreads) {
+    if (nThreads <= 0)
+      throw new IllegalArgumentException("nThreads must be positive");
+    return Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "docrep-writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Submits a docrep document to be serialised and written out after all of the documents which
+   * were submitted before it. This blocks while maxInFlight documents are already in flight.
+   **/
+  public void write(final Doc doc) throws IOException {
+    while (true) {
+      synchronized (this) {
+        checkUsable();
+        if (inFlight.size() < maxInFlight) {
+          inFlight.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+              Encoder encoder = encoders.poll();
+              if (encoder == null)
+                encoder = new Encoder(docSchema);
+              final byte[] bytes = encoder.encode(doc);
+              // Only return the encoder to the pool once it has successfully serialised a document.
+              encoders.offer(encoder);
+              return bytes;
+            }
+          }));
+          break;
+        }
+      }
+      writeHeads(maxInFlight, true);
+    }
+
+    // Write out any documents which have already been serialised, unless another thread is.
+    writeHeads(Integer.MAX_VALUE, false);
+  }
+
+  /**
+   * Waits for all of the documents in flight to be serialised and written out, and flushes the
+   * output stream.
+   **/
+  public void flush() throws IOException {
+    synchronized (this) {
+      checkUsable();
+    }
+    output.lock();
+    try {
+      writeHeads(1, true);
+      out.flush();
+    }
+    catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+    finally {
+      output.unlock();
+    }
+  }
+
+  /**
+   * Flushes the writer, and shuts down the thread pool if it is owned by this writer. Closing a
+   * writer which has failed does not throw again.
+   **/
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed)
+        return;
+    }
+    try {
+      if (getFailure() == null)
+        flush();
+    }
+    finally {
+      synchronized (this) {
+        closed = true;
+      }
+      if (ownsExecutor)
+        executor.shutdownNow();
+      encoders.clear();
+    }
+  }
+
+  private void checkUsable() {
+    if (closed)
+      throw new WriterException("Cannot write to a closed ParallelWriter");
+    if (failure != null)
+      throw new WriterException(failure);
+  }
+
+  private synchronized Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * Records the first failure, and cancels all of the documents still in flight.
+   **/
+  private synchronized void fail(final Throwable e) {
+    if (failure == null)
+      failure = e;
+    for (Future<byte[]> future : inFlight)
+      future.cancel(true);
+    inFlight.clear();
+  }
+
+  /**
+   * Writes out documents from the head of the queue while the head document has been serialised,
+   * or while at least limit documents are in flight, waiting for the head document as required.
+   * Only one thread writes out documents at a time. If block is false and another thread is
+   * already writing, this returns immediately. The writer's monitor is not held while waiting, so
+   * other threads can keep submitting documents in the meantime.
+   **/
+  private void writeHeads(final int limit, final boolean block) throws IOException {
+    if (block)
+      output.lock();
+    else if (!output.tryLock())
+      return;
+    try {
+      while (true) {
+        final Future<byte[]> future;
+        synchronized (this) {
+          if (failure != null)
+            throw new WriterException(failure);
+          future = inFlight.peek();
+          if (future == null || (!future.isDone() && inFlight.size() < limit))
+            return;
+        }
+        writeHead(future);
+        synchronized (this) {
+          if (inFlight.peek() == future)
+            inFlight.poll();
+        }
+      }
+    }
+    finally {
+      output.unlock();
+    }
+  }
+
+  /**
+   * Waits for the oldest document in flight to be serialised, and writes it out. The caller must
+   * hold the output lock.
+   **/
+  private void writeHead(final Future<byte[]> future) throws IOException {
+    final byte[] bytes;
+    try {
+      bytes = future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(e);
+      throw new WriterException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      fail(cause);
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      else if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      else if (cause instanceof Error)
+        throw (Error) cause;
+      throw new WriterException(cause);
+    }
+    try {
+      out.write(bytes);
+    }
+    catch (IOException e) {
+      fail(e);
+      throw e;
+    }
+  }
+}
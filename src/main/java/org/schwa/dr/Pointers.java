@@ -0,0 +1,158 @@
+package org.schwa.dr;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * <p>
+ * A compact collection of pointers to {@link Ann} instances, for use as a {@link dr.Pointer} or
+ * {@link dr.SelfPointer} field type instead of <code>List&lt;T&gt;</code>. The pointers are kept
+ * as a primitive array of indices into the store the field points into: the store named by the
+ * {@link dr.Pointer} annotation, or the store containing the annotation itself for a
+ * {@link dr.SelfPointer} field. The indices are only resolved to annotation instances when
+ * {@link Pointers#get} is called or the collection is iterated over. Reading and writing a
+ * <code>Pointers</code> field does not box any indices or create a list per instance.
+ * </p>
+ * <p>
+ * Since {@link Store} instances only ever grow, the indices of the pointed-to instances are stable
+ * once they have been added to their store.
+ * </p>
+ *
+ * @author Tim Dawborn
+ **/
+public class Pointers<T extends Ann> implements Iterable<T> {
+  private Store<? extends T> store;
+  private int[] indices;
+  private int size;
+
+  public Pointers() {
+    this(null);
+  }
+
+  public Pointers(final Store<? extends T> store) {
+    this.store = store;
+    this.indices = new int[4];
+  }
+
+  /**
+   * Adds a pointer to the provided annotation instance, which must already be in the store that
+   * this collection points into.
+   **/
+  public void add(final T ann) {
+    if (ann.getDRIndex() == null)
+      throw new IllegalArgumentException("Cannot point to an object which is not in a Store");
+    addIndex(ann.getDRIndex());
+  }
+
+  /**
+   * Adds a pointer to the instance at the provided index in the store.
+   **/
+  public void addIndex(final int index) {
+    if (size == indices.length)
+      indices = Arrays.copyOf(indices, 2*indices.length);
+    indices[size++] = index;
+  }
+
+  /**
+   * Removes all of the pointers from this collection.
+   **/
+  public void clear() {
+    size = 0;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    else if (o == null)
+      return false;
+    else if (!(o instanceof Pointers))
+      return false;
+    final Pointers<?> p = (Pointers<?>) o;
+    if (p.store != store || p.size != size)
+      return false;
+    for (int i = 0; i != size; i++)
+      if (p.indices[i] != indices[i])
+        return false;
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 1;
+    for (int i = 0; i != size; i++)
+      hash = 31*hash + indices[i];
+    return hash;
+  }
+
+  /**
+   * Returns the annotation instance pointed to by the i'th pointer, resolving it via the store.
+   **/
+  public T get(final int i) {
+    return store.get(getIndex(i));
+  }
+
+  /**
+   * Returns the index into the store of the i'th pointer.
+   **/
+  public int getIndex(final int i) {
+    if (i < 0 || i >= size)
+      throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    return indices[i];
+  }
+
+  /**
+   * Returns the store that this collection points into.
+   **/
+  public Store<? extends T> getStore() {
+    return store;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i != size;
+      }
+
+      @Override
+      public T next() {
+        if (i == size)
+          throw new NoSuchElementException();
+        return get(i++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Sets the store that this collection points into.
+   **/
+  public void setStore(final Store<? extends T> store) {
+    this.store = store;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns a copy of the store indices of the pointers in this collection.
+   **/
+  public int[] toIndexArray() {
+    return Arrays.copyOf(indices, size);
+  }
+}
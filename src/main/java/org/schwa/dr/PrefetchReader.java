@@ -0,0 +1,175 @@
+package org.schwa.dr;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Reads in docrep documents of type T using a {@link Reader} on a dedicated background thread,
+ * so that reading and decoding the next documents overlaps with the caller's processing of the
+ * current one. The background thread stays up to nAhead documents ahead of the caller, handing
+ * documents over via a bounded queue. If reading a document fails, the exception is rethrown to
+ * the caller at the position in the stream where the failure occurred, i.e. after all of the
+ * preceding documents have been returned.
+ * <p>
+ * The wrapped {@link Reader} should be fully configured (e.g. via {@link Reader#setProjection})
+ * before it is wrapped, and must not be used directly afterwards. {@link Reader#recycle} is not
+ * supported as documents are decoded ahead of the caller.
+ *
+ * @author Tim Dawborn
+ * @see Reader
+ **/
+public final class PrefetchReader <T extends Doc> implements Iterable<T>, Iterator<T> {
+  /** The default maximum number of documents decoded ahead of the caller. **/
+  public static final int DEFAULT_NAHEAD = 8;
+
+  /** An entry in the hand-off queue: a document, a failure, or the end of the input. **/
+  private static final class Slot<T> {
+    final T doc;
+    final Throwable error;
+
+    Slot(final T doc, final Throwable error) {
+      this.doc = doc;
+      this.error = error;
+    }
+  }
+
+  private final BlockingQueue<Slot<T>> queue;
+  private final Thread thread;
+  private Slot<T> head;  // The next slot to hand to the caller, if already taken from the queue.
+  private boolean done;
+  private volatile boolean closed;
+
+  /**
+   * Constructs a new prefetching docrep reader over the provided reader, decoding up to
+   * {@link PrefetchReader#DEFAULT_NAHEAD} documents ahead of the caller.
+   *
+   * @param reader The reader to read documents from on the background thread.
+   **/
+  public PrefetchReader(Reader<T> reader) {
+    this(reader, DEFAULT_NAHEAD);
+  }
+
+  /**
+   * Constructs a new prefetching docrep reader over the provided reader, decoding up to nAhead
+   * documents ahead of the caller.
+   *
+   * @param reader The reader to read documents from on the background thread.
+   * @param nAhead The maximum number of documents to decode ahead of the caller.
+   **/
+  public PrefetchReader(final Reader<T> reader, int nAhead) {
+    if (nAhead <= 0)
+      throw new IllegalArgumentException("nAhead must be positive");
+    queue = new ArrayBlockingQueue<Slot<T>>(nAhead);
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        prefetch(reader);
+      }
+    }, "docrep-prefetch");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Reads documents from the reader into the queue until the input is exhausted, reading fails, or
+   * the reader is closed. The final slot is always either a failure or the end of the input.
+   **/
+  private void prefetch(final Reader<T> reader) {
+    try {
+      Slot<T> slot;
+      do {
+        try {
+          slot = reader.hasNext() ? new Slot<T>(reader.next(), null) : new Slot<T>(null, null);
+        }
+        catch (RuntimeException e) {
+          slot = new Slot<T>(null, e);
+        }
+        catch (Error e) {
+          slot = new Slot<T>(null, e);
+        }
+        queue.put(slot);
+      } while (slot.doc != null && !closed);
+    }
+    catch (InterruptedException e) {
+      // Closed by the caller.
+    }
+  }
+
+  /**
+   * Returns this same object as an {@link Iterator} to comply with the {@link Iterable} interface.
+   **/
+  @Override  // Iterable<T>
+  public Iterator<T> iterator() {
+    return this;
+  }
+
+  /**
+   * Returns whether or not the reader iterator has any more documents, waiting for the background
+   * thread if required. If reading the next document failed, the exception is rethrown here.
+   **/
+  @Override  // Iterator<T>
+  public boolean hasNext() {
+    if (head == null && !done) {
+      try {
+        head = queue.take();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new ReaderException(e);
+      }
+    }
+    if (head == null)
+      return false;
+    if (head.error != null) {
+      final Throwable error = head.error;
+      head = null;
+      done = true;
+      if (error instanceof Error)
+        throw (Error) error;
+      throw (RuntimeException) error;
+    }
+    if (head.doc == null) {
+      head = null;
+      done = true;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the next document in stream order, waiting for the background thread if required.
+   **/
+  @Override  // Iterator<T>
+  public T next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    final T doc = head.doc;
+    head = null;
+    return doc;
+  }
+
+  /**
+   * This optional method from {@link Iterator} is unsupported.
+   *
+   * @throws UnsupportedOperationException
+   **/
+  @Override  // Iterator<T>
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the background thread and discards any documents which were decoded ahead of the caller.
+   **/
+  public void close() {
+    closed = true;
+    done = true;
+    head = null;
+    thread.interrupt();
+    queue.clear();
+  }
+}
@@ -0,0 +1,107 @@
+package org.schwa.dr;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Describes which stores and fields a {@link Reader} should materialise, via
+ * {@link Reader#setProjection}. Stores which are not part of the projection are skipped over
+ * using their <code>&lt;instances_nbytes&gt;</code> prefix without being decoded, and fields which
+ * are not part of the projection are skipped over without being decoded. Skipped stores and fields
+ * are treated as if they were not registered on the {@link DocSchema}, so they are kept as lazy
+ * data and are written back out unchanged.
+ * <p>
+ * If the projection is not writable (see {@link Projection#setWritable}), skipped stores and fields
+ * are not retained at all, so nothing is copied for them. Documents read with a non-writable
+ * projection cannot be passed to a {@link Writer}.
+ * <p>
+ * Stores and fields are identified by their Java names (see {@link StoreSchema#getName} and
+ * {@link FieldSchema#getName}). If {@link Projection#addStores} is never called, all registered
+ * stores are materialised. Similarly, if {@link Projection#addFields} is never called for a class,
+ * all of the registered fields on that class are materialised. Pointer fields which point into a
+ * store that is not materialised are skipped.
+ *
+ * @author Tim Dawborn
+ **/
+public final class Projection {
+  private Set<String> stores;
+  private final Map<Class<? extends Ann>, Set<String>> fields;
+  private boolean isWritable;
+
+  private Projection() {
+    fields = new HashMap<Class<? extends Ann>, Set<String>>();
+    isWritable = true;
+  }
+
+  /**
+   * Adds the stores with the provided names to the set of stores to materialise.
+   **/
+  public Projection addStores(final String... names) {
+    if (stores == null)
+      stores = new HashSet<String>();
+    for (String name : names)
+      stores.add(name);
+    return this;
+  }
+
+  /**
+   * Adds the fields with the provided names on the provided annotation or document class to the set
+   * of fields to materialise for that class.
+   **/
+  public Projection addFields(final Class<? extends Ann> klass, final String... names) {
+    Set<String> set = fields.get(klass);
+    if (set == null) {
+      set = new HashSet<String>();
+      fields.put(klass, set);
+    }
+    for (String name : names)
+      set.add(name);
+    return this;
+  }
+
+  /**
+   * Returns whether or not the provided field on the provided annotation class is to be
+   * materialised.
+   **/
+  public boolean includesField(final AnnSchema schema, final FieldSchema field) {
+    final Set<String> set = fields.get(schema.getKlass());
+    if (set != null && !set.contains(field.getName()))
+      return false;
+    return !field.isPointer() || stores == null || stores.contains(field.getStoreName());
+  }
+
+  /**
+   * Returns whether or not the provided store is to be materialised.
+   **/
+  public boolean includesStore(final StoreSchema store) {
+    return stores == null || stores.contains(store.getName());
+  }
+
+  /**
+   * Returns whether or not documents read with this projection can be written back out.
+   **/
+  public boolean isWritable() {
+    return isWritable;
+  }
+
+  /**
+   * Sets whether or not documents read with this projection need to be able to be written back
+   * out. If not, skipped stores and fields are discarded instead of being retained as lazy data.
+   * This also applies to stores, fields, and {@link FieldMode#READ_ONLY} fields which are not
+   * registered on the {@link DocSchema}. The default is true.
+   **/
+  public Projection setWritable(final boolean isWritable) {
+    this.isWritable = isWritable;
+    return this;
+  }
+
+  /**
+   * Constructs a new projection which materialises all registered stores and fields.
+   **/
+  public static Projection create() {
+    return new Projection();
+  }
+}
@@ -1,58 +1,296 @@
 package org.schwa.dr;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
-import org.msgpack.core.buffer.InputStreamBufferInput;
-import org.msgpack.core.MessagePackFactory;
-import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
-import org.msgpack.value.holder.ValueHolder;
 
 import org.schwa.dr.runtime.RTAnnSchema;
-import org.schwa.dr.runtime.RTFactory;
 import org.schwa.dr.runtime.RTFieldSchema;
 import org.schwa.dr.runtime.RTManager;
 import org.schwa.dr.runtime.RTStoreSchema;
 
 
 /**
- * Reads in docrep documents of type T from the input stream provided in the constructor.
- * This class implements the {@link Iterator} interface, providing an interator for that yields
- * documents of type T.
+ * Reads in docrep documents of type T from the input stream or channel provided in the
+ * constructor. This class implements the {@link Iterator} interface, providing an interator for
+ * that yields documents of type T. Documents are decoded one at a time as the stream is consumed,
+ * so the memory used by the reader is bounded by the size of the largest document rather than the
+ * size of the whole stream.
  *
  * @author Tim Dawborn
  **/
 public final class Reader <T extends Doc> implements Iterable<T>, Iterator<T> {
   /** docrep wire protocol version that this reader knows how to read. **/
   public static final byte WIRE_VERSION = 3;
+  /** The maximum number of distinct stream headers whose bindings are cached at a time. **/
+  private static final int MAX_CACHED_HEADERS = 64;
 
-  private final ByteArrayInputStream in;
+  /** A byte array output stream which exposes its underlying array. **/
+  private static final class RawBuffer extends ByteArrayOutputStream {
+    RawBuffer() { }
+
+    RawBuffer(final int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  private final ReaderInput in;
   private final DocSchema docSchema;
   private final MessageUnpacker unpacker;
+  private long origin;  // Offset of the first byte handed to the unpacker.
+  private long[] spans = new long[16];
+  private final RawBuffer headerBytes = new RawBuffer();
+  private RawBuffer slab;  // Lazy data of the instances of the current store.
+  private Ann[] slabAnns = new Ann[16];
+  private int[] slabOffsets = new int[16];
+  private int nslabAnns;
+  private final Map<Integer, HeaderTemplate> headers = new HashMap<Integer, HeaderTemplate>();
+  private HeaderTemplate lastHeader;
+  private Projection projection;
+  private boolean retainLazy = true;
+  private boolean onDemandStores;
+  private boolean rawPassThrough;
+  private ByteBuffer[] rawStores = new ByteBuffer[0];  // The <instances> of each store of the current document.
+  private boolean pending = true;  // Whether the next document needs to be read before it's returned.
+  private String[] storeSerials = new String[0];
+  private int[] storeKlassIds = new int[0];
+  private int[] storeNElems = new int[0];
   private T doc;
+  private T recycled;
+  private DocFilter<? super T> filter;
+  private final Map<String, FieldSchema> filterFields = new HashMap<String, FieldSchema>();
+  private T filterDoc;
+  private final RawBuffer filterBytes = new RawBuffer();  // The <instance> of an accepted document.
+  private final List<Reader<T>> decoders = new ArrayList<Reader<T>>();
+  private int ndecoders;  // Number of decoders currently in use.
 
   /**
    * Constructs a new docrep reader given the input stream and document schema.
    *
-   * @param in The input stream to read from. This needs to be an input stream which has full
-   *           {@link java.io.InputStream#mark} support to implement lazy loading correctly. To
-   *           ensure this is the case, the input stream must currently be a
-   *           {@link ByteArrayInputStream}.
+   * @param in The input stream to read from. This does not need to support
+   *           {@link InputStream#mark}.
    * @param docSchema The {@link DocSchema} instance to use for reading. Unlike the other docrep
    *                  APIs, this argument cannot be optional as you cannot be the .class attribute
    *                  of a generic type due to type erasure.
    **/
-  public Reader(ByteArrayInputStream in, DocSchema docSchema) {
+  public Reader(InputStream in, DocSchema docSchema) {
+    this(in, docSchema, ReaderInput.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs a new docrep reader given the input stream, document schema, and the number of
+   * bytes to buffer from the input stream at a time. The raw bytes of lazy and
+   * {@link FieldMode#READ_ONLY} fields are located using absolute stream offsets rather than via
+   * {@link InputStream#mark}, so the reader is free to decode from a large internal buffer.
+   *
+   * @param in The input stream to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param bufferSize The number of bytes to read from the input stream at a time.
+   **/
+  public Reader(InputStream in, DocSchema docSchema, int bufferSize) {
+    this(new StreamReaderInput(in, bufferSize), docSchema, 0);
+  }
+
+  /**
+   * Constructs a new docrep reader given the channel and document schema.
+   *
+   * @param channel The blocking channel to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   **/
+  public Reader(ReadableByteChannel channel, DocSchema docSchema) {
+    this(channel, docSchema, ReaderInput.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs a new docrep reader given the channel, document schema, and the number of bytes to
+   * buffer from the channel at a time.
+   *
+   * @param channel The blocking channel to read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param bufferSize The number of bytes to read from the channel at a time.
+   **/
+  public Reader(ReadableByteChannel channel, DocSchema docSchema, int bufferSize) {
+    this(new StreamReaderInput(channel, bufferSize), docSchema, 0);
+  }
+
+  /**
+   * Constructs a reader over an empty {@link ArrayReaderInput}, for decoding regions of bytes
+   * which are handed to it later on. See {@link Reader#decode}.
+   **/
+  Reader(DocSchema docSchema) {
+    this(new ArrayReaderInput(), docSchema, 0);
+  }
+
+  Reader(ReaderInput in, DocSchema docSchema, long origin) {
     this.in = in;
     this.docSchema = docSchema;
-    this.unpacker = new MessageUnpacker(new InputStreamBufferInput(in, 1));  // We don't want the InputStreamBufferInput to do any buffering since we need to refer to the underlying ByteArrayInputStream directly to implement lazyness.
-    readNext();
+    this.origin = origin;
+    this.unpacker = new MessageUnpacker(in);
+  }
+
+  /**
+   * Constructs a new docrep reader which memory maps the file underlying the provided channel,
+   * starting from the channel's current position. Lazy stores, lazy documents, and the lazy data
+   * of annotation instances are kept as read-only views into the mapped file rather than being
+   * copied onto the heap.
+   *
+   * @param channel The file channel to map and read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   **/
+  public static <T extends Doc> Reader<T> createMapped(FileChannel channel, DocSchema docSchema) throws IOException {
+    return createMapped(channel, docSchema, MappedReaderInput.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructs a new docrep reader which memory maps the file underlying the provided channel,
+   * starting from the channel's current position, mapping at most segmentSize bytes of the file at
+   * a time.
+   *
+   * @param channel The file channel to map and read from.
+   * @param docSchema The {@link DocSchema} instance to use for reading.
+   * @param segmentSize The maximum number of bytes of the file to map at a time.
+   **/
+  public static <T extends Doc> Reader<T> createMapped(FileChannel channel, DocSchema docSchema, int segmentSize) throws IOException {
+    final MappedReaderInput in = new MappedReaderInput(channel, segmentSize, ReaderInput.DEFAULT_BUFFER_SIZE);
+    return new Reader<T>(in, docSchema, in.getPosition());
+  }
+
+  /**
+   * Repositions the reader so that the next document returned is the one starting at the provided
+   * byte offset. The reader must have been constructed over a {@link FileChannel}, either directly
+   * or via {@link Reader#createMapped}, and the offset must be the start of a document.
+   *
+   * @param offset The position within the file of the start of the document.
+   * @throws UnsupportedOperationException If the reader's input cannot be repositioned.
+   **/
+  public void seek(long offset) {
+    try {
+      in.seek(offset);
+      unpacker.reset(in);
+    }
+    catch (IOException e) {
+      throw new ReaderException(e);
+    }
+    origin = offset;
+    doc = null;
+    pending = true;
+  }
+
+  /**
+   * Repositions the reader so that the next document returned is the document with the provided
+   * index in the {@link DocIndex}.
+   *
+   * @param index The index built over the file this reader is reading from.
+   * @param docIndex The index of the document to seek to.
+   * @see Reader#seek(long)
+   **/
+  public void seek(DocIndex index, int docIndex) {
+    seek(index.getOffset(docIndex));
+  }
+
+  /**
+   * Sets the {@link Projection} describing which stores and fields to materialise when decoding
+   * subsequent documents, or null to materialise everything. The projection should not be modified
+   * once it has been set.
+   **/
+  public void setProjection(Projection projection) {
+    this.projection = projection;
+    this.retainLazy = projection == null || projection.isWritable();
+    headers.clear();
+    lastHeader = null;
+  }
+
+  /**
+   * Sets whether or not the registered stores of subsequent documents are decoded on demand. If so,
+   * the raw bytes of each store are retained when the document is read in, and the store is only
+   * decoded the first time it is accessed (see {@link Store#isLoaded}). Stores are still sized up
+   * front, so {@link Store#size} does not decode the store, and pointers into a store which has not
+   * been decoded yet resolve to the correct instances. Decoding a store also decodes any stores
+   * that it points into. The default is false.
+   **/
+  public void setOnDemandStores(boolean onDemandStores) {
+    this.onDemandStores = onDemandStores;
+  }
+
+  /**
+   * Sets whether or not the raw bytes of the registered stores of subsequent documents are kept
+   * alongside their decoded instances. If so, {@link Writer} copies the raw bytes of each store
+   * which has not been modified since it was read in (see {@link Store#isModified}) rather than
+   * re-encoding its instances, so documents which are read in, inspected, and written back out
+   * cost little more than a copy. The stores are still decoded as normal. The default is false.
+   **/
+  public void setRawPassThrough(boolean rawPassThrough) {
+    this.rawPassThrough = rawPassThrough;
+  }
+
+  /**
+   * Sets a filter which is evaluated on each subsequent document before the document is
+   * constructed, or null to read every document. Only the document fields with the provided names
+   * (see {@link FieldSchema#getName}) are decoded from the <code>&lt;doc_instance&gt;</code> for
+   * the filter to inspect. Documents which the filter rejects are skipped over using the
+   * <code>&lt;instances_nbytes&gt;</code> prefixes of their instance groups, without decoding or
+   * allocating any of their stores. The <code>&lt;doc_instance&gt;</code> of a document which the
+   * filter accepts is decoded a second time, in full, from a copy of its raw bytes, after which the
+   * rest of the document is read in as normal.
+   *
+   * @param filter The filter to evaluate.
+   * @param fieldNames The names of the non-pointer fields on the document class which the filter
+   *                   inspects.
+   * @throws IllegalArgumentException If a named field is not a non-pointer field on the document
+   *                                  class.
+   **/
+  public void setFilter(DocFilter<? super T> filter, String... fieldNames) {
+    filterFields.clear();
+    for (String name : fieldNames) {
+      final FieldSchema field = docSchema.getField(name);
+      if (field == null || field.isPointer() || field.isSelfPointer())
+        throw new IllegalArgumentException("'" + name + "' is not a non-pointer field on " + docSchema.getKlass());
+      filterFields.put(field.getSerial(), field);
+    }
+    this.filter = filter;
+  }
+
+  /**
+   * Hands a document previously returned by this reader back to the reader, so that the document,
+   * its stores, and their annotation instances are reused when decoding the next document rather
+   * than being constructed anew. The caller must not use the document, or any of its annotation
+   * instances, after recycling it. Reused instances have their registered fields reset to the
+   * default values for their types, their lazy data discarded, and their drIndex reassigned.
+   * Fields which are not registered on the {@link DocSchema} are left untouched.
+   **/
+  public void recycle(T doc) {
+    recycled = doc;
+  }
+
+  /**
+   * Decodes the single document held in the provided bytes. The reader must have been constructed
+   * via {@link Reader#Reader(DocSchema)}. The reader is repositioned over the bytes, so a reader
+   * which is reused to decode many documents keeps its bound stream headers between them. The
+   * lazy data of the document refers directly to the bytes.
+   **/
+  T decode(byte[] bytes) {
+    ((ArrayReaderInput) in).reset(ByteBuffer.wrap(bytes));
+    restart();
+    doc = null;
+    pending = true;
+    return next();
   }
 
   /**
@@ -69,6 +307,10 @@ public final class Reader <T extends Doc> implements Iterable<T>, Iterator<T> {
    **/
   @Override  // Iterator<T>
   public boolean hasNext() {
+    if (pending) {
+      readNext();
+      pending = false;
+    }
     return doc != null;
   }
 
@@ -77,8 +319,10 @@ public final class Reader <T extends Doc> implements Iterable<T>, Iterator<T> {
    **/
   @Override  // Iterator<T>
   public T next() {
+    hasNext();
     final T doc = this.doc;
-    readNext();
+    this.doc = null;
+    pending = true;
     return doc;
   }
 
@@ -94,7 +338,8 @@ public final class Reader <T extends Doc> implements Iterable<T>, Iterator<T> {
 
   private void readNext() {
     try {
-      _readNext();
+      while (!_readNext())
+        continue;
     }
     catch (IOException e) {
       throw new ReaderException(e);
@@ -107,7 +352,11 @@ public final class Reader <T extends Doc> implements Iterable<T>, Iterator<T> {
     }
   }
 
-  private void _readNext() throws IOException, InstantiationException, IllegalAccessException {
+  /**
+   * Reads the next document into doc, or sets doc to null if the end of the input was reached.
+   * Returns false if the document was rejected by the filter instead.
+   **/
+  private boolean _readNext() throws IOException, InstantiationException, IllegalAccessException {
     // <doc>  ::= <wire_version> <klasses> <stores> <doc_instance> <instances_groups>
 
     // Read the wire format version before, and ensure we know how to read that version.
@@ -118,344 +367,502 @@ public final class Reader <T extends Doc> implements Iterable<T>, Iterator<T> {
     }
     catch (EOFException e) {
       doc = null;
-      return;
+      return true;
     }
     if (wireVersion != WIRE_VERSION)
       throw new ReaderException("Invalid wire format version. Stream has version " + wireVersion + " but I can only read version " + WIRE_VERSION + ". Ensure the input is not plain text.");
 
-    // Construct the lazy runtime manager for the document.
-    final RTManager rt = RTFactory.create();
-    doc = (T) docSchema.getKlass().newInstance();
-    doc.setDRRT(rt);
-
-    // Map of each of the registered types.
-    Map<String, AnnSchema> klassNameMap = new HashMap<String, AnnSchema>();
-    klassNameMap.put("__meta__", docSchema);
-    for (AnnSchema ann : docSchema.getSchemas())
-      klassNameMap.put(ann.getSerial(), ann);
-
-    // Keep track of the temporary mapping of pointer field to the store_id that they point to.
-    Map<RTFieldSchema, Integer> rtFieldSchemaToStoreIds = new HashMap<RTFieldSchema, Integer>();
-
-    // Keep track of the klass_id of __meta__.
-    Integer klassIdMeta = null;
-
-    // Read the klasses header.
+    // Read the klasses header, reusing the binding of a previously seen identical header.
     // <klasses> ::= [ <klass> ]
-    final int nklasses = unpacker.unpackArrayHeader();
-    for (int k = 0; k != nklasses; k++) {
-      // <klass> ::= ( <klass_name>, <fields> )
-      final int npair = unpacker.unpackArrayHeader();
-      if (npair != 2)
-        throw new ReaderException("Invalid sized tuple read in: expected 2 elements but found " + npair);
-
-      // Read in the class name and check that we have a registered class with this name.
-      RTAnnSchema rtAnnSchema;
-      final String klassName = unpacker.unpackString();
-      final AnnSchema schema = klassNameMap.get(klassName);
-      if (schema == null)
-        rtAnnSchema = new RTAnnSchema(k, klassName);
-      else
-        rtAnnSchema = new RTAnnSchema(k, klassName, schema);
-      rt.addAnn(rtAnnSchema);
-
-      // Keep track of the klass_id of __meta__.
-      if (klassName.equals("__meta__"))
-        klassIdMeta = k;
-
-      // <fields> ::= [ <field> ]
-      final int nfields = unpacker.unpackArrayHeader();
-      for (int f = 0; f != nfields; f++) {
-        String fieldName = null;
-        int storeId = -1;
-        boolean isPointer = false, isSelfPointer = false, isSlice = false, isCollection = false;
-
-        // <field> ::= { <field_type> : <field_val> }
-        final int nitems = unpacker.unpackMapHeader();
-        for (int i = 0; i != nitems; ++i) {
-          final byte key = unpacker.unpackByte();
-          switch (key) {
-          case 0:  // NAME
-            fieldName = unpacker.unpackString();
-            break;
-          case 1:  // POINTER_TO
-            storeId = unpacker.unpackInt();
-            isPointer = true;
-            break;
-          case 2:  // IS_SLICE
-            unpacker.unpackNil();
-            isSlice = true;
-            break;
-          case 3:  // IS_SELF_POINTER
-            unpacker.unpackNil();
-            isSelfPointer = true;
-            break;
-          case 4:  // IS_COLLECTION
-            unpacker.unpackNil();
-            isCollection = true;
-            break;
-          default:
-            throw new ReaderException("Unknown value " + ((int) key) +  " as key in <field> map");
-          }
-        }  // for each field.
-        if (fieldName == null)
-          throw new ReaderException("Field number " + (f + 1) + " did not contain a NAME key");
-
-        // See if the read in field exists on the registered class's schema.
-        RTFieldSchema rtFieldSchema;
-        if (rtAnnSchema.isLazy())
-          rtFieldSchema = new RTFieldSchema(f, fieldName, null, isCollection, isSelfPointer, isSlice);
-        else {
-          // Try and find the field on the registered class.
-          FieldSchema fieldDef = null;
-          for (FieldSchema field : rtAnnSchema.getDef().getFields()) {
-            if (field.getSerial().equals(fieldName)) {
-              fieldDef = field;
-              break;
-            }
-          }
-          rtFieldSchema = new RTFieldSchema(f, fieldName, null, isCollection, isSelfPointer, isSlice, fieldDef);
-
-          // Perform some sanity checks that the type of data on the stream is what we're expecting.
-          if (fieldDef != null) {
-            if (isPointer != fieldDef.isPointer())
-              throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_POINTER as " + isPointer + " on the stream, but " + fieldDef.isPointer() + " on the class's field");
-            if (isSlice != fieldDef.isSlice())
-              throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_SLICE as " + isSlice + " on the stream, but " + fieldDef.isSlice() + " on the class's field");
-            if (isSelfPointer != fieldDef.isSelfPointer())
-              throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_SELF_POINTER as " + isSelfPointer + " on the stream, but " + fieldDef.isSelfPointer() + " on the class's field");
-            if (isCollection != fieldDef.isCollection())
-              throw new ReaderException("Field '" + fieldName + "' of class '" + klassName + "' has IS_COLLECTION as " + isCollection + " on the stream, but " + fieldDef.isCollection() + " on the class's field");
-          }
-        }
-
-        rtAnnSchema.addField(rtFieldSchema);
-        if (isPointer)
-          rtFieldSchemaToStoreIds.put(rtFieldSchema, storeId);
-      } // for each field
-    } // for each klass
-
-    if (klassIdMeta == null)
-      throw new ReaderException("Did not read in a __meta__ class");
-    final RTAnnSchema rtDocSchema = rt.getSchema(klassIdMeta);
-    rt.setDocSchema(rtDocSchema);
+    final HeaderTemplate header = readKlasses();
 
     // Read the stores header.
     // <stores> ::= [ <store> ]
     final int nstores = unpacker.unpackArrayHeader();
+    if (storeSerials.length < nstores) {
+      storeSerials = new String[nstores];
+      storeKlassIds = new int[nstores];
+      storeNElems = new int[nstores];
+    }
     for (int n = 0; n != nstores; n++) {
       // <store> ::= ( <store_name>, <klass_id>, <store_nelem> )
       final int ntriple = unpacker.unpackArrayHeader();
       if (ntriple != 3)
         throw new ReaderException("Invalid sized tuple read in: expected 3 elements but found " + ntriple);
-      final String storeName = unpacker.unpackString();
-      final int klassId = unpacker.unpackInt();
-      final int nElem = unpacker.unpackInt();
-
-      // Sanity check on the value of the klassId.
-      if (klassId >= rt.getSchemas().size())
-        throw new ReaderException("klassId value " + klassId + " >= number of klasses (" + rt.getSchemas().size() + ")");
-
-      // Lookup the store on the Doc class.
-      StoreSchema def = null;
-      for (StoreSchema store : docSchema.getStores()) {
-        if (store.getSerial().equals(storeName)) {
-          def = store;
-          break;
-        }
-      }
+      storeSerials[n] = unpacker.unpackString();
+      storeKlassIds[n] = unpacker.unpackInt();
+      storeNElems[n] = unpacker.unpackInt();
+    }
+    final HeaderTemplate.Stores stores = header.bindStores(nstores, storeSerials, storeKlassIds, docSchema, projection);
 
-      final RTAnnSchema klass = rt.getSchema(klassId);
-      RTStoreSchema rtStoreSchema;
-      if (def == null)
-        rtStoreSchema = new RTStoreSchema(n, storeName, klass, null, nElem);
-      else
-        rtStoreSchema = new RTStoreSchema(n, storeName, klass, def);
-      rtDocSchema.addStore(rtStoreSchema);
-
-      // Ensure that the stream store and the static store agree on the klass they're storing.
-      if (!rtStoreSchema.isLazy()) {
-        final Class<? extends Ann> storeKlass = def.getStoredKlass();
-        final Class<? extends Ann> klassKlass = klass.getDef().getKlass();
-        if (!storeKlass.equals(klassKlass))
-          throw new ReaderException("Store '" + storeName + "' points to " + storeKlass + " but the stream says it points to " + klassKlass);
-
-        // Resize the store to house the correct number of instances.
-        def.resize(nElem, doc);
-      }
-    }  // for each store.
-
-
-    // Back-fill each of the pointer fields to point to the actual RTStoreSchema instance.
-    for (RTAnnSchema rtSchema : rt.getSchemas()) {
-      for (RTFieldSchema rtField : rtSchema.getFields()) {
-        if (!rtFieldSchemaToStoreIds.containsKey(rtField))
-          continue;
-
-        // Sanity check on the value of store_id.
-        final int storeId = rtFieldSchemaToStoreIds.get(rtField);
-        if (storeId >= rtDocSchema.getStores().size())
-          throw new ReaderException("storeId value " + storeId + " >= number of stores (" + rtDocSchema.getStores().size()+ ")");
-        final RTStoreSchema rtStore = rtDocSchema.getStore(storeId);
-
-        // If the field isn't lazy, ensure the field and the store point to the same type.
-        if (!rtField.isLazy()) {
-          final Class<?> pointedToKlass = rtField.getDef().getPointedToKlass();
-          final Class<?> storedKlass = rtStore.getDef().getStoredKlass();
-          if (pointedToKlass != storedKlass)
-            throw new ReaderException("Field points to " + pointedToKlass + " but the containing Store stores " + storedKlass);
-        }
+    // Evaluate the filter, if any, before constructing anything for the document.
+    final boolean filtered = filter != null;
+    if (filtered && !readFilteredInstance(header, nstores))
+      return false;
 
-        // Update the field pointer value.
-        rtField.setContainingStore(rtStore);
+    // Construct the lazy runtime manager for the document.
+    final RTManager rt = header.instantiate(stores, storeNElems);
+    final RTAnnSchema rtDocSchema = rt.getDocSchema();
+    if (recycled == null) {
+      doc = (T) docSchema.getKlass().newInstance();
+
+      // Resize each of the stores to house the correct number of instances.
+      for (int n = 0; n != nstores; n++) {
+        final StoreSchema def = stores.getDef(n);
+        if (def != null)
+          def.resize(storeNElems[n], doc);
       }
     }
+    else {
+      doc = recycled;
+      recycled = null;
+      docSchema.reset(doc);
+
+      // Resize each of the registered stores, reusing their existing instances. Registered stores
+      // which do not appear in this document are emptied.
+      for (StoreSchema def : docSchema.getStores()) {
+        int size = 0;
+        for (int n = 0; n != nstores; n++)
+          if (stores.getDef(n) == def)
+            size = storeNElems[n];
+        def.recycle(size, doc, docSchema.getSchema(def.getStoredKlass()));
+        def.getStore(doc).setRaw(null);
+      }
+    }
+    doc.setDRRT(rt);
+    rt.setReadOnly(!retainLazy);
 
 
     // Read the document instance.
     // <doc_instance> ::= <instances_nbytes> <instance>
     do {
-      final long _instancesNBytes = unpacker.unpackLong();
-      if (_instancesNBytes > Integer.MAX_VALUE)
-        throw new ReaderException("<instances_nbytes> is too large for Java (" + _instancesNBytes + ")");
-      final int instancesNBytes = (int) _instancesNBytes;
+      // The filter has already consumed the document instance, so decode it from its raw bytes.
+      if (filtered) {
+        if (!docSchema.hasFields()) {
+          if (retainLazy)
+            rtDocSchema.setLazy(Arrays.copyOf(filterBytes.getBuffer(), filterBytes.size()));
+        }
+        else {
+          // The raw bytes are reused for the next document, so lazy data is copied out of them.
+          final Reader<T> decoder = acquireDecoder(doc, retainLazy);
+          try {
+            ((ArrayReaderInput) decoder.in).resetScratch(filterBytes.getBuffer(), filterBytes.size());
+            decoder.restart();
+            decoder.readInstance(doc, rtDocSchema, null);
+            decoder.attachSlab();
+          }
+          finally {
+            releaseDecoder();
+          }
+        }
+        break;
+      }
+
+      final int instancesNBytes = DocIndex.unpackNBytes(unpacker);
 
       // Read all of the doc's fields lazily, if required.
       if (!docSchema.hasFields()) {
-        byte[] lazyBytes = new byte[instancesNBytes];
-        final int nbytesRead = in.read(lazyBytes);
-        if (nbytesRead != instancesNBytes)
-          throw new ReaderException("Failed to read in " + instancesNBytes + " from the input stream");
-
-        // Attach the lazy fields to the doc.
-        rtDocSchema.setLazy(lazyBytes);
+        if (retainLazy)
+          rtDocSchema.setLazy(in.readPayload(unpacker, getPosition(), instancesNBytes));
+        else
+          unpacker.skipBytes(instancesNBytes);
         break;
       }
 
-      final ByteArrayOutputStream lazyBOS = new ByteArrayOutputStream(instancesNBytes);
-      final MessagePacker lazyPacker = MessagePackFactory.newDefaultPacker(lazyBOS);
-      int lazyNElem = 0;
-
       // <instance> ::= { <field_id> : <obj_val> }
-      final int nitems = unpacker.unpackMapHeader();
-      for (int i = 0; i != nitems; i++) {
-        final int key = unpacker.unpackInt();
-        final RTFieldSchema field = rtDocSchema.getField(key);
-
-        // deserialize the field value if required
-        if (field.isLazy()) {
-          final ValueHolder lazyValue = new ValueHolder();
-          unpacker.unpackValue(lazyValue);
-          lazyPacker.packInt(key);
-          lazyPacker.packValue(lazyValue.get());
-          lazyNElem++;
-        }
-        else {
-          in.mark(0);
-          final int availableBefore = in.available();
-          ReaderHelper.read(field, doc, doc, null, unpacker);
-          final int availableAfter = in.available();
-
-          // Keep a lazy serialized copy of the field if required.
-          if (field.getDef().getMode() == FieldMode.READ_ONLY) {
-            in.reset();
-            final int lazyNBytes = availableBefore - availableAfter;
-            final byte[] lazyData = new byte[lazyNBytes];
-            final int nRead = in.read(lazyData);
-            if (nRead != lazyNBytes)
-              throw new ReaderException("Failed to read the correct number of bytes");
-            lazyPacker.packInt(key);
-            lazyPacker.flush();
-            lazyBOS.write(lazyData);
-            lazyNElem++;
-          }
-        }
-      }  // for each field.
-
-      // Store the lazy slab on the doc if it was used.
-      if (lazyNElem != 0) {
-        lazyPacker.flush();
-        doc.setDRLazy(lazyBOS.toByteArray());
-        doc.setDRLazyNElem(lazyNElem);
-      }
+      readInstance(doc, rtDocSchema, null);
+      attachSlab();
     } while (false);
 
 
     // Read the store instances.
     // <instances_groups> ::= <instances_group>*
+    final boolean keepRaw = rawPassThrough && retainLazy;
+    if (keepRaw && rawStores.length < nstores)
+      rawStores = new ByteBuffer[nstores];
+    int nraw = 0;
     for (RTStoreSchema rtStoreSchema : rtDocSchema.getStores()) {
       // <instances_group>  ::= <instances_nbytes> <instances>
-      final long _instancesNBytes = unpacker.unpackLong();
-      if (_instancesNBytes > Integer.MAX_VALUE)
-        throw new ReaderException("<instances_nbytes> is too large for Java (" + _instancesNBytes + ")");
-      final int instancesNBytes = (int) _instancesNBytes;
+      final int instancesNBytes = DocIndex.unpackNBytes(unpacker);
 
       // Read the store lazily, if required.
       if (rtStoreSchema.isLazy()) {
-        byte[] lazyBytes = new byte[instancesNBytes];
-        final int nbytesRead = in.read(lazyBytes);
-        if (nbytesRead != instancesNBytes)
-          throw new ReaderException("Failed to read in " + instancesNBytes + " from the input stream");
+        if (retainLazy)
+          rtStoreSchema.setLazy(in.readPayload(unpacker, getPosition(), instancesNBytes));
+        else
+          unpacker.skipBytes(instancesNBytes);
+        continue;
+      }
 
-        // Attach the lazy store to the rtStore instance.
-        rtStoreSchema.setLazy(lazyBytes);
+      // Keep the raw bytes of the store to decode on first access or to pass through, if required.
+      if (onDemandStores || keepRaw) {
+        final ByteBuffer payload = in.readPayload(unpacker, getPosition(), instancesNBytes);
+        final StoreLoader loader = new StoreLoader(doc, rtStoreSchema, payload, retainLazy);
+        if (onDemandStores)
+          rtStoreSchema.getDef().getStore(doc).setLoader(loader);
+        else
+          loader.load();
+        if (keepRaw)
+          rawStores[nraw++] = payload;
         continue;
       }
 
-      final RTAnnSchema storedKlass = rtStoreSchema.getStoredKlass();
-      final Store<? extends Ann> store = rtStoreSchema.getDef().getStore(doc);
-
-      // <instances> ::= [ <instance> ]
-      final int ninstances = unpacker.unpackArrayHeader();
-      for (int o = 0; o != ninstances; o++) {
-        final Ann ann = store.get(o);
-        final ByteArrayOutputStream lazyBOS = new ByteArrayOutputStream();
-        final MessagePacker lazyPacker = MessagePackFactory.newDefaultPacker(lazyBOS);
-        int lazyNElem = 0;
-
-        // <instance> ::= { <field_id> : <obj_val> }
-        final int nitems = unpacker.unpackMapHeader();
-        for (int i = 0; i != nitems; i++) {
-          final int key = unpacker.unpackInt();
-          final RTFieldSchema field = storedKlass.getField(key);
-
-          // Deserialize the field value, if required.
-          if (field.isLazy()) {
-            final ValueHolder lazyValue = new ValueHolder();
-            unpacker.unpackValue(lazyValue);
-            lazyPacker.packInt(key);
-            lazyPacker.packValue(lazyValue.get());
-            lazyNElem++;
-          }
-          else {
-            in.mark(0);
-            final int availableBefore = in.available();
-            ReaderHelper.read(field, ann, doc, store, unpacker);
-            final int availableAfter = in.available();
-
-            // Keep a lazy serialized copy of the field if required.
-            if (field.getDef().getMode() == FieldMode.READ_ONLY) {
-              in.reset();
-              final int lazyNBytes = availableBefore - availableAfter;
-              final byte[] lazyData = new byte[lazyNBytes];
-              final int nRead = in.read(lazyData);
-              if (nRead != lazyNBytes)
-                throw new ReaderException("Failed to read the correct number of bytes");
-              lazyPacker.packInt(key);
-              lazyPacker.flush();
-              lazyBOS.write(lazyData);
-              lazyNElem++;
-            }
-          }
-        }  // for each field.
+      readInstances(rtStoreSchema);
+    }  // for each instance group
 
-        // If there were any lazy fields on the Ann instance, store them on the instance.
-        if (lazyNElem != 0) {
-          lazyPacker.flush();
-          ann.setDRLazy(lazyBOS.toByteArray());
-          ann.setDRLazyNElem(lazyNElem);
+    // Pointers on the document instance were resolved before the stores they point into had their
+    // raw bytes attached, so decode those stores now.
+    if (onDemandStores) {
+      for (RTFieldSchema field : rtDocSchema.getFields())
+        if (field.isPointer() && !field.isLazy())
+          field.getContainingStore().getDef().getStore(doc).load();
+    }
+
+    // Attach the raw bytes of the stores only once they have all been decoded, as decoding
+    // pointers hands out the instances they point to.
+    if (keepRaw) {
+      nraw = 0;
+      for (RTStoreSchema rtStoreSchema : rtDocSchema.getStores()) {
+        if (!rtStoreSchema.isLazy()) {
+          rtStoreSchema.getDef().getStore(doc).setRaw(rawStores[nraw]);
+          rawStores[nraw++] = null;
         }
-      }  // for each instance
-    }  // for each instance group
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the <code>&lt;doc_instance&gt;</code>, decoding only the fields selected for the filter,
+   * and evaluates the filter. If the document is rejected, its instance groups are skipped over
+   * and false is returned. Otherwise, the raw bytes of the <code>&lt;instance&gt;</code> are
+   * copied into filterBytes so that the document instance can be decoded in full.
+   **/
+  private boolean readFilteredInstance(final HeaderTemplate header, final int nstores) throws IOException, InstantiationException, IllegalAccessException {
+    // <doc_instance> ::= <instances_nbytes> <instance>
+    final int instancesNBytes = DocIndex.unpackNBytes(unpacker);
+    final long start = getPosition();
+    in.mark(start);
+    try {
+      if (filterDoc == null)
+        filterDoc = (T) docSchema.getKlass().newInstance();
+      for (FieldSchema field : filterFields.values())
+        field.clear(filterDoc);
+
+      // <instance> ::= { <field_id> : <obj_val> }
+      final int nitems = unpacker.unpackMapHeader();
+      for (int i = 0; i != nitems; i++) {
+        final int key = unpacker.unpackInt();
+        final FieldSchema field = filterFields.get(header.getDocFieldSerial(key));
+        if (field == null)
+          unpacker.skipValue();
+        else
+          field.getCodec().read(filterDoc, unpacker);
+      }
+      if (getPosition() != start + instancesNBytes)
+        throw new ReaderException("Document instance is " + (getPosition() - start) + " bytes but its <instances_nbytes> says " + instancesNBytes);
+
+      // Skip over the rest of the document if it is rejected.
+      // <instances_groups> ::= <instances_group>*
+      if (!filter.accept(filterDoc)) {
+        for (int n = 0; n != nstores; n++)
+          unpacker.skipBytes(DocIndex.unpackNBytes(unpacker));
+        return false;
+      }
+
+      filterBytes.reset();
+      in.writeTo(start, getPosition(), filterBytes);
+      return true;
+    }
+    finally {
+      in.unmark();
+    }
+  }
+
+  /**
+   * Reads the <code>&lt;instances&gt;</code> of a store into the already sized store on the
+   * current document.
+   **/
+  private void readInstances(final RTStoreSchema rtStoreSchema) throws IOException, IllegalAccessException {
+    final RTAnnSchema storedKlass = rtStoreSchema.getStoredKlass();
+    final Store<? extends Ann> store = rtStoreSchema.getDef().getStore(doc);
+    if (store instanceof ColumnStore) {
+      readColumnInstances(storedKlass, (ColumnStore<? extends Ann>) store);
+      return;
+    }
+
+    // <instances> ::= [ <instance> ]
+    final int ninstances = unpacker.unpackArrayHeader();
+    for (int o = 0; o != ninstances; o++)
+      readInstance(store.get(o), storedKlass, store);
+    attachSlab();
+  }
+
+  /**
+   * Reads the <code>&lt;instances&gt;</code> of a store directly into the columns of a
+   * {@link ColumnStore}, without materialising any annotation instances. The raw bytes of any lazy
+   * or {@link FieldMode#READ_ONLY} fields are appended to the store's lazy data.
+   **/
+  private void readColumnInstances(final RTAnnSchema storedKlass, final ColumnStore<? extends Ann> store) throws IOException {
+    final int[] columnIds = store.getColumnIds(storedKlass);
+    final OutputStream lazyOut = retainLazy ? store.getLazyOutput() : null;
+    final boolean isMarked = retainLazy && !in.hasSegments();
+
+    // <instances> ::= [ <instance> ]
+    final int ninstances = unpacker.unpackArrayHeader();
+    for (int o = 0; o != ninstances; o++) {
+      final int lazyOffset = store.getLazySize();
+      int lazyNElem = 0;
+
+      // <instance> ::= { <field_id> : <obj_val> }
+      final int nitems = unpacker.unpackMapHeader();
+      if (isMarked)
+        in.mark(getPosition());
+      for (int i = 0; i != nitems; i++) {
+        final long start = getPosition();
+        final int key = unpacker.unpackInt();
+        final RTFieldSchema field = storedKlass.getField(key);
+
+        // Deserialize the field value into its column, if required.
+        final boolean isLazy = field.isLazy();
+        if (isLazy)
+          unpacker.skipValue();
+        else
+          store.getColumn(columnIds[key]).read(o, unpacker);
+
+        // Keep a copy of the raw bytes of the field if required.
+        if (retainLazy && (isLazy || field.getDef().getMode() == FieldMode.READ_ONLY)) {
+          in.writeTo(start, getPosition(), lazyOut);
+          lazyNElem++;
+        }
+      }  // for each field.
+      if (isMarked)
+        in.unmark();
+
+      if (lazyNElem != 0)
+        store.setLazy(o, lazyOffset, store.getLazySize() - lazyOffset, lazyNElem);
+    }
+  }
+
+
+  /**
+   * Reads the <code>&lt;klasses&gt;</code> header, returning the {@link HeaderTemplate} for it. The
+   * header is skipped over and its raw bytes are used to look up a previously bound template,
+   * only decoding the header if it has not been seen before.
+   **/
+  private HeaderTemplate readKlasses() throws IOException {
+    final long start = getPosition();
+    in.mark(start);
+    unpacker.skipValue();
+    headerBytes.reset();
+    in.writeTo(start, getPosition(), headerBytes);
+    in.unmark();
+
+    final byte[] bytes = headerBytes.getBuffer();
+    final int length = headerBytes.size();
+    final int hash = HeaderTemplate.hash(bytes, length);
+    if (lastHeader != null && lastHeader.matches(bytes, length, hash))
+      return lastHeader;
+
+    HeaderTemplate header = headers.get(hash);
+    if (header == null || !header.matches(bytes, length, hash)) {
+      header = HeaderTemplate.create(Arrays.copyOf(bytes, length), hash, docSchema, projection);
+      if (headers.size() == MAX_CACHED_HEADERS)
+        headers.clear();
+      headers.put(hash, header);
+    }
+    lastHeader = header;
+    return header;
+  }
+
+  private long getPosition() {
+    return origin + unpacker.getTotalReadBytes();
+  }
+
+  /**
+   * Restarts the unpacker after the input has been repositioned, discarding any partially decoded
+   * state.
+   **/
+  private void restart() {
+    try {
+      unpacker.reset(in);
+    }
+    catch (IOException e) {
+      throw new ReaderException(e);
+    }
+    origin = 0;
+    for (int i = 0; i != nslabAnns; i++)
+      slabAnns[i] = null;
+    nslabAnns = 0;
+    slab = null;
+  }
+
+  /**
+   * Returns a reader, owned by this reader, for decoding regions of bytes which this reader has
+   * already consumed into the provided document. The decoders and their scratch arrays are reused
+   * from document to document. Decoding a store can decode the stores it points into part way
+   * through, so one decoder is kept per level of nesting. The decoder's input must be reset, and
+   * then {@link Reader#restart} called, before it is used, and {@link Reader#releaseDecoder} must be
+   * called once it is finished with.
+   **/
+  private Reader<T> acquireDecoder(final T doc, final boolean retainLazy) {
+    if (ndecoders == decoders.size())
+      decoders.add(new Reader<T>(docSchema));
+    final Reader<T> decoder = decoders.get(ndecoders++);
+    decoder.doc = doc;
+    decoder.retainLazy = retainLazy;
+    return decoder;
+  }
+
+  /**
+   * Releases the most recently acquired decoder.
+   **/
+  private void releaseDecoder() {
+    decoders.get(--ndecoders).doc = null;
+  }
+
+  /**
+   * Reads the fields of a single instance into the provided annotation, retaining the raw bytes of
+   * any lazy or {@link FieldMode#READ_ONLY} fields on the annotation. The values of these fields
+   * are skipped over rather than decoded, and the raw [start, end) regions of the fields are
+   * recorded, merging adjacent regions. If the retained fields form a single contiguous region
+   * which the input can provide a view onto, the annotation's lazy data is that view. Otherwise
+   * the regions are copied into the slab shared by the instances of the current store, and are
+   * attached to the annotation by {@link Reader#attachSlab}.
+   **/
+  private void readInstance(final Ann ann, final RTAnnSchema schema, final Store<? extends Ann> store) throws IOException, IllegalAccessException {
+    int nspans = 0;
+    int lazyNElem = 0;
+
+    // <instance> ::= { <field_id> : <obj_val> }
+    final int nitems = unpacker.unpackMapHeader();
+
+    // Inputs without views need to be told to keep the raw bytes of the instance around.
+    final boolean isMarked = retainLazy && !in.hasSegments();
+    if (isMarked)
+      in.mark(getPosition());
+
+    for (int i = 0; i != nitems; i++) {
+      final long start = getPosition();
+      final int key = unpacker.unpackInt();
+      final RTFieldSchema field = schema.getField(key);
+
+      // Deserialize the field value, if required.
+      final boolean isLazy = field.isLazy();
+      if (isLazy)
+        unpacker.skipValue();
+      else
+        ReaderHelper.read(field, ann, doc, store, unpacker);
+
+      // Keep track of the raw bytes of the field if required, merging adjacent regions.
+      if (retainLazy && (isLazy || field.getDef().getMode() == FieldMode.READ_ONLY)) {
+        final long end = getPosition();
+        if (nspans != 0 && spans[2*nspans - 1] == start)
+          spans[2*nspans - 1] = end;
+        else {
+          if (2*nspans == spans.length)
+            spans = Arrays.copyOf(spans, 2*spans.length);
+          spans[2*nspans] = start;
+          spans[2*nspans + 1] = end;
+          nspans++;
+        }
+        lazyNElem++;
+      }
+    }  // for each field.
+
+    if (lazyNElem != 0) {
+      // Attach a view of the lazy data to the instance if possible, or copy it into the slab.
+      final ReaderInput.Segment segment = (nspans == 1) ? in.getSegment(spans[0], spans[1]) : null;
+      if (segment != null)
+        setLazy(ann, segment.getBuffer(), segment.getIndex(spans[0]), (int) (spans[1] - spans[0]));
+      else {
+        if (slab == null)
+          slab = new RawBuffer();
+        if (nslabAnns + 1 == slabOffsets.length) {
+          slabAnns = Arrays.copyOf(slabAnns, 2*slabAnns.length);
+          slabOffsets = Arrays.copyOf(slabOffsets, 2*slabOffsets.length);
+        }
+        slabAnns[nslabAnns] = ann;
+        slabOffsets[nslabAnns] = slab.size();
+        nslabAnns++;
+        for (int s = 0; s != nspans; s++)
+          in.writeTo(spans[2*s], spans[2*s + 1], slab);
+      }
+      ann.setDRLazyNElem(lazyNElem);
+    }
+
+    if (isMarked)
+      in.unmark();
+  }
+
+  /**
+   * Sets the lazy data of the annotation to be the nbytes bytes starting at the absolute index
+   * offset of the provided buffer. Instances of {@link AbstractAnn} keep a view onto the buffer,
+   * whereas other {@link Ann} implementations are given a copy of the bytes.
+   **/
+  private static void setLazy(final Ann ann, final ByteBuffer buffer, final int offset, final int nbytes) {
+    if (ann instanceof AbstractAnn) {
+      ((AbstractAnn) ann).setDRLazy(buffer, offset, nbytes);
+      return;
+    }
+    final byte[] lazy = new byte[nbytes];
+    final ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.get(lazy);
+    ann.setDRLazy(lazy);
+  }
+
+  /**
+   * Attaches the lazy data copied into the slab to the instances it belongs to. The slab is shared
+   * by the instances, so a new slab is started afterwards.
+   **/
+  private void attachSlab() {
+    if (nslabAnns == 0)
+      return;
+    final ByteBuffer buffer = ByteBuffer.wrap(slab.getBuffer(), 0, slab.size());
+    slabOffsets[nslabAnns] = slab.size();
+    for (int i = 0; i != nslabAnns; i++) {
+      setLazy(slabAnns[i], buffer, slabOffsets[i], slabOffsets[i + 1] - slabOffsets[i]);
+      slabAnns[i] = null;
+    }
+    nslabAnns = 0;
+    slab = null;
+  }
+
+  /**
+   * Decodes the instances of a store from its retained raw bytes the first time the store is
+   * accessed, using one of the decoders owned by the reader.
+   **/
+  private final class StoreLoader implements Store.Loader {
+    private final T doc;
+    private final RTStoreSchema rtStoreSchema;
+    private final ByteBuffer payload;
+    private final boolean retainLazy;
+
+    StoreLoader(final T doc, final RTStoreSchema rtStoreSchema, final ByteBuffer payload, final boolean retainLazy) {
+      this.doc = doc;
+      this.rtStoreSchema = rtStoreSchema;
+      this.payload = payload;
+      this.retainLazy = retainLazy;
+    }
+
+    @Override
+    public void load() {
+      final Reader<T> decoder = acquireDecoder(doc, retainLazy);
+      try {
+        ((ArrayReaderInput) decoder.in).reset(payload);
+        decoder.restart();
+        decoder.readInstances(rtStoreSchema);
+      }
+      catch (IOException e) {
+        throw new ReaderException(e);
+      }
+      catch (IllegalAccessException e) {
+        throw new DocrepException(e);
+      }
+      finally {
+        releaseDecoder();
+      }
+    }
   }
 }
@@ -37,34 +37,15 @@ final class ReaderHelper {
 
       if (rtFieldSchema.isSlice())
         readPointerSlice(field, ann, store, unpacker);
+      else if (rtFieldSchema.isCollection() && field.getType() == Pointers.class)
+        readPointerIndices(field, ann, store, unpacker);
       else if (rtFieldSchema.isCollection())
         readPointers(field, ann, store, unpacker);
       else
         readPointer(field, ann, store, unpacker);
     }
-    else {
-      final Class<?> klass = fieldSchema.getField().getType();
-      if (klass == ByteSlice.class)
-        readByteSlice(field, ann, unpacker);
-      else
-        readPrimitive(field, ann, klass, unpacker);
-    }
-  }
-
-
-  private static void readByteSlice(final Field field, final Ann ann, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
-    final int npair = unpacker.unpackArrayHeader();
-    if (npair != 2)
-      throw new ReaderException("Invalid sized list read in for SLICE: expected 2 elements but found " + npair);
-    final long a = unpacker.unpackLong();
-    final long b = unpacker.unpackLong();
-    ByteSlice slice = (ByteSlice) field.get(ann);
-    if (slice == null) {
-      slice = new ByteSlice();
-      field.set(ann, slice);
-    }
-    slice.start = a;
-    slice.stop = a + b;
+    else
+      fieldSchema.getCodec().read(ann, unpacker);
   }
 
 
@@ -101,44 +82,16 @@ final class ReaderHelper {
   }
 
 
-  private static void readPrimitive(final Field field, final Ann ann, final Class<?> klass, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
-    if (klass == String.class) {
-      final String value = unpacker.unpackString();
-      field.set(ann, value);
-    }
-    else if (klass == byte.class || klass == Byte.class) {
-      final byte value = unpacker.unpackByte();
-      field.set(ann, value);
-    }
-    else if (klass == char.class || klass == Character.class) {
-      final char value = (char) unpacker.unpackInt();
-      field.set(ann, value);
-    }
-    else if (klass == short.class || klass == Short.class) {
-      final short value = unpacker.unpackShort();
-      field.set(ann, value);
-    }
-    else if (klass == int.class || klass == Integer.class) {
-      final int value = unpacker.unpackInt();
-      field.set(ann, value);
-    }
-    else if (klass == long.class || klass == Long.class) {
-      final long value = unpacker.unpackLong();
-      field.set(ann, value);
-    }
-    else if (klass == float.class || klass == Float.class) {
-      final float value = unpacker.unpackFloat();
-      field.set(ann, value);
-    }
-    else if (klass == double.class || klass == Double.class) {
-      final double value = unpacker.unpackDouble();
-      field.set(ann, value);
-    }
-    else if (klass == boolean.class || klass == Boolean.class) {
-      final boolean value = unpacker.unpackBoolean();
-      field.set(ann, value);
+  private static void readPointerIndices(final Field field, final Ann ann, final Store<? extends Ann> store, final MessageUnpacker unpacker) throws IOException, IllegalAccessException {
+    final int nitems = unpacker.unpackArrayHeader();
+    Pointers<Ann> pointers = (Pointers<Ann>) field.get(ann);
+    if (pointers == null) {
+      pointers = new Pointers<Ann>();
+      field.set(ann, pointers);
     }
-    else
-      throw new ReaderException("Unknown type (" + klass + ") of field '" + field + "'");
+    pointers.clear();
+    pointers.setStore(store);
+    for (int i = 0; i != nitems; i++)
+      pointers.addIndex(unpacker.unpackInt());
   }
 }
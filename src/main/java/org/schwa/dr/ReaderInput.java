@@ -0,0 +1,123 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.MessageBufferInput;
+
+
+/**
+ * Internal base class for the inputs that {@link Reader} decodes from. An input hands chunks of
+ * bytes to the {@link MessageUnpacker} and is able to provide the raw bytes of a previously
+ * decoded region again, given the absolute offsets of the region (as computed from
+ * {@link MessageUnpacker#getTotalReadBytes}). This is how lazy and {@link FieldMode#READ_ONLY}
+ * data is kept around for re-serialisation.
+ *
+ * @author Tim Dawborn
+ * @see Reader
+ **/
+abstract class ReaderInput implements MessageBufferInput {
+  /** The default number of bytes handed to the unpacker at a time. **/
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * A contiguous region of the input which is available as a {@link ByteBuffer}.
+   **/
+  static final class Segment {
+    private final long start;
+    private final ByteBuffer buffer;
+
+    public Segment(final long start, final ByteBuffer buffer) {
+      this.start = start;
+      this.buffer = buffer;
+    }
+
+    /** Returns the buffer for this segment. Index 0 of the buffer is the start of the segment. **/
+    public ByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    /** Returns the absolute offset of one past the last byte in this segment. **/
+    public long getEnd() {
+      return start + buffer.capacity();
+    }
+
+    /** Returns the index within the buffer of the provided absolute offset. **/
+    public int getIndex(final long offset) {
+      return (int) (offset - start);
+    }
+
+    /** Returns the absolute offset of the first byte in this segment. **/
+    public long getStart() {
+      return start;
+    }
+
+    /** Returns whether or not the absolute region [start, end) lies within this segment. **/
+    public boolean contains(final long start, final long end) {
+      return start >= this.start && end <= getEnd();
+    }
+  }
+
+  /**
+   * Ensures that all bytes from the absolute offset onwards are retained until
+   * {@link ReaderInput#unmark} is called.
+   **/
+  public abstract void mark(long offset);
+
+  /**
+   * Allows previously marked bytes to be released.
+   **/
+  public abstract void unmark();
+
+  /**
+   * Writes the raw bytes between the absolute offsets [start, end) to the output stream. These
+   * bytes must have been retained via {@link ReaderInput#mark}.
+   **/
+  public abstract void writeTo(long start, long end, OutputStream out) throws IOException;
+
+  /**
+   * Returns the {@link Segment} which wholly contains the absolute region [start, end), or null if
+   * this input cannot provide a view onto that region without copying.
+   **/
+  public Segment getSegment(final long start, final long end) {
+    return null;
+  }
+
+  /**
+   * Returns whether or not this input can provide views onto previously decoded regions via
+   * {@link ReaderInput#getSegment}.
+   **/
+  public boolean hasSegments() {
+    return false;
+  }
+
+  /**
+   * Repositions the input so that the next chunk handed to the unpacker starts at the provided
+   * absolute offset. Inputs which cannot be repositioned throw an
+   * {@link UnsupportedOperationException}.
+   **/
+  public void seek(final long offset) throws IOException {
+    throw new UnsupportedOperationException("This input does not support seeking");
+  }
+
+  /**
+   * Consumes the next nbytes raw bytes from the unpacker, which is positioned at the provided
+   * absolute offset, returning them as a buffer whose position and limit delimit the bytes.
+   **/
+  public ByteBuffer readPayload(final MessageUnpacker unpacker, final long offset, final int nbytes) throws IOException {
+    final Segment segment = getSegment(offset, offset + nbytes);
+    if (segment == null) {
+      final byte[] payload = new byte[nbytes];
+      unpacker.readPayload(payload);
+      return ByteBuffer.wrap(payload);
+    }
+
+    unpacker.skipBytes(nbytes);
+    final ByteBuffer view = segment.getBuffer().duplicate();
+    view.limit(segment.getIndex(offset) + nbytes);
+    view.position(segment.getIndex(offset));
+    return view.slice();
+  }
+}
@@ -1,5 +1,6 @@
 package org.schwa.dr;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -16,7 +17,17 @@ import java.util.ListIterator;
  * @author Tim Dawborn
  **/
 public class Store<T extends Ann> implements List<T> {
+  /**
+   * Internal hook used by {@link Reader} to decode the instances of a store the first time the
+   * store is accessed, rather than when the document is read in.
+   **/
+  interface Loader {
+    void load();
+  }
+
   protected final List<T> items;
+  private Loader loader;
+  private ByteBuffer raw;  // The <instances> the store was read in from, while unmodified.
 
   public Store() {
     items = new ArrayList<T>();
@@ -27,6 +38,7 @@ public class Store<T extends Ann> implements List<T> {
    **/
   @Override
   public boolean add(T obj) {
+    touch();
     if (obj.getDRIndex() != null)
       throw new IllegalArgumentException("Cannot insert an object into a Store which is already in a store (drIndex=" + obj.getDRIndex() + ")");
     obj.setDRIndex(items.size());
@@ -47,6 +59,7 @@ public class Store<T extends Ann> implements List<T> {
    **/
   @Override
   public boolean addAll(Collection<? extends T> c) {
+    touch();
     for (T obj : c)
       if (obj.getDRIndex() != null)
         throw new IllegalArgumentException("Cannot insert an object into a Store which is already in a store (drIndex=" + obj.getDRIndex() + ")");
@@ -70,6 +83,8 @@ public class Store<T extends Ann> implements List<T> {
    **/
   @Override
   public void clear() {
+    loader = null;
+    raw = null;
     for (T obj : items)
       obj.setDRIndex(null);
     items.clear();
@@ -77,11 +92,13 @@ public class Store<T extends Ann> implements List<T> {
 
   @Override
   public boolean contains(Object o) {
+    load();
     return items.contains(o);
   }
 
   @Override
   public boolean containsAll(Collection<?> c) {
+    load();
     return items.containsAll(c);
   }
 
@@ -117,21 +134,25 @@ public class Store<T extends Ann> implements List<T> {
 
   @Override
   public boolean equals(Object o) {
+    load();
     return items.equals(o);
   }
 
   @Override
   public T get(int index) {
+    touch();
     return items.get(index);
   }
 
   @Override
   public int hashCode() {
+    load();
     return items.hashCode();
   }
 
   @Override
   public int indexOf(Object o) {
+    load();
     return items.indexOf(o);
   }
 
@@ -142,21 +163,51 @@ public class Store<T extends Ann> implements List<T> {
 
   @Override
   public Iterator<T> iterator() {
+    touch();
     return items.iterator();
   }
 
+  /**
+   * Returns whether or not the instances of this store have been decoded. Stores read in by a
+   * {@link Reader} with on-demand stores enabled are not decoded until they are first accessed.
+   * The size of the store is known without decoding it.
+   *
+   * @see Reader#setOnDemandStores
+   **/
+  public boolean isLoaded() {
+    return loader == null;
+  }
+
+  /**
+   * Returns whether or not the instances of this store may differ from the bytes they were read in
+   * from. Only stores read in by a {@link Reader} with raw pass-through enabled start out
+   * unmodified. Any method which adds instances to the store or hands out an instance, such as
+   * {@link Store#get} or {@link Store#iterator}, marks the store as modified, since the fields of
+   * the instances it hands out can be assigned to. Writing a value through a
+   * {@link ColumnStore.Cursor} also marks the store as modified. Unmodified stores are written out by
+   * {@link Writer} by copying their raw bytes.
+   *
+   * @see Reader#setRawPassThrough
+   **/
+  public boolean isModified() {
+    return raw == null;
+  }
+
   @Override
   public int lastIndexOf(Object o) {
+    load();
     return items.lastIndexOf(o);
   }
 
   @Override
   public ListIterator<T> listIterator() {
+    touch();
     return items.listIterator();
   }
 
   @Override
   public ListIterator<T> listIterator(int index) {
+    touch();
     return items.listIterator(index);
   }
 
@@ -205,6 +256,38 @@ public class Store<T extends Ann> implements List<T> {
     throw new UnsupportedOperationException();
   }
 
+  void setLoader(final Loader loader) {
+    this.loader = loader;
+  }
+
+  ByteBuffer getRaw() {
+    return raw;
+  }
+
+  void setRaw(final ByteBuffer raw) {
+    this.raw = raw;
+  }
+
+  /**
+   * Decodes the instances of the store if they have not yet been decoded.
+   **/
+  protected final void load() {
+    if (loader != null) {
+      final Loader loader = this.loader;
+      this.loader = null;
+      loader.load();
+    }
+  }
+
+  /**
+   * Decodes the instances of the store if required, and marks the store as modified since an
+   * instance is about to be added or handed out.
+   **/
+  protected final void touch() {
+    raw = null;
+    load();
+  }
+
   @Override
   public int size() {
     return items.size();
@@ -221,11 +304,13 @@ public class Store<T extends Ann> implements List<T> {
 
   @Override
   public Object[] toArray() {
+    touch();
     return items.toArray();
   }
 
   @Override
   public <T> T[] toArray(T[] a) {
+    touch();
     return items.toArray(a);
   }
 }
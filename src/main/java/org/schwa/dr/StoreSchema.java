@@ -1,6 +1,7 @@
 package org.schwa.dr;
 
 import java.lang.reflect.Field;
+import java.util.List;
 
 
 /**
@@ -24,6 +25,13 @@ public final class StoreSchema {
     this.serial = serial.isEmpty() ? name : serial;
   }
 
+  /**
+   * Returns an independent copy of this store schema.
+   **/
+  StoreSchema copy() {
+    return new StoreSchema(field, storedKlass, name, mode, serial);
+  }
+
   public Field getField() {
     return field;
   }
@@ -56,6 +64,10 @@ public final class StoreSchema {
   public void resize(final int size, final Doc doc) {
     try {
       Store<Ann> store = (Store<Ann>) field.get(doc);
+      if (store instanceof ColumnStore) {
+        ((ColumnStore<Ann>) store).reset(size);
+        return;
+      }
       for (int i = 0; i != size; i++) {
         Ann ann = (Ann) storedKlass.newInstance();
         store.add(ann);
@@ -69,6 +81,39 @@ public final class StoreSchema {
     }
   }
 
+  /**
+   * Resizes the store on the provided document to house size instances, reusing the instances
+   * already in the store rather than constructing new ones. Reused instances are reset via
+   * {@link AnnSchema#reset}, where annSchema is the schema of the stored class, and have their
+   * drIndex reassigned. Surplus instances are removed from the store.
+   **/
+  void recycle(final int size, final Doc doc, final AnnSchema annSchema) {
+    try {
+      final Store<Ann> store = (Store<Ann>) field.get(doc);
+      if (store instanceof ColumnStore) {
+        ((ColumnStore<Ann>) store).reset(size);
+        return;
+      }
+      store.setLoader(null);
+      final List<Ann> items = store.items;
+      while (items.size() > size)
+        items.remove(items.size() - 1).setDRIndex(null);
+      for (int i = 0; i != items.size(); i++) {
+        final Ann ann = items.get(i);
+        annSchema.reset(ann);
+        ann.setDRIndex(i);
+      }
+      while (items.size() < size)
+        store.add((Ann) storedKlass.newInstance());
+    }
+    catch (IllegalAccessException e) {
+      throw new DocrepException(e);
+    }
+    catch (InstantiationException e) {
+      throw new DocrepException(e);
+    }
+  }
+
   public void setSerial(String serial) {
     this.serial = serial;
   }
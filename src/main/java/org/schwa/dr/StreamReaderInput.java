@@ -0,0 +1,158 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.msgpack.core.buffer.MessageBuffer;
+
+
+/**
+ * Internal buffered {@link ReaderInput} over an input stream or channel. Bytes are read from the
+ * underlying input stream or channel in large chunks and handed to the
+ * {@link org.msgpack.core.MessageUnpacker}. Absolute stream offsets are tracked so that the raw
+ * serialised bytes of a previously decoded region can be copied back out, which is how lazy and
+ * {@link FieldMode#READ_ONLY} fields are implemented without needing {@link InputStream#mark}
+ * support on the underlying stream. Only the bytes from the current mark onwards are kept, so
+ * memory use is bounded by the largest marked region.
+ *
+ * @author Tim Dawborn
+ * @see ReaderInput
+ **/
+final class StreamReaderInput extends ReaderInput {
+  private final InputStream in;
+  private final ReadableByteChannel channel;
+  private final int chunkSize;
+  private byte[] buffer;
+  private byte[] spare;
+  private long bufferStart;  // Absolute stream offset of buffer[0].
+  private int bufferEnd;  // Number of valid bytes in buffer.
+  private int handedEnd;  // Number of bytes in buffer which have been handed to the unpacker.
+  private long mark;  // Earliest absolute stream offset which must be retained, or -1.
+
+  public StreamReaderInput(final InputStream in, final int chunkSize) {
+    this(in, null, chunkSize);
+  }
+
+  public StreamReaderInput(final ReadableByteChannel channel, final int chunkSize) {
+    this(null, channel, chunkSize);
+  }
+
+  private StreamReaderInput(final InputStream in, final ReadableByteChannel channel, final int chunkSize) {
+    if (chunkSize <= 0)
+      throw new IllegalArgumentException("chunkSize must be positive");
+    this.in = in;
+    this.channel = channel;
+    this.chunkSize = chunkSize;
+    this.buffer = new byte[chunkSize];
+    this.spare = new byte[chunkSize];
+    this.bufferStart = 0;
+    this.bufferEnd = 0;
+    this.handedEnd = 0;
+    this.mark = -1;
+  }
+
+  @Override
+  public void mark(final long offset) {
+    if (offset < bufferStart)
+      throw new IllegalStateException("Cannot mark offset " + offset + " as it has already been released");
+    mark = offset;
+  }
+
+  @Override
+  public void unmark() {
+    mark = -1;
+  }
+
+  @Override
+  public void writeTo(final long start, final long end, final OutputStream out) throws IOException {
+    if (start < bufferStart || start > end)
+      throw new ReaderException("Requested bytes [" + start + ", " + end + ") are no longer buffered");
+
+    // The unpacker skips over values without necessarily having been handed all of their bytes,
+    // so read ahead of the unpacker if required. The read ahead bytes are handed out by next().
+    while (end > bufferStart + bufferEnd) {
+      if (bufferEnd + chunkSize > buffer.length) {
+        final byte[] larger = new byte[Math.max(bufferEnd + chunkSize, 2*buffer.length)];
+        System.arraycopy(buffer, 0, larger, 0, bufferEnd);
+        buffer = larger;
+      }
+      final int nread = read(buffer, bufferEnd, chunkSize);
+      if (nread == -1)
+        throw new ReaderException("Unexpected end of input reading bytes [" + start + ", " + end + ")");
+      bufferEnd += nread;
+    }
+    out.write(buffer, (int) (start - bufferStart), (int) (end - start));
+  }
+
+  /**
+   * Repositions the underlying channel, which must be a {@link FileChannel}. Offsets into this
+   * input continue from the provided offset.
+   **/
+  @Override
+  public void seek(final long offset) throws IOException {
+    if (!(channel instanceof FileChannel))
+      throw new UnsupportedOperationException("Only inputs over a FileChannel support seeking");
+    ((FileChannel) channel).position(offset);
+    bufferStart = offset;
+    bufferEnd = 0;
+    handedEnd = 0;
+    mark = -1;
+  }
+
+  @Override  // MessageBufferInput
+  public MessageBuffer next() throws IOException {
+    // Hand out any bytes which were read ahead of the unpacker by writeTo first.
+    if (handedEnd == bufferEnd) {
+      // Make room for the next chunk, only keeping bytes from the mark onwards. Bytes which have
+      // already been handed out are never overwritten since the unpacker may still refer to the
+      // current chunk, so the retained bytes are always moved into the other of the two arrays.
+      if (bufferEnd + chunkSize > buffer.length) {
+        final long keepFrom = (mark == -1) ? bufferStart + bufferEnd : mark;
+        final int nkeep = (int) (bufferStart + bufferEnd - keepFrom);
+        byte[] target = spare;
+        if (target.length < nkeep + chunkSize)
+          target = new byte[Math.max(nkeep + chunkSize, 2*target.length)];
+        System.arraycopy(buffer, bufferEnd - nkeep, target, 0, nkeep);
+        spare = buffer;
+        buffer = target;
+        bufferStart = keepFrom;
+        bufferEnd = nkeep;
+        handedEnd = nkeep;
+      }
+
+      final int nread = read(buffer, bufferEnd, chunkSize);
+      if (nread == -1)
+        return null;
+      bufferEnd += nread;
+    }
+
+    final MessageBuffer chunk = MessageBuffer.wrap(buffer).slice(handedEnd, bufferEnd - handedEnd);
+    handedEnd = bufferEnd;
+    return chunk;
+  }
+
+  @Override  // Closeable
+  public void close() throws IOException {
+    if (in != null)
+      in.close();
+    else
+      channel.close();
+  }
+
+  private int read(final byte[] bytes, final int offset, final int length) throws IOException {
+    if (in != null)
+      return in.read(bytes, offset, length);
+
+    // Blocking channels always read at least one byte unless the end of the stream is reached.
+    int nread;
+    final ByteBuffer bb = ByteBuffer.wrap(bytes, offset, length);
+    do {
+      nread = channel.read(bb);
+    } while (nread == 0);
+    return nread;
+  }
+}
@@ -0,0 +1,258 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * <p>
+ * Writes out docrep documents to an output stream from a dedicated background thread, so that the
+ * caller does not block on the output stream. Documents are serialised on the calling thread and
+ * the encoded bytes are handed to the background thread via a bounded queue. The background
+ * thread coalesces the encoded documents into large writes, writing and flushing the output stream
+ * once flushNBytes bytes are pending or once the oldest pending document has waited flushMillis
+ * milliseconds, whichever happens first. If the queue is full, {@link WriteBehindWriter#write}
+ * blocks until the background thread catches up.
+ * </p>
+ * <p>
+ * Failures writing to the output stream happen on the background thread, so they are deferred:
+ * once a failure has occurred, nothing more is written, and the failure is surfaced as a
+ * {@link WriterException} from the next call to {@link WriteBehindWriter#write},
+ * {@link WriteBehindWriter#flush}, or {@link WriteBehindWriter#close}. If the background thread
+ * is interrupted, it stops, and the interruption is surfaced in the same way.
+ * </p>
+ * <p>
+ * This class is not safe for use by multiple producer threads. {@link WriteBehindWriter#close}
+ * must be called to write out the pending documents and stop the background thread. The output
+ * stream is never closed.
+ * </p>
+ *
+ * @author Tim Dawborn
+ * @see Writer
+ **/
+public final class WriteBehindWriter {
+  /** The default maximum number of encoded documents queued for the background thread. **/
+  public static final int DEFAULT_MAX_QUEUED = 64;
+  /** The default number of pending bytes after which the output stream is written to. **/
+  public static final int DEFAULT_FLUSH_NBYTES = 1 << 20;
+  /** The default maximum time in milliseconds a document stays pending before being written. **/
+  public static final long DEFAULT_FLUSH_MILLIS = 1000;
+  /** How often a blocked caller checks whether the background thread is still running. **/
+  private static final long POLL_MILLIS = 100;
+
+  /** An entry in the hand-off queue: an encoded document, or a request to flush. **/
+  private static final class Item {
+    final byte[] bytes;
+    final CountDownLatch flushed;
+    final boolean last;
+
+    Item(final byte[] bytes, final CountDownLatch flushed, final boolean last) {
+      this.bytes = bytes;
+      this.flushed = flushed;
+      this.last = last;
+    }
+  }
+
+  private final OutputStream out;
+  private final ByteArrayOutputStream encoded;
+  private final Writer writer;
+  private final BlockingQueue<Item> queue;
+  private final int flushNBytes;
+  private final long flushNanos;
+  private final Thread thread;
+  private volatile Throwable failure;
+  private boolean closed;
+
+  /**
+   * Constructs a new write-behind docrep writer over the output stream using the default queue
+   * size and flush policy.
+   *
+   * @param out The output stream to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   **/
+  public WriteBehindWriter(OutputStream out, DocSchema docSchema) {
+    this(out, docSchema, DEFAULT_MAX_QUEUED, DEFAULT_FLUSH_NBYTES, DEFAULT_FLUSH_MILLIS);
+  }
+
+  /**
+   * Constructs a new write-behind docrep writer over the output stream.
+   *
+   * @param out The output stream to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   * @param maxQueued The maximum number of encoded documents queued for the background thread.
+   * @param flushNBytes The number of pending bytes after which the output stream is written to.
+   * @param flushMillis The maximum time in milliseconds a document stays pending before being
+   *                    written to the output stream.
+   **/
+  public WriteBehindWriter(OutputStream out, DocSchema docSchema, int maxQueued, int flushNBytes, long flushMillis) {
+    if (maxQueued <= 0)
+      throw new IllegalArgumentException("maxQueued must be positive");
+    if (flushNBytes <= 0)
+      throw new IllegalArgumentException("flushNBytes must be positive");
+    if (flushMillis < 0)
+      throw new IllegalArgumentException("flushMillis must not be negative");
+    this.out = out;
+    this.encoded = new ByteArrayOutputStream();
+    this.writer = new Writer(encoded, docSchema);
+    this.queue = new ArrayBlockingQueue<Item>(maxQueued);
+    this.flushNBytes = flushNBytes;
+    this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeBehind();
+      }
+    }, "docrep-write-behind");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Serialises a docrep document and queues it to be written out by the background thread.
+   **/
+  public void write(final Doc doc) throws IOException {
+    checkUsable();
+    encoded.reset();
+    writer.write(doc);
+    put(new Item(encoded.toByteArray(), null, false));
+  }
+
+  /**
+   * Waits for all of the queued documents to be written out, and flushes the output stream.
+   **/
+  public void flush() {
+    checkUsable();
+    final CountDownLatch flushed = new CountDownLatch(1);
+    put(new Item(null, flushed, false));
+    await(flushed);
+    checkFailure();
+  }
+
+  /**
+   * Writes out all of the queued documents, flushes the output stream, and stops the background
+   * thread. If writing failed at any point, the failure is thrown here.
+   **/
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    final CountDownLatch flushed = new CountDownLatch(1);
+    put(new Item(null, flushed, true));
+    await(flushed);
+    checkFailure();
+  }
+
+  private void checkUsable() {
+    if (closed)
+      throw new WriterException("Cannot write to a closed WriteBehindWriter");
+    checkFailure();
+  }
+
+  private void checkFailure() {
+    if (failure != null)
+      throw new WriterException(failure);
+  }
+
+  private void put(final Item item) {
+    try {
+      while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS))
+        checkAlive();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WriterException(e);
+    }
+  }
+
+  private void await(final CountDownLatch latch) {
+    try {
+      while (!latch.await(POLL_MILLIS, TimeUnit.MILLISECONDS))
+        checkAlive();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WriterException(e);
+    }
+  }
+
+  /**
+   * Throws the deferred failure if the background thread has stopped, as nothing would ever take
+   * from the queue or release a flush again.
+   **/
+  private void checkAlive() {
+    if (!thread.isAlive()) {
+      checkFailure();
+      throw new WriterException("The write-behind thread has stopped");
+    }
+  }
+
+  /**
+   * Takes encoded documents from the queue, coalescing them into large writes, until the writer is
+   * closed.
+   **/
+  private void writeBehind() {
+    final ByteArrayOutputStream pending = new ByteArrayOutputStream(flushNBytes + flushNBytes/8);
+    long deadline = 0;  // When the oldest pending document needs to be written out by.
+    try {
+      while (true) {
+        final Item item;
+        if (pending.size() == 0)
+          item = queue.take();
+        else {
+          final long wait = deadline - System.nanoTime();
+          item = (wait <= 0) ? null : queue.poll(wait, TimeUnit.NANOSECONDS);
+        }
+
+        if (item == null)
+          writePending(pending);
+        else if (item.bytes != null) {
+          if (failure != null)
+            continue;
+          if (pending.size() == 0)
+            deadline = System.nanoTime() + flushNanos;
+          pending.write(item.bytes, 0, item.bytes.length);
+          if (pending.size() >= flushNBytes)
+            writePending(pending);
+        }
+        else {
+          writePending(pending);
+          item.flushed.countDown();
+          if (item.last)
+            return;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      // Interrupted by something other than this writer, so stop writing. Callers waiting on a
+      // flush are released, and find the failure.
+      if (failure == null)
+        failure = e;
+      Item item;
+      while ((item = queue.poll()) != null)
+        if (item.flushed != null)
+          item.flushed.countDown();
+    }
+  }
+
+  private void writePending(final ByteArrayOutputStream pending) {
+    if (failure == null) {
+      try {
+        if (pending.size() != 0)
+          pending.writeTo(out);
+        out.flush();
+      }
+      catch (IOException e) {
+        failure = e;
+      }
+      catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+    pending.reset();
+  }
+}
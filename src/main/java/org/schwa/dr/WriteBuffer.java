@@ -0,0 +1,168 @@
+package org.schwa.dr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Internal growable byte buffer used by {@link Writer} to serialise the instances of a document.
+ * The buffer is reset and reused between documents rather than reallocated, and supports
+ * back-patching msgpack headers whose values are only known once the bytes which follow them have
+ * been written. A header is reserved with a guessed width, and the bytes which follow it are
+ * shifted in place only when the final value does not fit the guessed width.
+ *
+ * @author Tim Dawborn
+ * @see Writer
+ **/
+final class WriteBuffer extends OutputStream {
+  private byte[] buf;
+  private int size;
+
+  WriteBuffer(final int capacity) {
+    buf = new byte[capacity];
+  }
+
+  public byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Discards the contents of the buffer, keeping the allocated capacity.
+   **/
+  public void reset() {
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void write(final int b) {
+    ensureCapacity(size + 1);
+    buf[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
+    ensureCapacity(size + len);
+    System.arraycopy(b, off, buf, size, len);
+    size += len;
+  }
+
+  /**
+   * Appends the remaining bytes of the provided buffer without copying through an intermediate
+   * array.
+   **/
+  public void write(final ByteBuffer b) {
+    final int len = b.remaining();
+    ensureCapacity(size + len);
+    b.get(buf, size, len);
+    size += len;
+  }
+
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(buf, 0, size);
+  }
+
+  /**
+   * Reserves a single byte at the end of the buffer for a map header to be written later via
+   * {@link WriteBuffer#patchMapHeader}, returning its position.
+   **/
+  public int reserveMapHeader() {
+    final int pos = size;
+    write(0x80);
+    return pos;
+  }
+
+  /**
+   * Writes the msgpack map header for a map of nelem entries into the byte reserved at pos.
+   **/
+  public void patchMapHeader(final int pos, final int nelem) {
+    if (nelem < 16)
+      buf[pos] = (byte) (0x80 | nelem);
+    else if (nelem < 65536) {
+      shift(pos + 1, 2);
+      buf[pos] = (byte) 0xde;
+      putShort(pos + 1, nelem);
+    }
+    else {
+      shift(pos + 1, 4);
+      buf[pos] = (byte) 0xdf;
+      putInt(pos + 1, nelem);
+    }
+  }
+
+  /**
+   * Appends the smallest msgpack encoding of the non-negative integer value, as
+   * {@link org.msgpack.core.MessagePacker#packInt} would.
+   **/
+  public void writeUInt(final int value) {
+    patchUInt(reserveUInt(), value);
+  }
+
+  /**
+   * Reserves three bytes at the end of the buffer for an unsigned integer to be written later via
+   * {@link WriteBuffer#patchUInt}, returning its position. Three bytes fits any value below 65536
+   * without shifting.
+   **/
+  public int reserveUInt() {
+    final int pos = size;
+    ensureCapacity(size + 3);
+    size += 3;
+    return pos;
+  }
+
+  /**
+   * Writes the smallest msgpack encoding of the non-negative integer value into the three bytes
+   * reserved at pos, as {@link org.msgpack.core.MessagePacker#packInt} would.
+   **/
+  public void patchUInt(final int pos, final int value) {
+    if (value < 128) {
+      shift(pos + 3, -2);
+      buf[pos] = (byte) value;
+    }
+    else if (value < 256) {
+      shift(pos + 3, -1);
+      buf[pos] = (byte) 0xcc;
+      buf[pos + 1] = (byte) value;
+    }
+    else if (value < 65536) {
+      buf[pos] = (byte) 0xcd;
+      putShort(pos + 1, value);
+    }
+    else {
+      shift(pos + 3, 2);
+      buf[pos] = (byte) 0xce;
+      putInt(pos + 1, value);
+    }
+  }
+
+  private void ensureCapacity(final int capacity) {
+    if (buf.length < capacity)
+      buf = Arrays.copyOf(buf, Math.max(capacity, 2*buf.length));
+  }
+
+  private void putShort(final int pos, final int value) {
+    buf[pos] = (byte) (value >>> 8);
+    buf[pos + 1] = (byte) value;
+  }
+
+  private void putInt(final int pos, final int value) {
+    buf[pos] = (byte) (value >>> 24);
+    buf[pos + 1] = (byte) (value >>> 16);
+    buf[pos + 2] = (byte) (value >>> 8);
+    buf[pos + 3] = (byte) value;
+  }
+
+  /**
+   * Moves the bytes from pos to the end of the buffer by delta bytes.
+   **/
+  private void shift(final int pos, final int delta) {
+    ensureCapacity(size + delta);
+    System.arraycopy(buf, pos, buf, pos + delta, size - pos);
+    size += delta;
+  }
+}
@@ -1,9 +1,13 @@
 package org.schwa.dr;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
 import java.util.List;
 
 import org.msgpack.core.MessagePackFactory;
@@ -17,7 +21,7 @@ import org.schwa.dr.runtime.RTStoreSchema;
 
 
 /**
- * Writes out docrep documents to the output stream provided in the constructor.
+ * Writes out docrep documents to the output stream or channel provided in the constructor.
  *
  * @author Tim Dawborn
  **/
@@ -26,8 +30,49 @@ public final class Writer {
   public static final byte WIRE_VERSION = 3;
 
   private final OutputStream out;
+  private final GatheringByteChannel channel;
   private final DocSchema docSchema;
-  private final MessagePacker packer;
+  private final HeaderCache headers;
+  private final byte[] scratch;
+  private final WriteBuffer instances;  // The instances of the current document.
+  private final MessagePacker instancesPacker;
+  private ByteBuffer[] gather;  // The pieces of the current document when writing to a channel.
+  private int ngather;
+  private int gatherStart;  // The start of the instances not yet added to gather.
+  private boolean precomputeSizes;
+  private CountingOutputStream sink;  // The output when streaming instances with precomputed sizes.
+  private MessagePacker sinkPacker;
+  private int[] groupNBytes;  // The precomputed <instances_nbytes> of each instances group.
+  private int[] nelems;  // The precomputed number of map entries of each instance.
+  private int nsized;
+  private boolean[] rawStores;  // Whether each store of the current document is copied verbatim.
+
+  /** Output stream which counts the number of bytes written through it. **/
+  private static final class CountingOutputStream extends OutputStream {
+    private final OutputStream out;
+    long count;
+
+    CountingOutputStream(final OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
 
   /**
    * Constructs a new docrep writer given the output stream and document schema.
@@ -38,194 +83,512 @@ public final class Writer {
    *                  of a generic type due to type erasure.
    **/
   public Writer(OutputStream out, DocSchema docSchema) {
+    this(out, null, docSchema);
+  }
+
+  /**
+   * Constructs a new docrep writer given a channel, such as a {@link FileChannel}, and the document
+   * schema. Each document is written using a single gathering write of its serialised headers and
+   * instances along with the lazy data of any stores which were not read in. The lazy data are
+   * wrapped rather than copied, so passing lazily read stores through is close to zero-copy.
+   *
+   * @param channel The channel to write to.
+   * @param docSchema The {@link DocSchema} instance to use for writing.
+   **/
+  public Writer(GatheringByteChannel channel, DocSchema docSchema) {
+    this(null, channel, docSchema);
+  }
+
+  private Writer(OutputStream out, GatheringByteChannel channel, DocSchema docSchema) {
     this.out = out;
+    this.channel = channel;
     this.docSchema = docSchema;
-    this.packer = MessagePackFactory.newDefaultPacker(out);
+    this.headers = new HeaderCache();
+    this.scratch = new byte[8 * 1024];
+    this.instances = new WriteBuffer(64 * 1024);
+    this.instancesPacker = MessagePackFactory.newDefaultPacker(instances);
+    this.gather = new ByteBuffer[8];
+    this.groupNBytes = new int[8];
+    this.nelems = new int[0];
+    this.rawStores = new boolean[8];
   }
 
   /**
-   * Serialises a docrep document to the wrapped output stream.
+   * Sets whether or not the <code>&lt;instances_nbytes&gt;</code> of each instances group is
+   * precomputed by a sizing pass over the field values. When set, the instances of each document
+   * are streamed straight to the output after the sizing pass rather than first being serialised
+   * into an in-memory buffer, so writing a document with very large stores does not need memory
+   * proportional to its serialised size. This comes at the cost of visiting each field value twice.
+   * The sizing pass covers the whole document before anything is written out, so a field which
+   * cannot be written, such as a pointer to an instance which is not in its store or a string
+   * containing an unpaired surrogate, causes a {@link WriterException} to be thrown before any of
+   * the document has been written. Each streamed instances group is also checked against its
+   * precomputed size, but a mismatch there can only be detected after the group was written.
+   **/
+  public void setPrecomputeSizes(boolean precomputeSizes) {
+    this.precomputeSizes = precomputeSizes;
+  }
+
+  /**
+   * Serialises a docrep document to the wrapped output stream or channel.
    **/
   public void write(final Doc doc) throws IOException {
+    // Documents read using a non-writable Projection are missing their skipped data.
+    if (doc.getDRRT() != null && doc.getDRRT().isReadOnly())
+      throw new WriterException("Cannot write a document which was read using a non-writable Projection");
+
     // Ger or construct the RTManager for the document.
     final RTManager rt = RTFactory.buildOrMerge(doc.getDRRT(), docSchema);
     final RTAnnSchema rtDocSchema = rt.getDocSchema();
 
+    // Discard anything left over from a previous document which failed part way through.
+    instancesPacker.flush();
+    instances.reset();
+    Arrays.fill(gather, 0, ngather, null);
+    ngather = 0;
+    gatherStart = 0;
+
     // <wire_version>
-    packer.packByte(WIRE_VERSION);
+    instances.write(WIRE_VERSION);
 
-    // <klasses>
-    writeKlassesHeader(rt.getSchemas(), rtDocSchema);
+    // <klasses> <stores>
+    headers.write(rt, doc, instances);
 
-    // <stores>
-    writeStoresHeader(rtDocSchema.getStores(), doc);
+    findRawStores(doc, rtDocSchema);
 
-    // <doc_instance> ::= <instances_nbytes> <instance>
-    if (rtDocSchema.isLazy()) {
-      final byte[] lazyData = rtDocSchema.getLazyData();
-      packer.packInt(lazyData.length);
-      packer.flush();
-      out.write(lazyData);
+    if (precomputeSizes) {
+      writeSized(doc, rtDocSchema);
+      return;
     }
+
+    // The instances are serialised into a buffer which is reused across documents, with the
+    // <instances_nbytes> prefixes and map headers back-patched once their values are known.
+    // <doc_instance> ::= <instances_nbytes> <instance>
+    if (rtDocSchema.isLazy())
+      writeLazyGroup(rtDocSchema.getLazyBuffer());
     else {
-      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-      final DataOutputStream dos = new DataOutputStream(bos);
-      writeInstance(doc, rtDocSchema, doc, dos);
-      packer.packInt(bos.size());
-      packer.flush();
-      bos.writeTo(out);
+      final int prefix = instances.reserveUInt();
+      final int begin = instances.size();
+      writeInstance(doc, rtDocSchema, doc);
+      instances.patchUInt(prefix, instances.size() - begin);
     }
 
     // <instances_groups> ::= <instances_group>*
-    for (RTStoreSchema rtStoreSchema : rtDocSchema.getStores()) {
+    final List<RTStoreSchema> stores = rtDocSchema.getStores();
+    for (int i = 0; i != stores.size(); i++) {
       // <instances_group> ::= <instances_nbytes> <instances>
-      if (rtStoreSchema.isLazy()) {
-        final byte[] lazy = rtStoreSchema.getLazyData();
-        packer.packInt(lazy.length);
-        packer.flush();
-        out.write(lazy, 0, lazy.length);
-      }
+      final RTStoreSchema rtStoreSchema = stores.get(i);
+      if (rtStoreSchema.isLazy())
+        writeLazyGroup(rtStoreSchema.getLazyBuffer());
+      else if (rawStores[i])
+        writeLazyGroup(rtStoreSchema.getDef().getStore(doc).getRaw());
       else {
         final RTAnnSchema storedKlass = rtStoreSchema.getStoredKlass();
         final Store<? extends Ann> store = rtStoreSchema.getDef().getStore(doc);
 
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        final DataOutputStream dos = new DataOutputStream(bos);
-        writeArrayHeader(dos, store.size());
-        for (Ann ann : store)
-          writeInstance(ann, storedKlass, doc, dos);
-        packer.packInt(bos.size());
-        packer.flush();
-        bos.writeTo(out);
+        final int prefix = instances.reserveUInt();
+        final int begin = instances.size();
+        instancesPacker.packArrayHeader(store.size());
+        instancesPacker.flush();
+        if (store instanceof ColumnStore)
+          writeColumnInstances((ColumnStore<? extends Ann>) store, storedKlass, doc);
+        else {
+          for (Ann ann : store)
+            writeInstance(ann, storedKlass, doc);
+        }
+        instances.patchUInt(prefix, instances.size() - begin);
       }
     }
 
     // flush since we've written a whole document
-    packer.flush();
-    out.flush();
-  }
-
-  private void writeKlassesHeader(final List<RTAnnSchema> schemas, final RTAnnSchema rtDocSchema) throws IOException {
-    // <klasses> ::= [ <klass> ]
-    packer.packArrayHeader(schemas.size());
-    int i = 0;
-    for (RTAnnSchema schema : schemas) {
-      // <klass> ::= ( <klass_name>, <fields> )
-      packer.packArrayHeader(2);
-      if (schema.getKlassId() != i)
-        throw new AssertionError();
-
-      // <klass_name>
-      if (schema == rtDocSchema)
-        packer.packString("__meta__");
-      else if (schema.isLazy())
-        packer.packString(schema.getSerial());
-      else
-        packer.packString(schema.getDef().getSerial());
+    if (channel != null) {
+      addInstances();
+      writeGather();
+    }
+    else {
+      instances.writeTo(out);
+      out.flush();
+    }
+    instances.reset();
+  }
 
-      // <fields> ::= [ <field> ]
-      packer.packArrayHeader(schema.getFields().size());
-      for (RTFieldSchema field : schema.getFields()) {
-        // <field> ::= { <field_type> : <field_val> }
-        final int nfields = 1 + (field.isPointer() ? 1 : 0) + (field.isSlice() ? 1 : 0) + (field.isCollection() ? 1 : 0) + (field.isSelfPointer() ? 1 : 0);
-        packer.packMapHeader(nfields);
-
-        // <field_type> ::= 0 # NAME => the name of the field
-        packer.packByte((byte) 0);
-        packer.packString(field.isLazy() ? field.getSerial() : field.getDef().getSerial());
-
-        // <field_type> ::= 1 # POINTER_TO => the <store_id> that this field points into
-        if (field.isPointer()) {
-          packer.packByte((byte) 1);
-          packer.packInt(field.getContainingStore().getStoreId());
+  /**
+   * Works out which of the stores of the document can be written out by copying the raw bytes they
+   * were read in from (see {@link Reader#setRawPassThrough}). A store is copied only if it has not
+   * been modified, none of its fields are being deleted, and it is not connected via pointers to a
+   * store which is re-encoded. Instances reachable via pointers from a modified store could have
+   * been assigned to, and pointers into a modified store could now refer to different indices, so
+   * the modification is spread along pointers in both directions. The pointer fields of the
+   * document itself are public, so the stores they point into are always re-encoded.
+   **/
+  private void findRawStores(final Doc doc, final RTAnnSchema rtDocSchema) {
+    final List<RTStoreSchema> stores = rtDocSchema.getStores();
+    if (rawStores.length < stores.size())
+      rawStores = new boolean[stores.size()];
+    boolean any = false;
+    for (int i = 0; i != stores.size(); i++) {
+      final RTStoreSchema rtStoreSchema = stores.get(i);
+      rawStores[i] = !rtStoreSchema.isLazy() && rtStoreSchema.getDef().getStore(doc).getRaw() != null;
+      if (rawStores[i]) {
+        for (RTFieldSchema field : rtStoreSchema.getStoredKlass().getFields())
+          if (!field.isLazy() && field.getDef().getMode() == FieldMode.DELETE)
+            rawStores[i] = false;
+      }
+      any |= rawStores[i];
+    }
+    if (!any)
+      return;
+
+    for (RTFieldSchema field : rtDocSchema.getFields())
+      if (field.isPointer() && !field.isLazy())
+        rawStores[stores.indexOf(field.getContainingStore())] = false;
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i != stores.size(); i++) {
+        final RTStoreSchema rtStoreSchema = stores.get(i);
+        if (rtStoreSchema.isLazy())
+          continue;
+        for (RTFieldSchema field : rtStoreSchema.getStoredKlass().getFields()) {
+          if (!field.isPointer() || field.isLazy())
+            continue;
+          final int j = stores.indexOf(field.getContainingStore());
+          if (!stores.get(j).isLazy() && rawStores[i] != rawStores[j]) {
+            rawStores[i] = rawStores[j] = false;
+            changed = true;
+          }
         }
+      }
+    }
+  }
+
+  /**
+   * Writes the instances of a document straight to the output, after computing the
+   * <code>&lt;instances_nbytes&gt;</code> of every instances group with a sizing pass. The headers
+   * of the document have already been serialised into the instances buffer.
+   **/
+  private void writeSized(final Doc doc, final RTAnnSchema rtDocSchema) throws IOException {
+    if (sink == null) {
+      sink = new CountingOutputStream(channel == null ? out : Channels.newOutputStream(channel));
+      sinkPacker = MessagePackFactory.newDefaultPacker(sink);
+    }
+    final List<RTStoreSchema> stores = rtDocSchema.getStores();
+    if (groupNBytes.length <= stores.size())
+      groupNBytes = new int[stores.size() + 1];
+
+    // Size every instances group before writing anything out.
+    nsized = 0;
+    if (!rtDocSchema.isLazy())
+      groupNBytes[0] = sizeInstance(doc, rtDocSchema);
+    for (int i = 0; i != stores.size(); i++) {
+      final RTStoreSchema rtStoreSchema = stores.get(i);
+      if (!rtStoreSchema.isLazy() && !rawStores[i])
+        groupNBytes[i + 1] = sizeInstances(rtStoreSchema.getDef().getStore(doc), rtStoreSchema.getStoredKlass());
+    }
+
+    // <wire_version> <klasses> <stores>
+    instances.writeTo(sink);
+    instances.reset();
+
+    // <doc_instance> ::= <instances_nbytes> <instance>
+    nsized = 0;
+    if (rtDocSchema.isLazy())
+      streamLazyGroup(rtDocSchema.getLazyBuffer());
+    else {
+      sinkPacker.packInt(groupNBytes[0]);
+      sinkPacker.flush();
+      final long begin = sink.count;
+      streamInstance(doc, rtDocSchema);
+      checkStreamed(begin, groupNBytes[0]);
+    }
 
-        // <field_type> ::= 2 # IS_SLICE => whether or not this field is a "Slice" field
-        if (field.isSlice()) {
-          packer.packByte((byte) 2);
-          packer.packNil();
+    // <instances_groups> ::= <instances_group>*
+    for (int i = 0; i != stores.size(); i++) {
+      // <instances_group> ::= <instances_nbytes> <instances>
+      final RTStoreSchema rtStoreSchema = stores.get(i);
+      if (rtStoreSchema.isLazy())
+        streamLazyGroup(rtStoreSchema.getLazyBuffer());
+      else if (rawStores[i])
+        streamLazyGroup(rtStoreSchema.getDef().getStore(doc).getRaw());
+      else {
+        final RTAnnSchema storedKlass = rtStoreSchema.getStoredKlass();
+        final Store<? extends Ann> store = rtStoreSchema.getDef().getStore(doc);
+        sinkPacker.packInt(groupNBytes[i + 1]);
+        sinkPacker.flush();
+        final long begin = sink.count;
+        sinkPacker.packArrayHeader(store.size());
+        if (store instanceof ColumnStore)
+          streamColumnInstances((ColumnStore<? extends Ann>) store, storedKlass);
+        else {
+          for (Ann ann : store)
+            streamInstance(ann, storedKlass);
         }
+        checkStreamed(begin, groupNBytes[i + 1]);
+      }
+    }
+
+    // flush since we've written a whole document
+    sinkPacker.flush();
+    sink.flush();
+  }
+
+  private int sizeInstances(final Store<? extends Ann> store, final RTAnnSchema schema) {
+    int nbytes = WriterHelper.sizeOfArrayHeader(store.size());
+    if (!(store instanceof ColumnStore)) {
+      for (Ann ann : store)
+        nbytes += sizeInstance(ann, schema);
+      return nbytes;
+    }
+
+    final ColumnStore<? extends Ann> columnStore = (ColumnStore<? extends Ann>) store;
+    final int[] columnIds = columnStore.getColumnIds(schema);
+    final int nrows = columnStore.size();
+    for (int row = 0; row != nrows; row++) {
+      final Ann ann = columnStore.getMaterialised(row);
+      if (ann != null) {
+        nbytes += sizeInstance(ann, schema);
+        continue;
+      }
 
-        // <field_type>  ::= 3 # IS_SELF_POINTER => whether or not this field is a self-pointer. POINTER_TO and IS_SELF_POINTER are mutually exclusive.
-        if (field.isSelfPointer()) {
-          packer.packByte((byte) 3);
-          packer.packNil();
+      int nelem = columnStore.getLazyNElem(row);
+      int ninstance = columnStore.getLazyNBytes(row);
+      for (RTFieldSchema field : schema.getFields()) {
+        if (!field.isLazy() && field.getDef().getMode() == FieldMode.READ_WRITE) {
+          final int n = columnStore.getColumn(columnIds[field.getFieldId()]).size(field.getFieldId(), row);
+          if (n != 0) {
+            nelem++;
+            ninstance += n;
+          }
         }
+      }
+      addNElem(nelem);
+      nbytes += WriterHelper.sizeOfArrayHeader(nelem) + ninstance;
+    }
+    return nbytes;
+  }
 
-        // <field_type>  ::= 4 # IS_COLLECTION => whether or not this field is a collection. IS_COLLECTION and IS_SLICE are mutually exclusive.
-        if (field.isCollection()) {
-          packer.packByte((byte) 4);
-          packer.packNil();
+  private int sizeInstance(final Ann ann, final RTAnnSchema schema) {
+    int nelem = ann.getDRLazyNElem();
+    int nbytes = 0;
+    if (nelem != 0)
+      nbytes = (ann instanceof AbstractAnn) ? ((AbstractAnn) ann).getDRLazyNBytes() : ann.getDRLazy().length;
+    for (RTFieldSchema field : schema.getFields()) {
+      if (!field.isLazy() && field.getDef().getMode() == FieldMode.READ_WRITE) {
+        final int n = WriterHelper.size(field, ann);
+        if (n != 0) {
+          nelem++;
+          nbytes += n;
         }
-      }  // for each field.
-      i++;
-    }  // for each klass.
-  }
-
-  private void writeStoresHeader(final List<RTStoreSchema> stores, final Doc doc) throws IOException {
-    // <stores> ::= [ <store> ]
-    packer.packArrayHeader(stores.size());
-    for (RTStoreSchema store : stores) {
-      // <store> ::= ( <store_name>, <type_id>, <store_nelem> )
-      packer.packArrayHeader(3);
-      if (store.isLazy()) {
-        packer.packString(store.getSerial());
-        packer.packInt(store.getStoredKlass().getKlassId());
-        packer.packInt(store.getLazyNElem());
       }
-      else {
-        packer.packString(store.getDef().getSerial());
-        packer.packInt(store.getStoredKlass().getKlassId());
-        packer.packInt(store.getDef().size(doc));
+    }
+    addNElem(nelem);
+    return WriterHelper.sizeOfArrayHeader(nelem) + nbytes;
+  }
+
+  private void addNElem(final int nelem) {
+    if (nsized == nelems.length)
+      nelems = Arrays.copyOf(nelems, Math.max(64, 2*nelems.length));
+    nelems[nsized++] = nelem;
+  }
+
+  private void streamInstance(final Ann ann, final RTAnnSchema schema) throws IOException {
+    sinkPacker.packMapHeader(nelems[nsized++]);
+    if (ann.getDRLazyNElem() != 0) {
+      if (ann instanceof AbstractAnn) {
+        final AbstractAnn a = (AbstractAnn) ann;
+        streamBuffer(a.getDRLazyBuffer(), a.getDRLazyOffset(), a.getDRLazyNBytes());
+      }
+      else
+        sinkPacker.writePayload(ann.getDRLazy());
+    }
+    for (RTFieldSchema field : schema.getFields())
+      if (!field.isLazy() && field.getDef().getMode() == FieldMode.READ_WRITE)
+        WriterHelper.write(sinkPacker, field, ann);
+  }
+
+  private void streamColumnInstances(final ColumnStore<? extends Ann> store, final RTAnnSchema schema) throws IOException {
+    final int[] columnIds = store.getColumnIds(schema);
+    final int nrows = store.size();
+    for (int row = 0; row != nrows; row++) {
+      final Ann ann = store.getMaterialised(row);
+      if (ann != null) {
+        streamInstance(ann, schema);
+        continue;
       }
-    }  // for each store.
+
+      sinkPacker.packMapHeader(nelems[nsized++]);
+      store.writeLazy(row, sinkPacker);
+      for (RTFieldSchema field : schema.getFields())
+        if (!field.isLazy() && field.getDef().getMode() == FieldMode.READ_WRITE)
+          store.getColumn(columnIds[field.getFieldId()]).write(sinkPacker, field.getFieldId(), row);
+    }
   }
 
-  private void writeInstance(final Ann ann, final RTAnnSchema schema, final Doc doc, final DataOutputStream out) throws IOException {
-    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+  private void streamLazyGroup(final ByteBuffer lazy) throws IOException {
+    sinkPacker.packInt(lazy.remaining());
+    streamBuffer(lazy, lazy.position(), lazy.remaining());
+  }
+
+  /**
+   * Writes nbytes bytes from the provided buffer, starting at the absolute index offset, through
+   * the sink packer.
+   **/
+  private void streamBuffer(final ByteBuffer buffer, final int offset, final int nbytes) throws IOException {
+    if (buffer.hasArray()) {
+      sinkPacker.writePayload(buffer.array(), buffer.arrayOffset() + offset, nbytes);
+      return;
+    }
+    for (int i = 0; i < nbytes; ) {
+      final int n = Math.min(nbytes - i, scratch.length);
+      for (int j = 0; j != n; j++)
+        scratch[j] = buffer.get(offset + i + j);
+      sinkPacker.writePayload(scratch, 0, n);
+      i += n;
+    }
+  }
+
+  /**
+   * Ensures that the instances group streamed out since begin matches its precomputed size.
+   **/
+  private void checkStreamed(final long begin, final int nbytes) throws IOException {
+    sinkPacker.flush();
+    if (sink.count - begin != nbytes)
+      throw new WriterException("Streamed " + (sink.count - begin) + " bytes for an instances group which was sized at " + nbytes + " bytes");
+  }
+
+  /**
+   * Writes the lazy data of a whole <code>&lt;instances_group&gt;</code>. The data are written
+   * straight to the output stream, or added to the gathering write for a channel, rather than
+   * copied into the instances buffer.
+   **/
+  private void writeLazyGroup(final ByteBuffer lazy) throws IOException {
+    instancesPacker.packInt(lazy.remaining());
+    instancesPacker.flush();
+    if (channel != null) {
+      addInstances();
+      addGather(lazy.duplicate());
+    }
+    else {
+      instances.writeTo(out);
+      instances.reset();
+      writeBuffer(lazy, lazy.position(), lazy.remaining(), out);
+    }
+  }
+
+  /**
+   * Adds the instances serialised since the last piece of the gathering write as the next piece.
+   * Nothing before the end of the instances buffer is back-patched after this point, so the
+   * bytes can be wrapped in place.
+   **/
+  private void addInstances() {
+    if (instances.size() != gatherStart)
+      addGather(ByteBuffer.wrap(instances.getBuffer(), gatherStart, instances.size() - gatherStart));
+    gatherStart = instances.size();
+  }
+
+  private void addGather(final ByteBuffer buffer) {
+    if (ngather == gather.length)
+      gather = Arrays.copyOf(gather, 2*gather.length);
+    gather[ngather++] = buffer;
+  }
+
+  /**
+   * Writes all of the pieces of the current document to the channel.
+   **/
+  private void writeGather() throws IOException {
+    int offset = 0;
+    while (offset != ngather) {
+      channel.write(gather, offset, ngather - offset);
+      while (offset != ngather && !gather[offset].hasRemaining())
+        gather[offset++] = null;
+    }
+    ngather = 0;
+    gatherStart = 0;
+  }
+
+  private void writeInstance(final Ann ann, final RTAnnSchema schema, final Doc doc) throws IOException {
+    final int header = instances.reserveMapHeader();
+    final int nLazyElem = ann.getDRLazyNElem();
+    if (nLazyElem != 0) {
+      // Lazy data held by an AbstractAnn can be copied straight out of the buffer it was read into.
+      if (ann instanceof AbstractAnn) {
+        final AbstractAnn a = (AbstractAnn) ann;
+        writeBuffer(a.getDRLazyBuffer(), a.getDRLazyOffset(), a.getDRLazyNBytes(), instances);
+      }
+      else
+        instances.write(ann.getDRLazy());
+    }
 
     int nNewElem = 0;
-    final MessagePacker packer = MessagePackFactory.newDefaultPacker(bos);
     for (RTFieldSchema field : schema.getFields()) {
       if (!field.isLazy() && field.getDef().getMode() == FieldMode.READ_WRITE) {
-        if (WriterHelper.write(packer, field, ann))
+        if (WriterHelper.write(instancesPacker, field, ann))
           nNewElem++;
       }
     }
-    packer.flush();
+    instancesPacker.flush();
+    instances.patchMapHeader(header, nNewElem + nLazyElem);
+  }
+
+  /**
+   * Writes the rows of a {@link ColumnStore} directly from its columns. Rows which have been
+   * materialised are written from their annotation instance instead.
+   **/
+  private void writeColumnInstances(final ColumnStore<? extends Ann> store, final RTAnnSchema schema, final Doc doc) throws IOException {
+    final int[] columnIds = store.getColumnIds(schema);
+    final int nrows = store.size();
+    for (int row = 0; row != nrows; row++) {
+      final Ann ann = store.getMaterialised(row);
+      if (ann != null) {
+        writeInstance(ann, schema, doc);
+        continue;
+      }
 
-    final int nElem = nNewElem + ann.getDRLazyNElem();
-    writeMapBegin(out, nElem);
-    if (nElem != 0) {
-      if (ann.getDRLazyNElem() != 0)
-        out.write(ann.getDRLazy());
-      bos.writeTo(out);
+      final int header = instances.reserveMapHeader();
+      final int nLazyElem = store.getLazyNElem(row);
+      store.writeLazy(row, instances);
+
+      int nNewElem = 0;
+      for (RTFieldSchema field : schema.getFields()) {
+        if (!field.isLazy() && field.getDef().getMode() == FieldMode.READ_WRITE) {
+          if (store.getColumn(columnIds[field.getFieldId()]).write(instancesPacker, field.getFieldId(), row))
+            nNewElem++;
+        }
+      }
+      instancesPacker.flush();
+      instances.patchMapHeader(header, nNewElem + nLazyElem);
     }
   }
 
-  private static void writeArrayHeader(final DataOutputStream out, final int size) throws IOException {
-    if (size < 16)
-      out.write((byte) (0x90 | size));
-    else if (size < 65536) {
-      out.write((byte) 0xdc);
-      out.writeShort((short) size);
-    }
-    else {
-      out.write((byte) 0xdd);
-      out.writeInt(size);
+  /**
+   * Writes nbytes bytes from the provided buffer, starting at the absolute index offset, to the
+   * output stream. Lazy data read in via a memory mapped {@link Reader} are views into the mapped
+   * file rather than heap arrays. These are written directly to the underlying channel when
+   * writing to a file, and are otherwise copied out through a small scratch array.
+   **/
+  private void writeBuffer(final ByteBuffer buffer, final int offset, final int nbytes, final OutputStream out) throws IOException {
+    if (buffer.hasArray()) {
+      out.write(buffer.array(), buffer.arrayOffset() + offset, nbytes);
+      return;
     }
-  }
 
-  private static void writeMapBegin(final DataOutputStream out, final int size) throws IOException {
-    if (size < 16)
-      out.write((byte) (0x80 | size));
-    else if (size < 65536) {
-      out.write((byte) 0xde);
-      out.writeShort((short) size);
+    final ByteBuffer view = buffer.duplicate();
+    view.limit(offset + nbytes);
+    view.position(offset);
+    if (out instanceof WriteBuffer)
+      ((WriteBuffer) out).write(view);
+    else if (out instanceof FileOutputStream) {
+      final FileChannel channel = ((FileOutputStream) out).getChannel();
+      while (view.hasRemaining())
+        channel.write(view);
     }
     else {
-      out.write((byte) 0xdf);
-      out.writeInt(size);
+      while (view.hasRemaining()) {
+        final int n = Math.min(view.remaining(), scratch.length);
+        view.get(scratch, 0, n);
+        out.write(scratch, 0, n);
+      }
     }
   }
 }
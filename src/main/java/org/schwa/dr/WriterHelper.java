@@ -20,107 +20,149 @@ final class WriterHelper {
   public static boolean write(final MessagePacker packer, final RTFieldSchema rtFieldSchema, final Ann ann) throws IOException {
     final FieldSchema fieldSchema = rtFieldSchema.getDef();
     final int fieldId = rtFieldSchema.getFieldId();
-    final Object value = fieldSchema.getFieldValue(ann);
 
     if (rtFieldSchema.isPointer() || rtFieldSchema.isSelfPointer()) {
+      final Object value = fieldSchema.getFieldValue(ann);
       if (rtFieldSchema.isSlice())
         return writePointerSlice(packer, fieldId, (Slice<? extends Ann>) value);
+      else if (rtFieldSchema.isCollection() && value instanceof Pointers)
+        return writePointerIndices(packer, fieldId, (Pointers<? extends Ann>) value);
       else if (rtFieldSchema.isCollection())
         return writePointers(packer, fieldId, (List<? extends Ann>) value);
       else
         return writePointer(packer, fieldId, (Ann) value);
     }
     else {
-      final Class<?> klass = fieldSchema.getField().getType();
-      if (klass == ByteSlice.class)
-        return writeByteSlice(packer, fieldId, (ByteSlice) value);
-      else
-        return writePrimitive(packer, fieldId, value, klass);
+      try {
+        return fieldSchema.getCodec().write(packer, fieldId, ann);
+      }
+      catch (IllegalAccessException e) {
+        throw new DocrepException(e);
+      }
     }
   }
 
 
-  private static boolean writePrimitive(final MessagePacker packer, final int fieldId, final Object value, final Class<?> klass) throws IOException {
-    if (klass == String.class)
-      return writeString(packer, fieldId, (String) value);
-    else if (klass == byte.class || klass == Byte.class) {
-      final Byte v = (Byte) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packByte(v.byteValue());
-        return true;
+  /**
+   * Returns the number of bytes which {@link WriterHelper#write} would write for the field on the
+   * provided annotation, which is 0 if nothing would be written.
+   **/
+  public static int size(final RTFieldSchema rtFieldSchema, final Ann ann) {
+    final FieldSchema fieldSchema = rtFieldSchema.getDef();
+    final int fieldId = rtFieldSchema.getFieldId();
+
+    if (rtFieldSchema.isPointer() || rtFieldSchema.isSelfPointer()) {
+      final Object value = fieldSchema.getFieldValue(ann);
+      if (rtFieldSchema.isSlice()) {
+        final Slice<? extends Ann> slice = (Slice<? extends Ann>) value;
+        if (slice == null)
+          return 0;
+        return sizeOfInt(fieldId) + 1 + sizeOfInt(slice.start.getDRIndex()) + sizeOfInt(slice.stop.getDRIndex() - slice.start.getDRIndex() + 1);
       }
-    }
-    else if (klass == char.class || klass == Character.class) {
-      final Character v = (Character) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packInt(v.charValue());
-        return true;
+      else if (rtFieldSchema.isCollection() && value instanceof Pointers) {
+        final Pointers<? extends Ann> pointers = (Pointers<? extends Ann>) value;
+        if (pointers.isEmpty())
+          return 0;
+        int size = sizeOfInt(fieldId) + sizeOfArrayHeader(pointers.size());
+        for (int i = 0; i != pointers.size(); i++)
+          size += sizeOfInt(pointers.getIndex(i));
+        return size;
       }
-    }
-    else if (klass == short.class || klass == Short.class) {
-      final Short v = (Short) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packShort(v.shortValue());
-        return true;
+      else if (rtFieldSchema.isCollection()) {
+        final List<? extends Ann> annotations = (List<? extends Ann>) value;
+        if (annotations == null || annotations.isEmpty())
+          return 0;
+        int size = sizeOfInt(fieldId) + sizeOfArrayHeader(annotations.size());
+        for (Ann a : annotations)
+          size += sizeOfInt(a.getDRIndex());
+        return size;
       }
-    }
-    else if (klass == int.class || klass == Integer.class) {
-      final Integer v = (Integer) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packInt(v.intValue());
-        return true;
+      else {
+        final Ann pointed = (Ann) value;
+        if (pointed == null)
+          return 0;
+        return sizeOfInt(fieldId) + sizeOfInt(pointed.getDRIndex());
       }
     }
-    else if (klass == long.class || klass == Long.class) {
-      final Long v = (Long) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packLong(v.longValue());
-        return true;
+    else {
+      try {
+        return fieldSchema.getCodec().size(fieldId, ann);
       }
-    }
-    else if (klass == float.class || klass == Float.class) {
-      final Float v = (Float) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packFloat(v.floatValue());
-        return true;
+      catch (IllegalAccessException e) {
+        throw new DocrepException(e);
       }
     }
-    else if (klass == double.class || klass == Double.class) {
-      final Double v = (Double) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packDouble(v.doubleValue());
-        return true;
-      }
+  }
+
+
+  /** Returns the number of bytes in the smallest msgpack encoding of the integer. **/
+  public static int sizeOfInt(final long value) {
+    if (value >= 0) {
+      if (value < (1L << 7))
+        return 1;
+      else if (value < (1L << 8))
+        return 2;
+      else if (value < (1L << 16))
+        return 3;
+      else if (value < (1L << 32))
+        return 5;
+      return 9;
+    }
+    else {
+      if (value >= -32)
+        return 1;
+      else if (value >= Byte.MIN_VALUE)
+        return 2;
+      else if (value >= Short.MIN_VALUE)
+        return 3;
+      else if (value >= Integer.MIN_VALUE)
+        return 5;
+      return 9;
     }
-    else if (klass == boolean.class || klass == Boolean.class) {
-      final Boolean v = (Boolean) value;
-      if (v != null) {
-        packer.packInt(fieldId);
-        packer.packBoolean(v.booleanValue());
-        return true;
+  }
+
+
+  /**
+   * Returns the number of bytes in the msgpack encoding of the string.
+   *
+   * @throws WriterException If the string contains an unpaired surrogate, which msgpack cannot
+   *                         encode.
+   **/
+  public static int sizeOfString(final String s) {
+    int nbytes = 0;
+    final int length = s.length();
+    for (int i = 0; i != length; i++) {
+      final char c = s.charAt(i);
+      if (c < 0x80)
+        nbytes += 1;
+      else if (c < 0x800)
+        nbytes += 2;
+      else if (Character.isHighSurrogate(c) && i + 1 != length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        nbytes += 4;
+        i++;
       }
+      else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+        throw new WriterException("Cannot write a string containing an unpaired surrogate at index " + i);
+      else
+        nbytes += 3;
     }
-    else
-      throw new WriterException("Unknown type of field (" + klass + ")");
-    return false;
+    if (nbytes < 32)
+      return 1 + nbytes;
+    else if (nbytes < 256)
+      return 2 + nbytes;
+    else if (nbytes < 65536)
+      return 3 + nbytes;
+    return 5 + nbytes;
   }
 
 
-  private static boolean writeByteSlice(final MessagePacker packer, final int fieldId, final ByteSlice slice) throws IOException {
-    if (slice == null)
-      return false;
-    packer.packInt(fieldId);
-    packer.packArrayHeader(2);
-    packer.packLong(slice.start);
-    packer.packLong(slice.stop - slice.start);
-    return true;
+  /** Returns the number of bytes in the msgpack encoding of an array or map header. **/
+  public static int sizeOfArrayHeader(final int size) {
+    if (size < 16)
+      return 1;
+    else if (size < 65536)
+      return 3;
+    return 5;
   }
 
 
@@ -156,11 +198,13 @@ final class WriterHelper {
   }
 
 
-  private static boolean writeString(final MessagePacker packer, final int fieldId, final String s) throws IOException {
-    if (s == null || s.isEmpty())
+  private static boolean writePointerIndices(final MessagePacker packer, final int fieldId, final Pointers<? extends Ann> pointers) throws IOException {
+    if (pointers.isEmpty())
       return false;
     packer.packInt(fieldId);
-    packer.packString(s);
+    packer.packArrayHeader(pointers.size());
+    for (int i = 0; i != pointers.size(); i++)
+      packer.packInt(pointers.getIndex(i));
     return true;
   }
 }
@@ -70,6 +70,7 @@ public final class dr {
    * <li>{@link Slice}</li>
    * <li>Any object which is a implementation of {@link Ann}</li>
    * <li>A {@link java.util.List} of implementation of {@link Ann}</li>
+   * <li>A {@link Pointers} of implementation of {@link Ann}</li>
    * </ul>
    */
   @Retention(RetentionPolicy.RUNTIME)
@@ -86,6 +87,7 @@ public final class dr {
    * <li>{@link Slice}</li>
    * <li>Any object which is a implementation of {@link Ann}</li>
    * <li>A {@link java.util.List} of implementation of {@link Ann}</li>
+   * <li>A {@link Pointers} of implementation of {@link Ann}</li>
    * </ul>
    */
   @Retention(RetentionPolicy.RUNTIME)
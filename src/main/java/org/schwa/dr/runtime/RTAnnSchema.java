@@ -1,5 +1,6 @@
 package org.schwa.dr.runtime;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,7 +13,7 @@ public final class RTAnnSchema {
   private AnnSchema def;
   private List<RTFieldSchema> fields;
   private List<RTStoreSchema> stores;
-  private byte[] lazy;
+  private ByteBuffer lazy;
 
   public RTAnnSchema(int klassId, String serial) {
     this(klassId, serial, null);
@@ -51,7 +52,17 @@ public final class RTAnnSchema {
     return klassId;
   }
 
+  /**
+   * Returns the lazy data as an array of bytes, copying it if it is a view into a larger buffer.
+   **/
   public byte[] getLazyData() {
+    return RTAnnSchema.toArray(lazy);
+  }
+
+  /**
+   * Returns the lazy data without copying it. The lazy data are the remaining bytes of the buffer.
+   **/
+  public ByteBuffer getLazyBuffer() {
     return lazy;
   }
 
@@ -80,6 +91,20 @@ public final class RTAnnSchema {
   }
 
   public void setLazy(byte[] lazy) {
+    this.lazy = (lazy == null) ? null : ByteBuffer.wrap(lazy);
+  }
+
+  public void setLazy(ByteBuffer lazy) {
     this.lazy = lazy;
   }
+
+  static byte[] toArray(final ByteBuffer lazy) {
+    if (lazy == null)
+      return null;
+    if (lazy.hasArray() && lazy.arrayOffset() + lazy.position() == 0 && lazy.array().length == lazy.remaining())
+      return lazy.array();
+    final byte[] bytes = new byte[lazy.remaining()];
+    lazy.duplicate().get(bytes);
+    return bytes;
+  }
 }
@@ -53,10 +53,13 @@ public final class RTFactory {
     // Discover existing stores.
     int storeId = 0;
     Map<String, RTStoreSchema> knownStores = new HashMap<String, RTStoreSchema>();
+    Map<String, RTStoreSchema> lazyStores = new HashMap<String, RTStoreSchema>();
     if (!rtDocSchema.getStores().isEmpty()) {
       for (RTStoreSchema s : rtDocSchema.getStores()) {
         if (!s.isLazy())
           knownStores.put(s.getDef().getName(), s);
+        else
+          lazyStores.put(s.getSerial(), s);
         if (s.getStoreId() > storeId)
           storeId = s.getStoreId();
       }
@@ -65,8 +68,11 @@ public final class RTFactory {
 
     // Construct the new RTStoreSchema's.
     for (StoreSchema store : docSchema.getStores()) {
+      // Keep the lazy data of stores which were not materialised when read in, e.g. due to a Projection.
       RTStoreSchema rtStore = knownStores.get(store.getName());
-      if (rtStore == null) {
+      if (rtStore == null && lazyStores.containsKey(store.getSerial()))
+        knownStores.put(store.getName(), lazyStores.get(store.getSerial()));
+      else if (rtStore == null) {
         rtStore = new RTStoreSchema(storeId, store.getSerial(), null, store);
         rtDocSchema.addStore(rtStore);
         knownStores.put(store.getName(), rtStore);
@@ -131,10 +137,13 @@ public final class RTFactory {
     // Discover existing fields.
     int fieldId = 0;
     Map<String, RTFieldSchema> knownFields = new HashMap<String, RTFieldSchema>();
+    Map<String, RTFieldSchema> lazyFields = new HashMap<String, RTFieldSchema>();
     if (!rtSchema.getFields().isEmpty()) {
       for (RTFieldSchema f : rtSchema.getFields()) {
         if (!f.isLazy())
           knownFields.put(f.getDef().getName(), f);
+        else
+          lazyFields.put(f.getSerial(), f);
         if (f.getFieldId() > fieldId)
           fieldId = f.getFieldId();
       }
@@ -143,8 +152,11 @@ public final class RTFactory {
 
     // Construct the new RTFieldSchemas.
     for (FieldSchema field : schema.getFields()) {
+      // Keep the lazy data of fields which were not materialised when read in, e.g. due to a Projection.
       RTFieldSchema rtField = knownFields.get(field.getName());
-      if (rtField == null) {
+      if (rtField == null && lazyFields.containsKey(field.getSerial()))
+        continue;
+      else if (rtField == null) {
         RTStoreSchema rtStore = null;
         if (field.isPointer())
           rtStore = knownStores.get(field.getStoreName());
@@ -7,6 +7,7 @@ import java.util.List;
 public final class RTManager {
   private RTAnnSchema docSchema;
   private List<RTAnnSchema> annSchemas;
+  private boolean isReadOnly;
 
   RTManager(RTAnnSchema docSchema) {
     this.docSchema = docSchema;
@@ -29,6 +30,14 @@ public final class RTManager {
     return annSchemas;
   }
 
+  public boolean isReadOnly() {
+    return isReadOnly;
+  }
+
+  public void setReadOnly(boolean isReadOnly) {
+    this.isReadOnly = isReadOnly;
+  }
+
   public void setDocSchema(RTAnnSchema docSchema) {
     this.docSchema = docSchema;
   }
@@ -1,5 +1,7 @@
 package org.schwa.dr.runtime;
 
+import java.nio.ByteBuffer;
+
 import org.schwa.dr.StoreSchema;
 
 
@@ -8,7 +10,7 @@ public final class RTStoreSchema {
   private String serial;
   private RTAnnSchema storedKlass;
   private StoreSchema def;
-  private byte[] lazy;
+  private ByteBuffer lazy;
   private int lazyNElem;
 
   public RTStoreSchema(int storeId, String serial, RTAnnSchema storedKlass, StoreSchema def) {
@@ -19,6 +21,10 @@ public final class RTStoreSchema {
   }
 
   public RTStoreSchema(int storeId, String serial, RTAnnSchema storedKlass, byte[] lazy, int lazyNElem) {
+    this(storeId, serial, storedKlass, (lazy == null) ? null : ByteBuffer.wrap(lazy), lazyNElem);
+  }
+
+  public RTStoreSchema(int storeId, String serial, RTAnnSchema storedKlass, ByteBuffer lazy, int lazyNElem) {
     this.storeId = storeId;
     this.serial = serial;
     this.storedKlass = storedKlass;
@@ -30,7 +36,17 @@ public final class RTStoreSchema {
     return def;
   }
 
+  /**
+   * Returns the lazy data as an array of bytes, copying it if it is a view into a larger buffer.
+   **/
   public byte[] getLazyData() {
+    return RTAnnSchema.toArray(lazy);
+  }
+
+  /**
+   * Returns the lazy data without copying it. The lazy data are the remaining bytes of the buffer.
+   **/
+  public ByteBuffer getLazyBuffer() {
     return lazy;
   }
 
@@ -59,6 +75,10 @@ public final class RTStoreSchema {
   }
 
   public void setLazy(byte[] lazy) {
+    this.lazy = (lazy == null) ? null : ByteBuffer.wrap(lazy);
+  }
+
+  public void setLazy(ByteBuffer lazy) {
     this.lazy = lazy;
   }
 
@@ -0,0 +1,179 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class BlockReaderTest {
+  private static final int NDOCS = 300;
+
+  /** Codec which stores blocks uncompressed. **/
+  private static class IdentityCodec implements BlockCodec {
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+      return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    @Override
+    public void decompress(byte[] data, int offset, int length, byte[] out) {
+      System.arraycopy(data, offset, out, 0, length);
+    }
+  }
+
+
+  /** Codec which fails to compress every block after the first. **/
+  private static class FailingCodec extends IdentityCodec {
+    private final AtomicInteger nblocks = new AtomicInteger();
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+      if (nblocks.getAndIncrement() != 0)
+        throw new IllegalStateException("Compression failed");
+      return super.compress(data, offset, length);
+    }
+  }
+
+
+  private static byte[] compress(final BlockWriter writer, final ByteArrayOutputStream out) throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.FullDoc.class)))
+      writer.write(doc);
+    writer.close();
+    return out.toByteArray();
+  }
+
+
+  @Test
+  public void testOwnedPool() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = ReaderTest.roundTrip(new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)), NDOCS);
+
+    for (int nThreads : new int[]{1, 4}) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] compressed = compress(new BlockWriter(out, DocSchema.create(ReaderTest.FullDoc.class), nThreads), out);
+      Assert.assertTrue(compressed.length < stream.length);
+
+      final BlockReader<ReaderTest.TokensDoc> reader = new BlockReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(compressed), DocSchema.create(ReaderTest.TokensDoc.class), nThreads);
+      Utils.assertArrayEquals(expected, ReaderTest.roundTrip(reader, NDOCS));
+    }
+  }
+
+
+  @Test
+  public void testProvidedPool() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = ReaderTest.roundTrip(new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)), NDOCS);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (BlockCodec codec : new BlockCodec[]{new IdentityCodec(), new DeflateCodec(1)}) {
+        for (int maxInFlight : new int[]{1, 2, 50}) {
+          final ByteArrayOutputStream out = new ByteArrayOutputStream();
+          final byte[] compressed = compress(new BlockWriter(out, DocSchema.create(ReaderTest.FullDoc.class), codec, 256, executor, maxInFlight), out);
+
+          final BlockReader<ReaderTest.TokensDoc> reader = new BlockReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(compressed), DocSchema.create(ReaderTest.TokensDoc.class), codec, executor, maxInFlight);
+          Utils.assertArrayEquals(expected, ReaderTest.roundTrip(reader, NDOCS));
+        }
+      }
+      Assert.assertFalse(executor.isShutdown());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+
+  @Test(expected=ReaderException.class)
+  public void testTruncated() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BlockWriter writer = new BlockWriter(out, DocSchema.create(ReaderTest.FullDoc.class), 2);
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(ReaderTest.createStream(10)), DocSchema.create(ReaderTest.FullDoc.class)))
+      writer.write(doc);
+    writer.close();
+    final byte[] compressed = out.toByteArray();
+
+    final byte[] truncated = Arrays.copyOf(compressed, compressed.length - 5);
+    for (ReaderTest.TokensDoc doc : new BlockReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(truncated), DocSchema.create(ReaderTest.TokensDoc.class), 2))
+      Assert.assertNotNull(doc);
+  }
+
+
+  @Test(expected=ReaderException.class)
+  public void testTruncatedHeader() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] compressed = compress(new BlockWriter(out, DocSchema.create(ReaderTest.FullDoc.class), 2), out);
+
+    // Only the first 3 bytes of the header of a following block are present.
+    final byte[] truncated = Arrays.copyOf(compressed, compressed.length + 3);
+    System.arraycopy(compressed, 0, truncated, compressed.length, 3);
+    for (ReaderTest.TokensDoc doc : new BlockReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(truncated), DocSchema.create(ReaderTest.TokensDoc.class), 2))
+      Assert.assertNotNull(doc);
+  }
+
+
+  @Test
+  public void testWriterFailure() throws IOException {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final BlockWriter writer = new BlockWriter(out, DocSchema.create(ReaderTest.FullDoc.class), new FailingCodec(), 256, executor, 1);
+      boolean failed = false;
+      try {
+        for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(ReaderTest.createStream(NDOCS)), DocSchema.create(ReaderTest.FullDoc.class)))
+          writer.write(doc);
+        writer.flush();
+      }
+      catch (IllegalStateException e) {
+        failed = true;
+      }
+      Assert.assertTrue(failed);
+
+      // Every later call fails rather than writing a container which is missing the failed block.
+      for (int i = 0; i != 2; i++) {
+        try {
+          if (i == 0)
+            writer.write(new ReaderTest.FullDoc());
+          else
+            writer.flush();
+          Assert.fail();
+        }
+        catch (WriterException e) {
+          // Expected.
+        }
+      }
+      writer.close();
+
+      // Only the block before the failed one was written out.
+      int n = 0;
+      for (ReaderTest.TokensDoc doc : new BlockReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(ReaderTest.TokensDoc.class), new IdentityCodec(), executor, 1)) {
+        Assert.assertEquals("doc" + n, doc.id);
+        n++;
+      }
+      Assert.assertTrue(n > 0);
+      Assert.assertTrue(n < NDOCS);
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+
+  @Test
+  public void testEmpty() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BlockWriter writer = new BlockWriter(out, DocSchema.create(ReaderTest.FullDoc.class), 2);
+    writer.close();
+    Assert.assertEquals(0, out.size());
+
+    final BlockReader<ReaderTest.TokensDoc> reader = new BlockReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(ReaderTest.TokensDoc.class), 2);
+    Assert.assertFalse(reader.hasNext());
+  }
+}
@@ -0,0 +1,131 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ColumnStoreTest {
+  private static final int NDOCS = 30;
+
+  @dr.Doc
+  public static class ColumnDoc extends AbstractDoc {
+    @dr.Field public String id;
+    @dr.Store public ColumnStore<ReaderTest.Token> tokens = new ColumnStore<ReaderTest.Token>(ReaderTest.Token.class);
+    @dr.Store public Store<ReaderTest.Sent> sents = new Store<ReaderTest.Sent>();
+    @dr.Store public Store<ReaderTest.Ent> ents = new Store<ReaderTest.Ent>();
+  }
+
+  @dr.Doc
+  public static class ColumnTokensDoc extends AbstractDoc {
+    @dr.Field public String id;
+    @dr.Store public ColumnStore<ReaderTest.ROToken> tokens = new ColumnStore<ReaderTest.ROToken>(ReaderTest.ROToken.class);
+  }
+
+  @dr.Doc
+  public static class InvalidDoc extends AbstractDoc {
+    @dr.Store public Store<ReaderTest.Token> tokens = new Store<ReaderTest.Token>();
+    @dr.Store public ColumnStore<ReaderTest.Sent> sents = new ColumnStore<ReaderTest.Sent>(ReaderTest.Sent.class);
+  }
+
+  private static byte[] rewrite(final Iterable<? extends Doc> reader, final DocSchema schema) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Writer writer = new Writer(out, schema);
+    for (Doc doc : reader)
+      writer.write(doc);
+    return out.toByteArray();
+  }
+
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = rewrite(new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.FullDoc.class)), DocSchema.create(ReaderTest.FullDoc.class));
+
+    final DocSchema schema = DocSchema.create(ColumnDoc.class);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Writer writer = new Writer(out, schema);
+    int n = 0;
+    for (ColumnDoc doc : new Reader<ColumnDoc>(new ByteArrayInputStream(stream), schema)) {
+      final int ntokens = 2 + n % 7;
+      Assert.assertEquals(ntokens, doc.tokens.size());
+
+      // Only the tokens which are pointed to by the sentences have been materialised.
+      for (int i = 0; i != ntokens; i++)
+        Assert.assertEquals(i == 0 || i == 1 || i == ntokens - 1, doc.tokens.isMaterialised(i));
+      Assert.assertSame(doc.tokens.get(1), doc.sents.get(1).span.start);
+      Assert.assertEquals("t" + n + "_1", doc.sents.get(1).span.start.raw);
+
+      final int raw = doc.tokens.getColumnIndex("raw");
+      final int span = doc.tokens.getColumnIndex("span");
+      final ColumnStore.Cursor cursor = doc.tokens.cursor();
+      while (cursor.next()) {
+        final int i = cursor.getRow();
+        Assert.assertEquals("t" + n + "_" + i, cursor.getString(raw));
+        Assert.assertTrue(cursor.hasSlice(span));
+        Assert.assertEquals(2*i, cursor.getSliceStart(span));
+        Assert.assertEquals(2*i + 1, cursor.getSliceStop(span));
+      }
+      if (ntokens > 3)
+        Assert.assertFalse(doc.tokens.isMaterialised(2));  // Cursors do not materialise rows.
+
+      writer.write(doc);
+      n++;
+    }
+    Assert.assertEquals(NDOCS, n);
+    Utils.assertArrayEquals(expected, out.toByteArray());
+  }
+
+
+  @Test
+  public void testReadOnlyFields() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = ReaderTest.roundTrip(new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)), NDOCS);
+
+    // Read with a small buffer so that instances straddle the buffered chunks.
+    final DocSchema schema = DocSchema.create(ColumnTokensDoc.class);
+    final Reader<ColumnTokensDoc> reader = new Reader<ColumnTokensDoc>(new ByteArrayInputStream(stream), schema, 7);
+    Utils.assertArrayEquals(expected, rewrite(reader, schema));
+  }
+
+
+  @Test
+  public void testCursorWrites() throws IOException {
+    final ColumnDoc doc = new ColumnDoc();
+    doc.id = "doc";
+    doc.tokens.create(ReaderTest.Token.class, 3);
+    doc.tokens.get(2).raw = "c";
+    doc.tokens.reset(3);
+    Assert.assertFalse(doc.tokens.isMaterialised(2));
+
+    final int raw = doc.tokens.getColumnIndex("raw");
+    final ColumnStore.Cursor cursor = doc.tokens.cursor();
+    while (cursor.next())
+      cursor.setString(raw, "t" + cursor.getRow());
+
+    // Materialised instances are kept in sync with the columns in both directions.
+    final ReaderTest.Token token = doc.tokens.get(1);
+    Assert.assertEquals("t1", token.raw);
+    token.raw = "changed";
+    cursor.moveTo(1);
+    Assert.assertEquals("changed", cursor.getString(raw));
+    cursor.setString(raw, "t1");
+    Assert.assertEquals("t1", token.raw);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Writer(out, DocSchema.create(ColumnDoc.class)).write(doc);
+    final ReaderTest.FullDoc read = new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(ReaderTest.FullDoc.class)).next();
+    Assert.assertEquals(3, read.tokens.size());
+    for (ReaderTest.Token t : read.tokens)
+      Assert.assertEquals("t" + t.getDRIndex(), t.raw);
+  }
+
+
+  @Test(expected=IllegalAnnotationException.class)
+  public void testPointersNotAllowed() {
+    DocSchema.create(InvalidDoc.class);
+  }
+}
@@ -0,0 +1,106 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DocIndexTest {
+  private static final int NDOCS = 200;
+
+  private static File createFile(final byte[] bytes, final String suffix) throws IOException {
+    final File file = File.createTempFile("docindex", suffix);
+    file.deleteOnExit();
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(bytes);
+    out.close();
+    return file;
+  }
+
+  private static void checkSeek(final Reader<ReaderTest.TokensDoc> reader, final DocIndex index) {
+    for (int i : new int[]{0, 137, 3, NDOCS - 1, 3, 42}) {
+      reader.seek(index, i);
+      Assert.assertTrue(reader.hasNext());
+      final ReaderTest.TokensDoc doc = reader.next();
+      Assert.assertEquals("doc" + i, doc.id);
+      Assert.assertEquals(2 + i % 7, doc.tokens.size());
+      Assert.assertEquals("t" + i + "_1", doc.tokens.get(1).raw);
+      if (i + 1 != NDOCS)
+        Assert.assertEquals("doc" + (i + 1), reader.next().id);
+    }
+    reader.seek(index, NDOCS);
+    Assert.assertFalse(reader.hasNext());
+  }
+
+
+  @Test
+  public void testBuild() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final DocIndex index = DocIndex.build(new ByteArrayInputStream(stream));
+    Assert.assertEquals(NDOCS, index.size());
+    Assert.assertEquals(0, index.getOffset(0));
+    Assert.assertEquals(stream.length, index.getOffset(NDOCS));
+
+    // Each indexed region should decode to exactly one document.
+    for (int i = 0; i != NDOCS; i++) {
+      final ByteArrayInputStream in = new ByteArrayInputStream(stream, (int) index.getOffset(i), (int) index.getNBytes(i));
+      final Reader<ReaderTest.TokensDoc> reader = new Reader<ReaderTest.TokensDoc>(in, DocSchema.create(ReaderTest.TokensDoc.class));
+      Assert.assertEquals("doc" + i, reader.next().id);
+      Assert.assertFalse(reader.hasNext());
+    }
+  }
+
+
+  @Test
+  public void testSidecar() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final File file = createFile(stream, ".dr");
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // Build the index from the file, save it as a sidecar, and reopen the sidecar.
+      final DocIndex built = DocIndex.build(raf.getChannel());
+      final File sidecar = File.createTempFile("docindex", ".dri");
+      sidecar.deleteOnExit();
+      final FileOutputStream out = new FileOutputStream(sidecar);
+      built.write(out);
+      out.close();
+      Assert.assertEquals(8*(NDOCS + 2), sidecar.length());
+
+      final RandomAccessFile sidecarRAF = new RandomAccessFile(sidecar, "r");
+      final DocIndex index;
+      try {
+        index = DocIndex.open(sidecarRAF.getChannel());
+      }
+      finally {
+        sidecarRAF.close();
+      }
+      Assert.assertEquals(NDOCS, index.size());
+      for (int i = 0; i <= NDOCS; i++)
+        Assert.assertEquals(built.getOffset(i), index.getOffset(i));
+
+      // Seek using both a channel and a mapped reader.
+      final FileChannel channel = raf.getChannel();
+      channel.position(0);
+      checkSeek(new Reader<ReaderTest.TokensDoc>(channel, DocSchema.create(ReaderTest.TokensDoc.class), 64), index);
+      channel.position(0);
+      checkSeek(Reader.<ReaderTest.TokensDoc>createMapped(channel, DocSchema.create(ReaderTest.TokensDoc.class), 512), index);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+
+  @Test(expected=UnsupportedOperationException.class)
+  public void testSeekUnsupported() throws IOException {
+    final byte[] stream = ReaderTest.createStream(2);
+    final Reader<ReaderTest.TokensDoc> reader = new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class));
+    reader.seek(0);
+  }
+}
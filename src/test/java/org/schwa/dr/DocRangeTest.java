@@ -0,0 +1,119 @@
+package org.schwa.dr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DocRangeTest {
+  private static final int NDOCS = 200;
+
+  private static File createFile() throws IOException {
+    final File file = File.createTempFile("range", ".dr");
+    file.deleteOnExit();
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(ReaderTest.createStream(NDOCS));
+    out.close();
+    return file;
+  }
+
+
+  @Test
+  public void testSplit() throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(createFile(), "r");
+    try {
+      final DocRange<ReaderTest.TokensDoc> range = DocRange.create(raf.getChannel(), DocSchema.create(ReaderTest.TokensDoc.class));
+      Assert.assertEquals(NDOCS, range.size());
+
+      final DocRange<ReaderTest.TokensDoc> prefix = range.trySplit();
+      Assert.assertEquals(0, prefix.getFrom());
+      Assert.assertEquals(prefix.getTo(), range.getFrom());
+      Assert.assertEquals(NDOCS, range.getTo());
+      Assert.assertTrue(prefix.size() > NDOCS / 4 && range.size() > NDOCS / 4);
+
+      int n = 0;
+      for (ReaderTest.TokensDoc doc : prefix)
+        Assert.assertEquals("doc" + n++, doc.id);
+      for (ReaderTest.TokensDoc doc : range)
+        Assert.assertEquals("doc" + n++, doc.id);
+      Assert.assertEquals(NDOCS, n);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+
+  @Test
+  public void testParallel() throws Exception {
+    final RandomAccessFile raf = new RandomAccessFile(createFile(), "r");
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final FileChannel channel = raf.getChannel();
+      final DocRange<ReaderTest.TokensDoc> range = DocRange.create(channel, DocSchema.create(ReaderTest.TokensDoc.class), DocIndex.build(channel));
+
+      // Split into eight ranges, keeping them in document order.
+      List<DocRange<ReaderTest.TokensDoc>> ranges = new ArrayList<DocRange<ReaderTest.TokensDoc>>();
+      ranges.add(range);
+      for (int i = 0; i != 3; i++) {
+        final List<DocRange<ReaderTest.TokensDoc>> halves = new ArrayList<DocRange<ReaderTest.TokensDoc>>();
+        for (DocRange<ReaderTest.TokensDoc> r : ranges) {
+          halves.add(r.trySplit());
+          halves.add(r);
+        }
+        ranges = halves;
+      }
+
+      final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+      for (final DocRange<ReaderTest.TokensDoc> r : ranges) {
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            int n = r.getFrom();
+            for (ReaderTest.TokensDoc doc : r) {
+              Assert.assertEquals("doc" + n, doc.id);
+              Assert.assertEquals(2 + n % 7, doc.tokens.size());
+              n++;
+            }
+            return n - r.getFrom();
+          }
+        }));
+      }
+      int total = 0;
+      for (Future<Integer> future : futures)
+        total += future.get();
+      Assert.assertEquals(NDOCS, total);
+    }
+    finally {
+      executor.shutdown();
+      raf.close();
+    }
+  }
+
+
+  @Test
+  public void testUnsplittable() throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(createFile(), "r");
+    try {
+      final DocRange<ReaderTest.TokensDoc> range = DocRange.create(raf.getChannel(), DocSchema.create(ReaderTest.TokensDoc.class));
+      while (range.size() > 1)
+        Assert.assertNotNull(range.trySplit());
+      Assert.assertNull(range.trySplit());
+      Assert.assertEquals("doc" + (NDOCS - 1), range.iterator().next().id);
+    }
+    finally {
+      raf.close();
+    }
+  }
+}
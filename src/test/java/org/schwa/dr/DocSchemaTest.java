@@ -0,0 +1,71 @@
+package org.schwa.dr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DocSchemaTest {
+  @Test
+  public void testIndependentCopies() {
+    final DocSchema a = DocSchema.create(WriterTest.DocWithAYZ.class);
+    final DocSchema b = DocSchema.create(WriterTest.DocWithAYZ.class);
+    Assert.assertNotSame(a, b);
+    Assert.assertNotSame(a.getStore("as"), b.getStore("as"));
+    Assert.assertNotSame(a.getSchema(WriterTest.Z.class).getField("p"), b.getSchema(WriterTest.Z.class).getField("p"));
+
+    // Changing serial names on one copy does not affect the others.
+    a.getStore("as").setSerial("bs");
+    a.getSchema(WriterTest.A.class).setSerial("B");
+    a.getSchema(WriterTest.Z.class).getField("p").setSerial("q");
+    Assert.assertEquals("as", b.getStore("as").getSerial());
+    Assert.assertEquals("A", b.getSchema(WriterTest.A.class).getSerial());
+    Assert.assertEquals("p", b.getSchema(WriterTest.Z.class).getField("p").getSerial());
+    Assert.assertEquals("as", DocSchema.create(WriterTest.DocWithAYZ.class).getStore("as").getSerial());
+
+    // Lookups on a copy find the copy's own schemas.
+    Assert.assertSame(a.getStores().get(0), a.getStore("as"));
+    Assert.assertSame(a.getSchemas().get(0), a.getSchema(WriterTest.A.class));
+    Assert.assertSame(a.getSchema(WriterTest.A.class).getFields().get(0), a.getSchema(WriterTest.A.class).getField("v_str"));
+    Assert.assertNull(a.getStore("missing"));
+    Assert.assertNull(a.getSchema(WriterTest.A.class).getField("missing"));
+  }
+
+
+  @Test(expected=UnsupportedOperationException.class)
+  public void testUnmodifiableViews() {
+    DocSchema.create(WriterTest.DocWithAYZ.class).getStores().clear();
+  }
+
+
+  @Test
+  public void testConcurrentCreate() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<DocSchema>> futures = new ArrayList<Future<DocSchema>>();
+      for (int i = 0; i != 16; i++) {
+        futures.add(executor.submit(new Callable<DocSchema>() {
+          @Override
+          public DocSchema call() {
+            return DocSchema.create(ReaderTest.FullDoc.class);
+          }
+        }));
+      }
+      for (Future<DocSchema> future : futures) {
+        final DocSchema schema = future.get();
+        Assert.assertEquals(3, schema.getStores().size());
+        Assert.assertEquals(3, schema.getSchemas().size());
+        Assert.assertEquals("tokens", schema.getSchema(ReaderTest.Sent.class).getField("span").getStoreName());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+}
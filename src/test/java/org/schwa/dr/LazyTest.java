@@ -325,6 +325,58 @@ public class LazyTest {
   }
 
 
+  @Test
+  public void lazyTestBufferSizes() throws IOException {
+    final String[] WORDS = {"Pack", "my", "box", "with", "five", "dozen", "liquor", "jugs"};
+    final int NDOCS = 20;
+
+    // Write out a number of documents whose fields will be read back in lazily.
+    ByteArrayOutputStream stream0 = new ByteArrayOutputStream();
+    Writer writer0 = new Writer(stream0, DocSchema.create(DocA0.class));
+    for (int d = 0; d != NDOCS; ++d) {
+      DocA0 doc0 = new DocA0();
+      doc0.as.create(A0.class, d % WORDS.length);
+      for (int i = 0; i != doc0.as.size(); ++i) {
+        final A0 a = doc0.as.get(i);
+        a.v_str = WORDS[(d + i) % WORDS.length];
+        a.v_uint8 = (byte)(d + i);
+        a.v_bool = i % 2 == 0;
+      }
+      writer0.write(doc0);
+    }
+
+    // Round-trip the documents with various buffer sizes, ensuring the lazy output is identical.
+    byte[] expected = null;
+    for (int bufferSize : new int[]{ReaderInput.DEFAULT_BUFFER_SIZE, 1, 2, 3, 7, 16, 100}) {
+      DocSchema schema1 = DocSchema.create(DocB0.class);
+      schema1.getStore("bs").setSerial("as");
+      schema1.getSchema(B0.class).setSerial("A0");
+      schema1.getSchema(B0.class).getField("word").setSerial("v_str");
+      schema1.getSchema(B0.class).getField("is_first").setSerial("v_bool");
+
+      ByteArrayOutputStream stream1 = new ByteArrayOutputStream();
+      Reader<DocB0> reader1 = new Reader<DocB0>(new ByteArrayInputStream(stream0.toByteArray()), schema1, bufferSize);
+      Writer writer1 = new Writer(stream1, DocSchema.create(DocB0.class));
+      int nDocsRead1 = 0;
+      for (DocB0 doc1 : reader1) {
+        Assert.assertEquals(nDocsRead1 % WORDS.length, doc1.bs.size());
+        for (B0 b : doc1.bs) {
+          Assert.assertEquals(3, b.getDRLazyNElem());
+          b.upper = b.word.toUpperCase();
+        }
+        writer1.write(doc1);
+        nDocsRead1++;
+      }
+      Assert.assertEquals(NDOCS, nDocsRead1);
+
+      if (expected == null)
+        expected = stream1.toByteArray();
+      else
+        Utils.assertArrayEquals(expected, stream1.toByteArray());
+    }
+  }
+
+
   @dr.Doc
   public static class FauxDoc extends AbstractDoc {
   }
@@ -361,4 +413,73 @@ public class LazyTest {
 
     Utils.assertArrayEquals(STREAM, output.toByteArray());
   }
+
+
+  /** An annotation which implements {@link Ann} directly rather than extending AbstractAnn. **/
+  @dr.Ann(serial="Token")
+  public static class PlainToken implements Ann {
+    @dr.Field public String raw;
+    private Integer drIndex;
+    private byte[] drLazy;
+    private int drLazyNElem;
+
+    @Override
+    public Integer getDRIndex() {
+      return drIndex;
+    }
+
+    @Override
+    public byte[] getDRLazy() {
+      return drLazy;
+    }
+
+    @Override
+    public int getDRLazyNElem() {
+      return drLazyNElem;
+    }
+
+    @Override
+    public void setDRIndex(Integer index) {
+      drIndex = index;
+    }
+
+    @Override
+    public void setDRLazy(byte[] lazy) {
+      drLazy = lazy;
+    }
+
+    @Override
+    public void setDRLazyNElem(int lazyNElem) {
+      drLazyNElem = lazyNElem;
+    }
+  }
+
+  @dr.Doc
+  public static class PlainTokensDoc extends AbstractDoc {
+    @dr.Field public String id;
+    @dr.Store public Store<PlainToken> tokens = new Store<PlainToken>();
+  }
+
+
+  @Test
+  public void lazyTestPlainAnn() throws IOException {
+    // The "span" field of each token is kept as lazy bytes on the plain Ann implementation.
+    final byte[] stream = ReaderTest.createStream(20);
+    final DocSchema schema = DocSchema.create(PlainTokensDoc.class);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, DocSchema.create(ReaderTest.TokensOnlyDoc.class));
+    for (ReaderTest.TokensOnlyDoc doc : new Reader<ReaderTest.TokensOnlyDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensOnlyDoc.class)))
+      expectedWriter.write(doc);
+
+    for (boolean precomputeSizes : new boolean[]{false, true}) {
+      final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      final Writer writer = new Writer(actual, schema);
+      writer.setPrecomputeSizes(precomputeSizes);
+      for (PlainTokensDoc doc : new Reader<PlainTokensDoc>(new ByteArrayInputStream(stream), schema)) {
+        Assert.assertEquals(1, doc.tokens.get(0).getDRLazyNElem());
+        writer.write(doc);
+      }
+      Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+  }
 }
@@ -0,0 +1,89 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ParallelReaderTest {
+  private static final int NDOCS = 300;
+
+  @Test
+  public void testOwnedPool() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = ReaderTest.roundTrip(new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)), NDOCS);
+
+    for (int nThreads : new int[]{1, 4}) {
+      final ParallelReader<ReaderTest.TokensDoc> reader = new ParallelReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class), nThreads);
+      Utils.assertArrayEquals(expected, ReaderTest.roundTrip(reader, NDOCS));
+    }
+  }
+
+
+  @Test
+  public void testProvidedPool() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = ReaderTest.roundTrip(new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)), NDOCS);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (int maxInFlight : new int[]{1, 2, 50}) {
+        final ParallelReader<ReaderTest.TokensDoc> reader = new ParallelReader<ReaderTest.TokensDoc>(Channels.newChannel(new ByteArrayInputStream(stream)), DocSchema.create(ReaderTest.TokensDoc.class), executor, maxInFlight);
+        Utils.assertArrayEquals(expected, ReaderTest.roundTrip(reader, NDOCS));
+      }
+      Assert.assertFalse(executor.isShutdown());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+
+  @Test
+  public void testMixedHeaders() throws IOException {
+    // The pooled decoders keep the bindings of the stream headers between documents, so interleave
+    // documents with two different stream headers.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] full = ReaderTest.createStream(1);
+    final ByteArrayOutputStream tokensOnly = new ByteArrayOutputStream();
+    final Writer writer = new Writer(tokensOnly, DocSchema.create(ReaderTest.TokensOnlyDoc.class));
+    final ReaderTest.TokensOnlyDoc doc = new ReaderTest.TokensOnlyDoc();
+    doc.id = "doc0";
+    doc.tokens.create(ReaderTest.Token.class, 3);
+    writer.write(doc);
+    for (int d = 0; d != NDOCS; d++)
+      out.write(d % 3 == 0 ? tokensOnly.toByteArray() : full);
+    final byte[] stream = out.toByteArray();
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, DocSchema.create(ReaderTest.TokensDoc.class));
+    for (ReaderTest.TokensDoc d : new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)))
+      expectedWriter.write(d);
+
+    for (int nThreads : new int[]{1, 4}) {
+      final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      final Writer actualWriter = new Writer(actual, DocSchema.create(ReaderTest.TokensDoc.class));
+      int n = 0;
+      for (ReaderTest.TokensDoc d : new ParallelReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class), nThreads)) {
+        Assert.assertEquals(n % 3 == 0 ? 3 : 2, d.tokens.size());
+        actualWriter.write(d);
+        n++;
+      }
+      Assert.assertEquals(NDOCS, n);
+      Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+  }
+
+
+  @Test
+  public void testEmpty() {
+    final ParallelReader<ReaderTest.TokensDoc> reader = new ParallelReader<ReaderTest.TokensDoc>(new ByteArrayInputStream(new byte[0]), DocSchema.create(ReaderTest.TokensDoc.class), 2);
+    Assert.assertFalse(reader.hasNext());
+  }
+}
@@ -0,0 +1,198 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ParallelWriterTest {
+  private static final int NDOCS = 300;
+
+  /** A document whose serialisation blocks until it is released. **/
+  @dr.Doc
+  public static class SlowDoc extends AbstractDoc {
+    final CountDownLatch release = new CountDownLatch(1);
+    @dr.Field public String id;
+    @dr.Store public Store<ReaderTest.Token> tokens = new Store<ReaderTest.Token>() {
+      @Override
+      public Iterator<ReaderTest.Token> iterator() {
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.iterator();
+      }
+    };
+  }
+
+  private static List<ReaderTest.FullDoc> readDocs() throws IOException {
+    final List<ReaderTest.FullDoc> docs = new ArrayList<ReaderTest.FullDoc>();
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(ReaderTest.createStream(NDOCS)), DocSchema.create(ReaderTest.FullDoc.class)))
+      docs.add(doc);
+    return docs;
+  }
+
+
+  @Test
+  public void testSubmissionOrder() throws IOException {
+    final List<ReaderTest.FullDoc> docs = readDocs();
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer writer = new Writer(expected, DocSchema.create(ReaderTest.FullDoc.class));
+    for (ReaderTest.FullDoc doc : docs)
+      writer.write(doc);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (int maxInFlight : new int[]{1, 2, 50}) {
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        final ParallelWriter parallel = new ParallelWriter(actual, DocSchema.create(ReaderTest.FullDoc.class), executor, maxInFlight);
+        for (ReaderTest.FullDoc doc : docs)
+          parallel.write(doc);
+        parallel.close();
+        Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+      }
+      Assert.assertFalse(executor.isShutdown());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+
+  @Test
+  public void testConcurrentSubmitters() throws Exception {
+    final List<ReaderTest.FullDoc> docs = readDocs();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ParallelWriter parallel = new ParallelWriter(out, DocSchema.create(ReaderTest.FullDoc.class), 4);
+
+    final Thread[] threads = new Thread[3];
+    final Throwable[] errors = new Throwable[threads.length];
+    for (int t = 0; t != threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = offset; i < docs.size(); i += threads.length)
+              parallel.write(docs.get(i));
+          }
+          catch (Throwable e) {
+            errors[offset] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t != threads.length; t++) {
+      threads[t].join();
+      Assert.assertNull(errors[t]);
+    }
+    parallel.close();
+
+    final Set<String> ids = new HashSet<String>();
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(ReaderTest.FullDoc.class))) {
+      Assert.assertEquals(2 + Integer.parseInt(doc.id.substring(3)) % 7, doc.tokens.size());
+      ids.add(doc.id);
+    }
+    Assert.assertEquals(NDOCS, ids.size());
+  }
+
+
+  @Test(timeout=10000)
+  public void testSubmitWhileWaiting() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ParallelWriter parallel = new ParallelWriter(out, DocSchema.create(SlowDoc.class), 2);
+    final SlowDoc slow = new SlowDoc();
+    slow.id = "slow";
+    parallel.write(slow);
+
+    // Flush on another thread, which waits for the slow document to be serialised.
+    final Throwable[] error = new Throwable[1];
+    final Thread flusher = new Thread() {
+      @Override
+      public void run() {
+        try {
+          parallel.flush();
+        }
+        catch (Throwable e) {
+          error[0] = e;
+        }
+      }
+    };
+    flusher.start();
+    while (flusher.getState() == Thread.State.RUNNABLE || flusher.getState() == Thread.State.NEW)
+      Thread.sleep(1);
+
+    // The window has room, so submitting does not wait behind the slow document.
+    final SlowDoc fast = new SlowDoc();
+    fast.id = "fast";
+    fast.release.countDown();
+    parallel.write(fast);
+    slow.release.countDown();
+    flusher.join();
+    Assert.assertNull(error[0]);
+    parallel.close();
+
+    final List<String> ids = new ArrayList<String>();
+    for (SlowDoc doc : new Reader<SlowDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(SlowDoc.class)))
+      ids.add(doc.id);
+    Assert.assertEquals(2, ids.size());
+    Assert.assertEquals("slow", ids.get(0));
+    Assert.assertEquals("fast", ids.get(1));
+  }
+
+
+  @Test
+  public void testFailure() throws IOException {
+    final DocSchema schema = DocSchema.create(WriterTest.DocWithAYZ.class);
+    final WriterTest.DocWithAYZ[] docs = new WriterTest.DocWithAYZ[10];
+    for (int i = 0; i != docs.length; i++) {
+      docs[i] = new WriterTest.DocWithAYZ();
+      docs[i].as.create(WriterTest.A.class, i);
+    }
+    // Pointers to objects which are not in a store cannot be written.
+    docs[5].ys.create(WriterTest.Y.class, 1);
+    docs[5].ys.get(0).p = new WriterTest.A();
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer writer = new Writer(expected, schema);
+    for (int i = 0; i != 5; i++)
+      writer.write(docs[i]);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final ParallelWriter parallel = new ParallelWriter(actual, schema, 2);
+    boolean failed = false;
+    try {
+      for (WriterTest.DocWithAYZ doc : docs)
+        parallel.write(doc);
+      parallel.flush();
+    }
+    catch (RuntimeException e) {
+      failed = true;
+    }
+    Assert.assertTrue(failed);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+    try {
+      parallel.write(docs[0]);
+      Assert.fail();
+    }
+    catch (WriterException e) {
+      // Expected.
+    }
+    parallel.close();
+  }
+}
@@ -31,6 +31,18 @@ public class PointersTest {
     @dr.Store public Store<X> xs = new Store<X>();
   }
 
+  @dr.Ann(serial="X")
+  public static class IndexedX extends AbstractAnn {
+    @dr.Pointer(store="tokens") public Pointers<Token> tokens;
+    @dr.SelfPointer             public Pointers<IndexedX> prior;
+  }
+
+  @dr.Doc
+  public static class IndexedDoc extends AbstractDoc {
+    @dr.Store public Store<Token> tokens = new Store<Token>();
+    @dr.Store public Store<IndexedX> xs = new Store<IndexedX>();
+  }
+
 
   @Test
   public void test_pointers() throws IOException {
@@ -199,4 +211,103 @@ public class PointersTest {
     Assert.assertEquals(doc1.xs.get(3), doc1.xs.get(4).prior.get(3));
     Assert.assertEquals(doc1.xs.get(4), doc1.xs.get(4).prior.get(4));
   }
+
+
+  @Test
+  public void test_pointer_indices() throws IOException {
+    final TestDoc doc0 = new TestDoc();
+    doc0.tokens.create(Token.class, 10);
+    doc0.xs.create(X.class, 5);
+    for (int i = 0; i != 5; ++i) {
+      for (int j = 0; j <= i; ++j) {
+        doc0.xs.get(i).tokens.add(doc0.tokens.get(2*j));
+        doc0.xs.get(i).prior.add(doc0.xs.get(j));
+      }
+    }
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new Writer(expected, DocSchema.create(TestDoc.class)).write(doc0);
+
+    // Pointers fields have the same serialised form as List fields.
+    final DocSchema schema = DocSchema.create(IndexedDoc.class);
+    final Reader<IndexedDoc> reader = new Reader<IndexedDoc>(new ByteArrayInputStream(expected.toByteArray()), schema);
+    final IndexedDoc doc1 = reader.next();
+    for (int i = 0; i != 5; ++i) {
+      final IndexedX x = doc1.xs.get(i);
+      Assert.assertEquals(i + 1, x.tokens.size());
+      Assert.assertEquals(i + 1, x.prior.size());
+      int j = 0;
+      for (Token t : x.tokens) {
+        Assert.assertEquals(2*j, x.tokens.getIndex(j));
+        Assert.assertSame(doc1.tokens.get(2*j), t);
+        Assert.assertSame(doc1.xs.get(j), x.prior.get(j));
+        j++;
+      }
+    }
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    new Writer(actual, schema).write(doc1);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+    // Pointers can also be built up from annotation instances.
+    final IndexedDoc doc2 = new IndexedDoc();
+    doc2.tokens.create(Token.class, 10);
+    doc2.xs.create(IndexedX.class, 5);
+    for (int i = 0; i != 5; ++i) {
+      final IndexedX x = doc2.xs.get(i);
+      x.tokens = new Pointers<Token>(doc2.tokens);
+      x.prior = new Pointers<IndexedX>(doc2.xs);
+      for (int j = 0; j <= i; ++j) {
+        x.tokens.add(doc2.tokens.get(2*j));
+        x.prior.add(doc2.xs.get(j));
+      }
+    }
+    final ByteArrayOutputStream built = new ByteArrayOutputStream();
+    new Writer(built, schema).write(doc2);
+    Utils.assertArrayEquals(expected.toByteArray(), built.toByteArray());
+  }
+
+
+  @Test
+  public void test_pointer_indices_recycled() throws IOException {
+    final DocSchema schema = DocSchema.create(IndexedDoc.class);
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    final Writer writer = new Writer(stream, schema);
+    for (int d = 0; d != 2; d++) {
+      final IndexedDoc doc = new IndexedDoc();
+      doc.tokens.create(Token.class, 4);
+      doc.xs.create(IndexedX.class, 2);
+      // The first instance only has pointers in the first document.
+      if (d == 0) {
+        doc.xs.get(0).tokens = new Pointers<Token>(doc.tokens);
+        doc.xs.get(0).tokens.add(doc.tokens.get(3));
+      }
+      doc.xs.get(1).tokens = new Pointers<Token>(doc.tokens);
+      doc.xs.get(1).tokens.add(doc.tokens.get(d));
+      writer.write(doc);
+    }
+
+    final Reader<IndexedDoc> reader = new Reader<IndexedDoc>(new ByteArrayInputStream(stream.toByteArray()), schema);
+    final IndexedDoc doc0 = reader.next();
+    final Pointers<Token> pointers0 = doc0.xs.get(0).tokens;
+    final Pointers<Token> pointers1 = doc0.xs.get(1).tokens;
+    Assert.assertEquals(3, pointers0.getIndex(0));
+    reader.recycle(doc0);
+
+    // The recycled Pointers collections are emptied and reused rather than being reallocated.
+    final IndexedDoc doc1 = reader.next();
+    Assert.assertSame(doc0, doc1);
+    Assert.assertSame(pointers0, doc1.xs.get(0).tokens);
+    Assert.assertSame(pointers1, doc1.xs.get(1).tokens);
+    Assert.assertTrue(doc1.xs.get(0).tokens.isEmpty());
+    Assert.assertEquals(1, doc1.xs.get(1).tokens.size());
+    Assert.assertSame(doc1.tokens.get(1), doc1.xs.get(1).tokens.get(0));
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Reader<IndexedDoc> fresh = new Reader<IndexedDoc>(new ByteArrayInputStream(stream.toByteArray()), schema);
+    fresh.next();
+    new Writer(expected, schema).write(fresh.next());
+    new Writer(actual, schema).write(doc1);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
 }
@@ -0,0 +1,64 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PrefetchReaderTest {
+  private static final int NDOCS = 100;
+
+  @Test
+  public void testInOrder() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = ReaderTest.roundTrip(new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class)), NDOCS);
+
+    for (int nAhead : new int[]{1, 3, PrefetchReader.DEFAULT_NAHEAD}) {
+      final Reader<ReaderTest.TokensDoc> reader = new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class));
+      Utils.assertArrayEquals(expected, ReaderTest.roundTrip(new PrefetchReader<ReaderTest.TokensDoc>(reader, nAhead), NDOCS));
+    }
+  }
+
+
+  @Test
+  public void testErrorPosition() throws IOException {
+    // Follow the valid documents with a bogus wire version.
+    final byte[] valid = ReaderTest.createStream(5);
+    final byte[] stream = Arrays.copyOf(valid, valid.length + 1);
+    stream[valid.length] = Reader.WIRE_VERSION + 1;
+
+    final Reader<ReaderTest.TokensDoc> reader = new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class));
+    final PrefetchReader<ReaderTest.TokensDoc> prefetch = new PrefetchReader<ReaderTest.TokensDoc>(reader, 2);
+    for (int n = 0; n != 5; n++)
+      Assert.assertEquals("doc" + n, prefetch.next().id);
+    try {
+      prefetch.hasNext();
+      Assert.fail();
+    }
+    catch (ReaderException e) {
+      // Expected.
+    }
+    Assert.assertFalse(prefetch.hasNext());
+  }
+
+
+  @Test
+  public void testClose() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final Reader<ReaderTest.TokensDoc> reader = new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.TokensDoc.class));
+    final PrefetchReader<ReaderTest.TokensDoc> prefetch = new PrefetchReader<ReaderTest.TokensDoc>(reader, 2);
+    Assert.assertEquals("doc0", prefetch.next().id);
+    prefetch.close();
+    Assert.assertFalse(prefetch.hasNext());
+  }
+
+
+  @Test
+  public void testEmpty() {
+    final Reader<ReaderTest.TokensDoc> reader = new Reader<ReaderTest.TokensDoc>(new ByteArrayInputStream(new byte[0]), DocSchema.create(ReaderTest.TokensDoc.class));
+    Assert.assertFalse(new PrefetchReader<ReaderTest.TokensDoc>(reader).hasNext());
+  }
+}
@@ -0,0 +1,89 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ProjectionTest {
+  private static final int NDOCS = 30;
+
+  private static Reader<ReaderTest.FullDoc> createReader(final byte[] stream, final Projection projection) {
+    final Reader<ReaderTest.FullDoc> reader = new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(ReaderTest.FullDoc.class), 16);
+    reader.setProjection(projection);
+    return reader;
+  }
+
+  private static byte[] rewrite(final Reader<ReaderTest.FullDoc> reader) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Writer writer = new Writer(out, DocSchema.create(ReaderTest.FullDoc.class));
+    for (ReaderTest.FullDoc doc : reader)
+      writer.write(doc);
+    return out.toByteArray();
+  }
+
+
+  @Test
+  public void testStoresAndFields() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final Projection projection = Projection.create().addStores("tokens").addFields(ReaderTest.Token.class, "raw");
+
+    int n = 0;
+    for (ReaderTest.FullDoc doc : createReader(stream, projection)) {
+      Assert.assertEquals("doc" + n, doc.id);
+      Assert.assertEquals(2 + n % 7, doc.tokens.size());
+      for (ReaderTest.Token t : doc.tokens) {
+        Assert.assertEquals("t" + n + "_" + t.getDRIndex(), t.raw);
+        Assert.assertNull(t.span);
+      }
+      Assert.assertEquals(0, doc.sents.size());
+      Assert.assertEquals(0, doc.ents.size());
+      n++;
+    }
+    Assert.assertEquals(NDOCS, n);
+  }
+
+
+  @Test
+  public void testPointersIntoSkippedStore() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final Projection projection = Projection.create().addStores("sents");
+
+    for (ReaderTest.FullDoc doc : createReader(stream, projection)) {
+      Assert.assertEquals(0, doc.tokens.size());
+      Assert.assertEquals(2, doc.sents.size());
+      for (ReaderTest.Sent s : doc.sents)
+        Assert.assertNull(s.span);
+    }
+  }
+
+
+  @Test
+  public void testWritable() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final byte[] expected = rewrite(createReader(stream, null));
+
+    // Skipped stores and fields are retained, so rewriting and reading everything back in gives
+    // the same documents as the original stream.
+    final Projection projection = Projection.create().addStores("tokens").addFields(ReaderTest.Token.class, "raw");
+    final byte[] projected = rewrite(createReader(stream, projection));
+    final byte[] actual = rewrite(createReader(projected, null));
+    Utils.assertArrayEquals(expected, actual);
+  }
+
+
+  @Test(expected=WriterException.class)
+  public void testNotWritable() throws IOException {
+    final byte[] stream = ReaderTest.createStream(NDOCS);
+    final Projection projection = Projection.create().addStores("ents").setWritable(false);
+
+    final Reader<ReaderTest.FullDoc> reader = createReader(stream, projection);
+    final ReaderTest.FullDoc doc = reader.next();
+    Assert.assertEquals("doc0", doc.id);
+    Assert.assertEquals(0, doc.tokens.size());
+    new Writer(new ByteArrayOutputStream(), DocSchema.create(ReaderTest.FullDoc.class)).write(doc);
+  }
+}
@@ -0,0 +1,458 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ReaderTest {
+  @dr.Ann
+  public static class Token extends AbstractAnn {
+    @dr.Field public ByteSlice span;
+    @dr.Field public String raw;
+  }
+
+  @dr.Ann(serial="Token")
+  public static class ROToken extends AbstractAnn {
+    @dr.Field public ByteSlice span;
+    @dr.Field(mode=FieldMode.READ_ONLY) public String raw;
+  }
+
+  @dr.Ann
+  public static class Sent extends AbstractAnn {
+    @dr.Pointer(store="tokens") public Slice<Token> span;
+  }
+
+  @dr.Ann
+  public static class Ent extends AbstractAnn {
+    @dr.Field public String label;
+  }
+
+  @dr.Doc
+  public static class FullDoc extends AbstractDoc {
+    @dr.Field public String id;
+    @dr.Store public Store<Token> tokens = new Store<Token>();
+    @dr.Store public Store<Sent> sents = new Store<Sent>();
+    @dr.Store public Store<Ent> ents = new Store<Ent>();
+  }
+
+  @dr.Doc
+  public static class TokensOnlyDoc extends AbstractDoc {
+    @dr.Field public String id;
+    @dr.Store public Store<Token> tokens = new Store<Token>();
+  }
+
+  @dr.Doc
+  public static class TokensDoc extends AbstractDoc {
+    @dr.Field public String id;
+    @dr.Store public Store<ROToken> tokens = new Store<ROToken>();
+  }
+
+
+  @dr.Doc
+  public static class ROIdDoc extends AbstractDoc {
+    @dr.Field(mode=FieldMode.READ_ONLY) public String id;
+    @dr.Store public Store<ROToken> tokens = new Store<ROToken>();
+  }
+
+
+  @dr.Doc
+  public static class PrimitivesDoc extends AbstractDoc {
+    @dr.Field public byte b;
+    @dr.Field public char c;
+    @dr.Field public short s;
+    @dr.Field public int i;
+    @dr.Field public long l;
+    @dr.Field public float f;
+    @dr.Field public double d;
+    @dr.Field public boolean z;
+    @dr.Field public String str;
+    @dr.Field public ByteSlice span;
+  }
+
+
+  /** An input stream which only ever returns a few bytes per read call. **/
+  private static class TrickleInputStream extends FilterInputStream {
+    public TrickleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 3));
+    }
+  }
+
+
+  static byte[] createStream(final int ndocs) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Writer writer = new Writer(out, DocSchema.create(FullDoc.class));
+    for (int d = 0; d != ndocs; d++) {
+      FullDoc doc = new FullDoc();
+      doc.id = "doc" + d;
+      doc.tokens.create(Token.class, 2 + d % 7);
+      for (Token t : doc.tokens) {
+        t.span = new ByteSlice(2*t.getDRIndex(), 2*t.getDRIndex() + 1);
+        t.raw = "t" + d + "_" + t.getDRIndex();
+      }
+      doc.sents.create(Sent.class, 2);
+      doc.sents.get(0).span = new Slice<Token>(doc.tokens.get(0), doc.tokens.get(0));
+      doc.sents.get(1).span = new Slice<Token>(doc.tokens.get(1), doc.tokens.get(doc.tokens.size() - 1));
+      doc.ents.create(Ent.class, d % 3);
+      for (Ent e : doc.ents)
+        e.label = "PER";
+      writer.write(doc);
+    }
+    return out.toByteArray();
+  }
+
+
+  static byte[] roundTrip(final Iterable<TokensDoc> reader, final int ndocs) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Writer writer = new Writer(out, DocSchema.create(TokensDoc.class));
+    int n = 0;
+    for (TokensDoc doc : reader) {
+      Assert.assertEquals("doc" + n, doc.id);
+      Assert.assertEquals(2 + n % 7, doc.tokens.size());
+      for (ROToken t : doc.tokens)
+        Assert.assertEquals("t" + n + "_" + t.getDRIndex(), t.raw);
+      writer.write(doc);
+      n++;
+    }
+    Assert.assertEquals(ndocs, n);
+    return out.toByteArray();
+  }
+
+
+  @Test
+  public void testInputStream() throws IOException {
+    final byte[] stream = createStream(50);
+    final byte[] expected = roundTrip(new Reader<TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(TokensDoc.class)), 50);
+
+    final InputStream in = new TrickleInputStream(new ByteArrayInputStream(stream));
+    final byte[] actual = roundTrip(new Reader<TokensDoc>(in, DocSchema.create(TokensDoc.class), 5), 50);
+    Utils.assertArrayEquals(expected, actual);
+  }
+
+
+  @Test
+  public void testChannel() throws IOException {
+    final byte[] stream = createStream(50);
+    final byte[] expected = roundTrip(new Reader<TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(TokensDoc.class)), 50);
+
+    final InputStream in = new TrickleInputStream(new ByteArrayInputStream(stream));
+    final byte[] actual = roundTrip(new Reader<TokensDoc>(Channels.newChannel(in), DocSchema.create(TokensDoc.class), 16), 50);
+    Utils.assertArrayEquals(expected, actual);
+  }
+
+
+  @Test
+  public void testLazySlab() throws IOException {
+    final byte[] stream = createStream(10);
+    final Reader<TokensDoc> reader = new Reader<TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(TokensDoc.class), 8);
+    for (TokensDoc doc : reader) {
+      // The READ_ONLY fields of all of the tokens in a store share the one lazy buffer.
+      final ByteBuffer slab = doc.tokens.get(0).getDRLazyBuffer();
+      Assert.assertNotNull(slab);
+      int offset = 0;
+      for (ROToken t : doc.tokens) {
+        Assert.assertSame(slab, t.getDRLazyBuffer());
+        Assert.assertEquals(offset, t.getDRLazyOffset());
+        Assert.assertEquals(1, t.getDRLazyNElem());
+        offset += t.getDRLazyNBytes();
+      }
+    }
+  }
+
+
+  @Test
+  public void testMapped() throws IOException {
+    final byte[] stream = createStream(50);
+    final byte[] expected = roundTrip(new Reader<TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(TokensDoc.class)), 50);
+
+    final File file = File.createTempFile("reader", ".dr");
+    file.deleteOnExit();
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[]{'x', 'y', 'z'});
+    out.write(stream);
+    out.close();
+
+    // Map the file whole, and in small segments so that documents straddle segment boundaries.
+    for (int segmentSize : new int[]{MappedReaderInput.DEFAULT_SEGMENT_SIZE, 64, 101}) {
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        final FileChannel channel = raf.getChannel();
+        channel.position(3);
+        final Reader<TokensDoc> reader = Reader.createMapped(channel, DocSchema.create(TokensDoc.class), segmentSize);
+        Utils.assertArrayEquals(expected, roundTrip(reader, 50));
+      }
+      finally {
+        raf.close();
+      }
+    }
+  }
+
+
+  @Test
+  public void testMixedHeaders() throws IOException {
+    // Interleave documents with two different stream headers.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Writer fullWriter = new Writer(out, DocSchema.create(FullDoc.class));
+    final Writer tokensWriter = new Writer(out, DocSchema.create(TokensOnlyDoc.class));
+    for (int d = 0; d != 20; d++) {
+      if (d % 3 == 0) {
+        TokensOnlyDoc doc = new TokensOnlyDoc();
+        doc.id = "doc" + d;
+        doc.tokens.create(Token.class, 2 + d % 7);
+        for (Token t : doc.tokens)
+          t.raw = "t" + d + "_" + t.getDRIndex();
+        tokensWriter.write(doc);
+      }
+      else {
+        FullDoc doc = new FullDoc();
+        doc.id = "doc" + d;
+        doc.tokens.create(Token.class, 2 + d % 7);
+        for (Token t : doc.tokens)
+          t.raw = "t" + d + "_" + t.getDRIndex();
+        doc.ents.create(Ent.class, 1);
+        fullWriter.write(doc);
+      }
+    }
+
+    final Reader<TokensDoc> reader = new Reader<TokensDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(TokensDoc.class), 7);
+    int n = 0;
+    for (TokensDoc doc : reader) {
+      Assert.assertEquals("doc" + n, doc.id);
+      Assert.assertEquals(2 + n % 7, doc.tokens.size());
+      for (ROToken t : doc.tokens)
+        Assert.assertEquals("t" + n + "_" + t.getDRIndex(), t.raw);
+      Assert.assertEquals(n % 3 == 0 ? 0 : 2, doc.getDRRT().getDocSchema().getStores().size() - 1);
+      n++;
+    }
+    Assert.assertEquals(20, n);
+  }
+
+
+  @Test
+  public void testPrimitives() throws IOException {
+    final PrimitivesDoc doc = new PrimitivesDoc();
+    doc.b = -7;
+    doc.c = '\u00e9';
+    doc.s = -1234;
+    doc.i = 1 << 30;
+    doc.l = -(1L << 40);
+    doc.f = 1.5f;
+    doc.d = -2.25;
+    doc.z = true;
+    doc.str = "hello";
+    doc.span = new ByteSlice(3, 10);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Writer writer = new Writer(out, DocSchema.create(PrimitivesDoc.class));
+    writer.write(doc);
+
+    final Reader<PrimitivesDoc> reader = new Reader<PrimitivesDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(PrimitivesDoc.class));
+    final PrimitivesDoc read = reader.next();
+    Assert.assertFalse(reader.hasNext());
+    Assert.assertEquals(doc.b, read.b);
+    Assert.assertEquals(doc.c, read.c);
+    Assert.assertEquals(doc.s, read.s);
+    Assert.assertEquals(doc.i, read.i);
+    Assert.assertEquals(doc.l, read.l);
+    Assert.assertEquals(doc.f, read.f, 0.0f);
+    Assert.assertEquals(doc.d, read.d, 0.0);
+    Assert.assertEquals(doc.z, read.z);
+    Assert.assertEquals(doc.str, read.str);
+    Assert.assertEquals(doc.span.start, read.span.start);
+    Assert.assertEquals(doc.span.stop, read.span.stop);
+  }
+
+
+  @Test
+  public void testOnDemandStores() throws IOException {
+    final byte[] stream = createStream(30);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, DocSchema.create(FullDoc.class));
+    for (FullDoc doc : new Reader<FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(FullDoc.class)))
+      expectedWriter.write(doc);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Writer actualWriter = new Writer(actual, DocSchema.create(FullDoc.class));
+    final Reader<FullDoc> reader = new Reader<FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(FullDoc.class), 16);
+    reader.setOnDemandStores(true);
+    int n = 0;
+    for (FullDoc doc : reader) {
+      Assert.assertEquals("doc" + n, doc.id);
+      Assert.assertFalse(doc.tokens.isLoaded());
+      Assert.assertFalse(doc.sents.isLoaded());
+      Assert.assertEquals(2 + n % 7, doc.tokens.size());
+      Assert.assertEquals(2, doc.sents.size());
+      Assert.assertFalse(doc.tokens.isLoaded());
+
+      // Decoding the sentences also decodes the tokens they point into.
+      final Sent sent = doc.sents.get(1);
+      Assert.assertTrue(doc.tokens.isLoaded());
+      Assert.assertFalse(doc.ents.isLoaded());
+      Assert.assertEquals("t" + n + "_1", sent.span.start.raw);
+      Assert.assertSame(doc.tokens.get(doc.tokens.size() - 1), sent.span.stop);
+
+      actualWriter.write(doc);
+      n++;
+    }
+    Assert.assertEquals(30, n);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+
+  @Test
+  public void testOnDemandStoresMapped() throws IOException {
+    final byte[] stream = createStream(30);
+    final byte[] expected = roundTrip(new Reader<TokensDoc>(new ByteArrayInputStream(stream), DocSchema.create(TokensDoc.class)), 30);
+
+    final File file = File.createTempFile("reader", ".dr");
+    file.deleteOnExit();
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(stream);
+    out.close();
+
+    // Only decode the stores once every document has been read, so that each store is decoded by
+    // the same reused decoder.
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final Reader<TokensDoc> reader = Reader.createMapped(raf.getChannel(), DocSchema.create(TokensDoc.class));
+      reader.setOnDemandStores(true);
+      final List<TokensDoc> docs = new ArrayList<TokensDoc>();
+      for (TokensDoc doc : reader) {
+        Assert.assertFalse(doc.tokens.isLoaded());
+        docs.add(doc);
+      }
+      Utils.assertArrayEquals(expected, roundTrip(docs, 30));
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+
+  @Test
+  public void testRecycle() throws IOException {
+    final byte[] stream = createStream(30);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, DocSchema.create(FullDoc.class));
+    for (FullDoc doc : new Reader<FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(FullDoc.class)))
+      expectedWriter.write(doc);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Writer actualWriter = new Writer(actual, DocSchema.create(FullDoc.class));
+    final Reader<FullDoc> reader = new Reader<FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(FullDoc.class));
+    FullDoc prevDoc = null;
+    Token prevToken = null;
+    int n = 0;
+    for (FullDoc doc : reader) {
+      if (prevDoc != null) {
+        Assert.assertSame(prevDoc, doc);
+        Assert.assertSame(prevToken, doc.tokens.get(0));
+      }
+      Assert.assertEquals("doc" + n, doc.id);
+      Assert.assertEquals(2 + n % 7, doc.tokens.size());
+      for (Token t : doc.tokens)
+        Assert.assertEquals("t" + n + "_" + t.getDRIndex(), t.raw);
+      Assert.assertEquals(n % 3, doc.ents.size());
+      actualWriter.write(doc);
+
+      prevDoc = doc;
+      prevToken = doc.tokens.get(0);
+      reader.recycle(doc);
+      n++;
+    }
+    Assert.assertEquals(30, n);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+
+  @Test
+  public void testFilter() throws IOException {
+    final byte[] stream = createStream(30);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, DocSchema.create(FullDoc.class));
+    int n = 0;
+    for (FullDoc doc : new Reader<FullDoc>(new ByteArrayInputStream(stream), DocSchema.create(FullDoc.class)))
+      if (n++ % 3 == 0)
+        expectedWriter.write(doc);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Writer actualWriter = new Writer(actual, DocSchema.create(FullDoc.class));
+    final Reader<FullDoc> reader = new Reader<FullDoc>(new TrickleInputStream(new ByteArrayInputStream(stream)), DocSchema.create(FullDoc.class), 5);
+    reader.setFilter(new DocFilter<FullDoc>() {
+      @Override
+      public boolean accept(FullDoc doc) {
+        Assert.assertTrue(doc.tokens.isEmpty());
+        return Integer.parseInt(doc.id.substring(3)) % 3 == 0;
+      }
+    }, "id");
+    n = 0;
+    for (FullDoc doc : reader) {
+      Assert.assertEquals("doc" + 3*n, doc.id);
+      Assert.assertEquals(2 + (3*n) % 7, doc.tokens.size());
+      actualWriter.write(doc);
+      n++;
+    }
+    Assert.assertEquals(10, n);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+
+  @Test
+  public void testFilterLazy() throws IOException {
+    // The READ_ONLY document field is retained as lazy data when the accepted document instance is
+    // decoded a second time, so keep every document around before writing any of them out.
+    final byte[] stream = createStream(30);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, DocSchema.create(ROIdDoc.class));
+    for (ROIdDoc doc : new Reader<ROIdDoc>(new ByteArrayInputStream(stream), DocSchema.create(ROIdDoc.class)))
+      expectedWriter.write(doc);
+
+    final Reader<ROIdDoc> reader = new Reader<ROIdDoc>(new ByteArrayInputStream(stream), DocSchema.create(ROIdDoc.class), 16);
+    reader.setFilter(new DocFilter<ROIdDoc>() {
+      @Override
+      public boolean accept(ROIdDoc doc) {
+        return doc.id.startsWith("doc");
+      }
+    }, "id");
+    final List<ROIdDoc> docs = new ArrayList<ROIdDoc>();
+    for (ROIdDoc doc : reader)
+      docs.add(doc);
+    Assert.assertEquals(30, docs.size());
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Writer actualWriter = new Writer(actual, DocSchema.create(ROIdDoc.class));
+    for (ROIdDoc doc : docs)
+      actualWriter.write(doc);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testFilterUnknownField() throws IOException {
+    final Reader<FullDoc> reader = new Reader<FullDoc>(new ByteArrayInputStream(createStream(1)), DocSchema.create(FullDoc.class));
+    reader.setFilter(new DocFilter<Doc>() {
+      @Override
+      public boolean accept(Doc doc) {
+        return true;
+      }
+    }, "language");
+  }
+}
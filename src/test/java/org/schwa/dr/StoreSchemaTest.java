@@ -22,7 +22,7 @@ public class StoreSchemaTest {
 
     final DocSchema d = DocSchema.create(D.class);
     Assert.assertEquals(0, d.getFields().size());
-    Assert.assertEquals(2, d.getSchemas().size());
+    Assert.assertEquals(1, d.getSchemas().size());  // Both stores share the schema for A.
     Assert.assertEquals(2, d.getStores().size());
 
     final List<StoreSchema> schemas = d.getStores();
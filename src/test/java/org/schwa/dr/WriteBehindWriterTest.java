@@ -0,0 +1,137 @@
+package org.schwa.dr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class WriteBehindWriterTest {
+  private static final int NDOCS = 100;
+
+  /** An output stream which counts the number of calls to write. **/
+  private static class CountingOutputStream extends ByteArrayOutputStream {
+    volatile int nwrites;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      nwrites++;
+      super.write(b, off, len);
+    }
+  }
+
+
+  private static List<ReaderTest.FullDoc> readDocs() throws IOException {
+    final List<ReaderTest.FullDoc> docs = new ArrayList<ReaderTest.FullDoc>();
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(ReaderTest.createStream(NDOCS)), DocSchema.create(ReaderTest.FullDoc.class)))
+      docs.add(doc);
+    return docs;
+  }
+
+
+  @Test
+  public void testCoalescing() throws IOException {
+    final List<ReaderTest.FullDoc> docs = readDocs();
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer writer = new Writer(expected, DocSchema.create(ReaderTest.FullDoc.class));
+    for (ReaderTest.FullDoc doc : docs)
+      writer.write(doc);
+
+    for (int flushNBytes : new int[]{1, 1 << 20}) {
+      final CountingOutputStream actual = new CountingOutputStream();
+      final WriteBehindWriter behind = new WriteBehindWriter(actual, DocSchema.create(ReaderTest.FullDoc.class), 4, flushNBytes, 60000);
+      for (ReaderTest.FullDoc doc : docs)
+        behind.write(doc);
+      behind.close();
+      Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+      if (flushNBytes == 1)
+        Assert.assertEquals(NDOCS, actual.nwrites);
+      else
+        Assert.assertEquals(1, actual.nwrites);
+    }
+  }
+
+
+  @Test
+  public void testFlushPolicies() throws Exception {
+    final List<ReaderTest.FullDoc> docs = readDocs();
+    final CountingOutputStream out = new CountingOutputStream();
+    final WriteBehindWriter behind = new WriteBehindWriter(out, DocSchema.create(ReaderTest.FullDoc.class), 4, 1 << 20, 10);
+
+    // Pending documents are written out once they have waited long enough.
+    behind.write(docs.get(0));
+    for (int i = 0; i != 500 && out.nwrites == 0; i++)
+      Thread.sleep(10);
+    Assert.assertEquals(1, out.nwrites);
+
+    // Explicit flushes write out pending documents straight away.
+    final int size = out.size();
+    behind.write(docs.get(1));
+    behind.flush();
+    Assert.assertTrue(out.size() > size);
+    behind.close();
+  }
+
+
+  @Test
+  public void testDeferredFailure() throws IOException {
+    final OutputStream out = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("disk full");
+      }
+    };
+    final WriteBehindWriter behind = new WriteBehindWriter(out, DocSchema.create(ReaderTest.FullDoc.class));
+    for (ReaderTest.FullDoc doc : readDocs())
+      behind.write(doc);
+    try {
+      behind.close();
+      Assert.fail();
+    }
+    catch (WriterException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+
+  @Test(timeout=10000)
+  public void testInterrupted() throws IOException {
+    // The background thread is interrupted during its first write to the output stream.
+    final OutputStream out = new OutputStream() {
+      @Override
+      public void write(int b) {
+        Thread.currentThread().interrupt();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    final WriteBehindWriter behind = new WriteBehindWriter(out, DocSchema.create(ReaderTest.FullDoc.class), 1, 1, 60000);
+    boolean failed = false;
+    for (ReaderTest.FullDoc doc : readDocs()) {
+      try {
+        behind.write(doc);
+      }
+      catch (WriterException e) {
+        Assert.assertTrue(e.getCause() instanceof InterruptedException);
+        failed = true;
+        break;
+      }
+    }
+    Assert.assertTrue(failed);
+    try {
+      behind.close();
+      Assert.fail();
+    }
+    catch (WriterException e) {
+      Assert.assertTrue(e.getCause() instanceof InterruptedException);
+    }
+  }
+}
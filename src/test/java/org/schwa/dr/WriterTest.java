@@ -1,14 +1,59 @@
 package org.schwa.dr;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import org.msgpack.core.MessagePackFactory;
+import org.msgpack.core.MessagePacker;
+
 
 public class WriterTest {
+  /** A channel which only accepts a few bytes per call. **/
+  private static class TrickleChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Override
+    public int write(ByteBuffer src) {
+      final int n = Math.min(src.remaining(), 7);
+      for (int i = 0; i != n; i++)
+        out.write(src.get());
+      return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      for (int i = offset; i != offset + length; i++)
+        if (srcs[i].hasRemaining())
+          return write(srcs[i]);
+      return 0;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() { }
+  }
 
   @dr.Doc
   public static class DocWithField extends AbstractDoc {
@@ -400,4 +445,362 @@ public class WriterTest {
 
     Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
   }
+
+
+  @Test
+  public void test_WriteBuffer__patched_headers() throws IOException {
+    final WriteBuffer actual = new WriteBuffer(4);
+    for (int value : new int[]{0, 1, 15, 16, 127, 128, 255, 256, 65535, 65536, 1 << 20}) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      MessagePacker packer = MessagePackFactory.newDefaultPacker(expected);
+      packer.packInt(value);
+      packer.packMapHeader(value);
+      packer.packByte((byte) 0x7f);
+      packer.flush();
+
+      actual.reset();
+      final int prefix = actual.reserveUInt();
+      final int header = actual.reserveMapHeader();
+      actual.write(0x7f);
+      actual.patchMapHeader(header, value);
+      actual.patchUInt(prefix, value);
+
+      Utils.assertArrayEquals(expected.toByteArray(), Arrays.copyOf(actual.getBuffer(), actual.size()));
+    }
+  }
+
+
+  @Test
+  public void test_DocWithA__reused_buffers() throws IOException {
+    DocSchema schema = DocSchema.create(DocWithA.class);
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    Writer writer = new Writer(first, schema);
+
+    // Large enough that the <instances_nbytes> of the store needs a 32-bit integer.
+    DocWithA d = new DocWithA();
+    d.as.create(A.class, 20000);
+    for (A a : d.as)
+      a.v_str = "value" + a.getDRIndex();
+    writer.write(d);
+    writer.write(d);
+    new Writer(second, schema).write(d);
+    final byte[] expected = second.toByteArray();
+    Assert.assertTrue(expected.length > 65536);
+
+    final byte[] actual = first.toByteArray();
+    Assert.assertEquals(2*expected.length, actual.length);
+    Utils.assertArrayEquals(expected, Arrays.copyOfRange(actual, expected.length, actual.length));
+
+    int n = 0;
+    for (DocWithA doc : new Reader<DocWithA>(new ByteArrayInputStream(actual), schema)) {
+      Assert.assertEquals(20000, doc.as.size());
+      for (A a : doc.as)
+        Assert.assertEquals("value" + a.getDRIndex(), a.v_str);
+      n++;
+    }
+    Assert.assertEquals(2, n);
+  }
+
+
+  @Test
+  public void test_DocWithA__cached_headers() throws IOException {
+    // A document read with a schema which does not know about the "ys" and "zs" stores keeps them
+    // lazily, so its headers differ from those of a freshly constructed document.
+    DocWithAYZ full = new DocWithAYZ();
+    full.as.create(A.class, 2);
+    full.ys.create(Y.class, 1);
+    full.ys.get(0).p = full.as.get(1);
+    ByteArrayOutputStream fullBytes = new ByteArrayOutputStream();
+    new Writer(fullBytes, DocSchema.create(DocWithAYZ.class)).write(full);
+
+    DocSchema schema = DocSchema.create(DocWithA.class);
+    DocWithA lazy = new Reader<DocWithA>(new ByteArrayInputStream(fullBytes.toByteArray()), schema).next();
+    DocWithA[] docs = new DocWithA[4];
+    for (int i = 0; i != docs.length; i++) {
+      docs[i] = new DocWithA();
+      docs[i].as.create(A.class, i*10);
+    }
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    Writer writer = new Writer(actual, schema);
+    for (DocWithA d : new DocWithA[]{docs[0], lazy, docs[1], docs[2], lazy, docs[3]}) {
+      new Writer(expected, schema).write(d);
+      writer.write(d);
+    }
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+
+  @Test
+  public void test_GatheringByteChannel__lazy_stores() throws IOException {
+    // Documents read in as TokensOnlyDoc keep their "sents" and "ents" stores lazily.
+    final byte[] stream = ReaderTest.createStream(20);
+    final DocSchema schema = DocSchema.create(ReaderTest.TokensOnlyDoc.class);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, schema);
+    for (ReaderTest.TokensOnlyDoc doc : new Reader<ReaderTest.TokensOnlyDoc>(new ByteArrayInputStream(stream), schema))
+      expectedWriter.write(doc);
+
+    final TrickleChannel trickle = new TrickleChannel();
+    final Writer trickleWriter = new Writer(trickle, schema);
+    for (ReaderTest.TokensOnlyDoc doc : new Reader<ReaderTest.TokensOnlyDoc>(new ByteArrayInputStream(stream), schema))
+      trickleWriter.write(doc);
+    Utils.assertArrayEquals(expected.toByteArray(), trickle.out.toByteArray());
+
+    // Lazy stores read in from a memory mapped file are direct buffers.
+    final File in = File.createTempFile("writer", ".dr");
+    in.deleteOnExit();
+    final File out = File.createTempFile("writer", ".dr");
+    out.deleteOnExit();
+    final FileOutputStream fos = new FileOutputStream(in);
+    fos.write(stream);
+    fos.close();
+
+    final RandomAccessFile raf = new RandomAccessFile(in, "r");
+    final FileOutputStream channelOut = new FileOutputStream(out);
+    try {
+      final Writer writer = new Writer(channelOut.getChannel(), schema);
+      for (ReaderTest.TokensOnlyDoc doc : Reader.<ReaderTest.TokensOnlyDoc>createMapped(raf.getChannel(), schema))
+        writer.write(doc);
+    }
+    finally {
+      raf.close();
+      channelOut.close();
+    }
+    final byte[] actual = new byte[(int) out.length()];
+    final RandomAccessFile result = new RandomAccessFile(out, "r");
+    result.readFully(actual);
+    result.close();
+    Utils.assertArrayEquals(expected.toByteArray(), actual);
+  }
+
+
+  private static void assertPrecomputedSizes(final Iterable<? extends Doc> docs, final DocSchema schema) throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final TrickleChannel trickle = new TrickleChannel();
+    final Writer expectedWriter = new Writer(expected, schema);
+    final Writer actualWriter = new Writer(actual, schema);
+    final Writer trickleWriter = new Writer(trickle, schema);
+    actualWriter.setPrecomputeSizes(true);
+    trickleWriter.setPrecomputeSizes(true);
+    for (Doc doc : docs) {
+      expectedWriter.write(doc);
+      actualWriter.write(doc);
+      trickleWriter.write(doc);
+    }
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    Utils.assertArrayEquals(expected.toByteArray(), trickle.out.toByteArray());
+  }
+
+
+  @Test
+  public void test_PrimitivesDoc__precomputed_sizes() throws IOException {
+    final long[] values = {0, 1, 127, 128, 255, 256, 65535, 65536, -1, -32, -33, -128, -129, -32768, -32769, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+    final int[] lengths = {0, 31, 32, 255, 256, 65535, 65536};
+    final List<ReaderTest.PrimitivesDoc> docs = new ArrayList<ReaderTest.PrimitivesDoc>();
+    for (int i = 0; i != values.length; i++) {
+      final ReaderTest.PrimitivesDoc doc = new ReaderTest.PrimitivesDoc();
+      doc.b = (byte) values[i];
+      doc.c = (char) values[i];
+      doc.s = (short) values[i];
+      doc.i = (int) values[i];
+      doc.l = values[i];
+      doc.f = i;
+      doc.d = -i;
+      doc.z = i % 2 == 0;
+      if (i % 3 != 0) {
+        final StringBuilder str = new StringBuilder();
+        while (str.length() < lengths[i % lengths.length])
+          str.append(i % 2 == 0 ? "a" : "\u00e9\u4e2d\ud83d\ude00");
+        doc.str = str.toString();
+      }
+      if (i % 4 != 0)
+        doc.span = new ByteSlice(Math.abs(values[i] / 2), Math.abs(values[i] / 2) + i);
+      docs.add(doc);
+    }
+    assertPrecomputedSizes(docs, DocSchema.create(ReaderTest.PrimitivesDoc.class));
+  }
+
+
+  @Test
+  public void test_DocWithAYZ__precomputed_sizes() throws IOException {
+    final DocWithAYZ doc = new DocWithAYZ();
+    doc.as.create(A.class, 300);
+    for (int i = 0; i != doc.as.size(); i++) {
+      doc.as.get(i).v_uint8 = (byte) i;
+      doc.as.get(i).v_bool = i % 3 == 0;
+      if (i % 5 != 0)
+        doc.as.get(i).v_str = "a" + i;
+    }
+    doc.ys.create(Y.class, 2000);
+    for (int i = 0; i != doc.ys.size(); i++)
+      doc.ys.get(i).p = doc.as.get(i % doc.as.size());
+    doc.zs.create(Z.class, 20);
+    doc.zs.get(3).p = doc.as.get(299);
+    doc.zs.get(4).value = true;
+
+    final DocSchema fullSchema = DocSchema.create(DocWithAYZ.class);
+    assertPrecomputedSizes(Arrays.asList(doc, new DocWithAYZ()), fullSchema);
+
+    // The "ys" and "zs" stores are kept lazily when read in as DocWithA.
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new Writer(bytes, fullSchema).write(doc);
+    final DocSchema schema = DocSchema.create(DocWithA.class);
+    assertPrecomputedSizes(new Reader<DocWithA>(new ByteArrayInputStream(bytes.toByteArray()), schema), schema);
+  }
+
+
+  @Test
+  public void test_ColumnStore__precomputed_sizes() throws IOException {
+    final byte[] stream = ReaderTest.createStream(30);
+    final DocSchema fullSchema = DocSchema.create(ReaderTest.FullDoc.class);
+    assertPrecomputedSizes(new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(stream), fullSchema), fullSchema);
+
+    final DocSchema schema = DocSchema.create(ColumnStoreTest.ColumnDoc.class);
+    assertPrecomputedSizes(new Reader<ColumnStoreTest.ColumnDoc>(new ByteArrayInputStream(stream), schema), schema);
+  }
+
+
+  @Test
+  public void test_FullDoc__raw_pass_through() throws IOException {
+    final byte[] stream = ReaderTest.createStream(30);
+    final DocSchema schema = DocSchema.create(ReaderTest.FullDoc.class);
+
+    // Documents are modified in a different way depending on their index.
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, schema);
+    int n = 0;
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(stream), schema)) {
+      if (n % 3 == 1)
+        doc.ents.get(0).label = "changed";
+      else if (n % 3 == 2)
+        doc.sents.get(0).span.start.raw = "changed";
+      expectedWriter.write(doc);
+      n++;
+    }
+
+    for (boolean precomputeSizes : new boolean[]{false, true}) {
+      final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      final Writer writer = new Writer(actual, schema);
+      writer.setPrecomputeSizes(precomputeSizes);
+      final Reader<ReaderTest.FullDoc> reader = new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(stream), schema);
+      reader.setRawPassThrough(true);
+      n = 0;
+      for (ReaderTest.FullDoc doc : reader) {
+        Assert.assertFalse(doc.tokens.isModified());
+        Assert.assertFalse(doc.sents.isModified());
+        Assert.assertFalse(doc.ents.isModified());
+        if (n % 3 == 1) {
+          doc.ents.get(0).label = "changed";
+          Assert.assertTrue(doc.ents.isModified());
+          Assert.assertFalse(doc.tokens.isModified());
+        }
+        else if (n % 3 == 2) {
+          // The tokens are modified via a pointer, so they are re-encoded even though the tokens
+          // store itself was not accessed.
+          doc.sents.get(0).span.start.raw = "changed";
+          Assert.assertFalse(doc.tokens.isModified());
+        }
+        writer.write(doc);
+
+        // Stores which were copied were not iterated over by the writer.
+        Assert.assertEquals(n % 3 == 2, doc.tokens.isModified());
+        Assert.assertEquals(n % 3 == 2, doc.sents.isModified());
+        n++;
+      }
+      Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+  }
+
+
+  @Test
+  public void test_ColumnStore__raw_pass_through() throws IOException {
+    final byte[] stream = ReaderTest.createStream(30);
+    final DocSchema schema = DocSchema.create(ColumnStoreTest.ColumnDoc.class);
+    final Reader<ColumnStoreTest.ColumnDoc> reader = new Reader<ColumnStoreTest.ColumnDoc>(new ByteArrayInputStream(stream), schema);
+    reader.setRawPassThrough(true);
+    reader.setOnDemandStores(true);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Writer writer = new Writer(actual, schema);
+    for (ColumnStoreTest.ColumnDoc doc : reader) {
+      // Reading the columns through a cursor does not modify the store.
+      final ColumnStore.Cursor cursor = doc.tokens.cursor();
+      while (cursor.next())
+        cursor.getString(doc.tokens.getColumnIndex("raw"));
+      Assert.assertFalse(doc.tokens.isModified());
+      writer.write(doc);
+      Assert.assertFalse(doc.tokens.isModified());
+    }
+    Utils.assertArrayEquals(stream, actual.toByteArray());
+  }
+
+
+  @Test
+  public void test_ColumnStore__raw_pass_through_cursor_edits() throws IOException {
+    final byte[] stream = ReaderTest.createStream(10);
+    final DocSchema schema = DocSchema.create(ColumnStoreTest.ColumnDoc.class);
+    final Reader<ColumnStoreTest.ColumnDoc> reader = new Reader<ColumnStoreTest.ColumnDoc>(new ByteArrayInputStream(stream), schema);
+    reader.setRawPassThrough(true);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Writer writer = new Writer(out, schema);
+    for (ColumnStoreTest.ColumnDoc doc : reader) {
+      final ColumnStore.Cursor cursor = doc.tokens.cursor();
+      cursor.moveTo(0);
+      cursor.setString(doc.tokens.getColumnIndex("raw"), "edited");
+      Assert.assertTrue(doc.tokens.isModified());
+      writer.write(doc);
+    }
+
+    int n = 0;
+    for (ReaderTest.FullDoc doc : new Reader<ReaderTest.FullDoc>(new ByteArrayInputStream(out.toByteArray()), DocSchema.create(ReaderTest.FullDoc.class))) {
+      Assert.assertEquals("edited", doc.tokens.get(0).raw);
+      Assert.assertEquals("t" + n + "_1", doc.tokens.get(1).raw);
+      n++;
+    }
+    Assert.assertEquals(10, n);
+  }
+
+
+  @Test
+  public void test_DocWithAYZ__precomputed_sizes_failure() throws IOException {
+    final DocSchema schema = DocSchema.create(DocWithAYZ.class);
+    final DocWithAYZ good = new DocWithAYZ();
+    good.as.create(A.class, 3);
+    good.as.get(1).v_str = "\ud83d\ude00";
+    final DocWithAYZ surrogate = new DocWithAYZ();
+    surrogate.as.create(A.class, 3);
+    surrogate.as.get(2).v_str = "ab\ud800cd";
+    final DocWithAYZ pointer = new DocWithAYZ();
+    pointer.ys.create(Y.class, 1);
+    pointer.ys.get(0).p = new A();
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final Writer expectedWriter = new Writer(expected, schema);
+    expectedWriter.write(good);
+    expectedWriter.write(good);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final Writer writer = new Writer(actual, schema);
+    writer.setPrecomputeSizes(true);
+    writer.write(good);
+    for (DocWithAYZ doc : new DocWithAYZ[]{surrogate, pointer}) {
+      final int size = actual.size();
+      try {
+        writer.write(doc);
+        Assert.fail();
+      }
+      catch (RuntimeException e) {
+        // Nothing of the failed document reaches the output.
+        Assert.assertTrue(doc != surrogate || e instanceof WriterException);
+        Assert.assertEquals(size, actual.size());
+      }
+    }
+    writer.write(good);
+    Utils.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
 }